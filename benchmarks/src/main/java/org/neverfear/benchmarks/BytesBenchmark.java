@@ -0,0 +1,67 @@
+package org.neverfear.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Endian conversions in {@link Bytes}.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BytesBenchmark {
+
+	public int intValue = 0x01020304;
+	public long longValue = 0x0102030405060708L;
+	private final byte[] bytes = new byte[Long.BYTES];
+
+	@Benchmark
+	public int swapIntEndianness() {
+		return Bytes.swapByteEndianness(this.intValue);
+	}
+
+	@Benchmark
+	public long swapLongEndianness() {
+		return Bytes.swapByteEndianness(this.longValue);
+	}
+
+	@Benchmark
+	public int intRoundTripLittleEndian() {
+		Bytes.intToLittleEndianBytes(this.bytes, 0, this.intValue);
+		return Bytes.littleEndianBytesToInt(this.bytes);
+	}
+
+	@Benchmark
+	public int intRoundTripBigEndian() {
+		Bytes.intToBigEndianBytes(this.bytes, 0, this.intValue);
+		return Bytes.bigEndianBytesToInt(this.bytes);
+	}
+
+	@Benchmark
+	public long longRoundTripLittleEndian() {
+		Bytes.longToLittleEndianBytes(this.bytes, 0, this.longValue);
+		return Bytes.littleEndianBytesToLong(this.bytes);
+	}
+
+	@Benchmark
+	public long longRoundTripBigEndian() {
+		Bytes.longToBigEndianBytes(this.bytes, 0, this.longValue);
+		return Bytes.bigEndianBytesToLong(this.bytes);
+	}
+}
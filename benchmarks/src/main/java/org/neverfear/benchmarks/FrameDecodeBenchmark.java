@@ -0,0 +1,99 @@
+package org.neverfear.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.messaging.FrameDecoder;
+import org.neverfear.util.messaging.FrameHandler;
+import org.neverfear.util.messaging.InputStreamLengthPrefixedMessageReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Frame decode throughput across payload sizes and receive buffer sizes,
+ * from the 6 byte buffer of the reader demo where every frame spans several
+ * fills, up to 64KB.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecodeBenchmark {
+
+	private static final int FRAME_COUNT = 64;
+
+	@Param({
+			"16", "256", "4096", "65536"
+	})
+	public int payloadSize;
+
+	@Param({
+			"6", "1024", "65536"
+	})
+	public int bufferSize;
+
+	private byte[] frames;
+	private InputStreamLengthPrefixedMessageReader reader;
+	private ByteBuffer destination;
+	private FrameDecoder decoder;
+	private ByteBuffer source;
+
+	@Setup
+	public void setup() throws IOException {
+		this.frames = Frames.encode(this.payloadSize, FRAME_COUNT);
+		this.reader = new InputStreamLengthPrefixedMessageReader(new RepeatingInputStream(this.frames),
+				this.bufferSize);
+		this.destination = ByteBuffer.allocate(this.payloadSize);
+		this.decoder = new FrameDecoder(this.bufferSize);
+		this.source = ByteBuffer.allocate(this.bufferSize);
+	}
+
+	@Benchmark
+	public byte[] readMessage() throws IOException {
+		return this.reader.readMessage();
+	}
+
+	@Benchmark
+	public ByteBuffer readMessageView() throws IOException {
+		return this.reader.readMessageView();
+	}
+
+	@Benchmark
+	public int readMessageIntoBuffer() throws IOException {
+		this.destination.clear();
+		return this.reader.readMessage(this.destination);
+	}
+
+	/**
+	 * Decodes all frames, fed to the decoder a buffer at a time as they would
+	 * be from a channel.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(FRAME_COUNT)
+	public void frameDecoder(final Blackhole blackhole) throws IOException {
+		final FrameHandler handler = blackhole::consume;
+		for (int offset = 0; offset < this.frames.length; offset += this.bufferSize) {
+			this.source.clear();
+			this.source.put(this.frames, offset, Math.min(this.bufferSize, this.frames.length - offset));
+			this.source.flip();
+			this.decoder.decode(this.source, handler);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.neverfear.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.messaging.BatchingMessageWriter;
+import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Frame encode throughput across payload sizes, into a stream that discards
+ * everything written to it.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodeBenchmark {
+
+	/**
+	 * Discards all bytes, passing them to a black hole so the writes are not
+	 * eliminated.
+	 */
+	private static final class BlackholeOutputStream
+		extends OutputStream {
+
+		private final Blackhole blackhole;
+
+		BlackholeOutputStream(final Blackhole blackhole) {
+			super();
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(final int b) {
+			this.blackhole.consume(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			this.blackhole.consume(b);
+			this.blackhole.consume(len);
+		}
+	}
+
+	@Param({
+			"16", "256", "4096", "65536"
+	})
+	public int payloadSize;
+
+	private byte[] payload;
+	private ByteBuffer directPayload;
+	private OutputStreamLengthPrefixedMessageWriter writer;
+	private BatchingMessageWriter batchingWriter;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		this.payload = Frames.payload(this.payloadSize);
+		this.directPayload = ByteBuffer.allocateDirect(this.payloadSize);
+		this.directPayload.put(this.payload);
+		this.directPayload.flip();
+		this.writer = new OutputStreamLengthPrefixedMessageWriter(new BlackholeOutputStream(blackhole));
+		this.batchingWriter = new BatchingMessageWriter(new OutputStreamLengthPrefixedMessageWriter(new BlackholeOutputStream(blackhole)));
+	}
+
+	@Benchmark
+	public void writeArray() throws IOException {
+		this.writer.write(this.payload);
+	}
+
+	@Benchmark
+	public void writeDirectBuffer() throws IOException {
+		this.directPayload.rewind();
+		this.writer.write(this.directPayload);
+	}
+
+	@Benchmark
+	public void writeBatched() throws IOException {
+		this.batchingWriter.write(this.payload);
+	}
+}
@@ -0,0 +1,41 @@
+package org.neverfear.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+final class Frames {
+
+	private Frames() {}
+
+	static byte[] payload(final int size) {
+		final byte[] payload = new byte[size];
+		for (int i = 0; i < size; i++) {
+			payload[i] = (byte) i;
+		}
+		return payload;
+	}
+
+	/**
+	 * @param payloadSize
+	 * @param count
+	 * @return the count frames of the given payload size, encoded back to
+	 *         back
+	 * @throws IOException
+	 */
+	static byte[] encode(final int payloadSize, final int count) throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStreamLengthPrefixedMessageWriter writer = new OutputStreamLengthPrefixedMessageWriter(outputStream)) {
+			final byte[] payload = payload(payloadSize);
+			for (int i = 0; i < count; i++) {
+				writer.write(payload);
+			}
+		}
+		return outputStream.toByteArray();
+	}
+}
@@ -0,0 +1,59 @@
+package org.neverfear.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.HexDump;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link HexDump#print(Appendable, byte[])} with and without a header.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexDumpBenchmark {
+
+	@Param({
+			"256", "4096"
+	})
+	public int size;
+
+	@Param({
+			"true", "false"
+	})
+	public boolean includeHeader;
+
+	private byte[] binary;
+	private HexDump hexDump;
+	private StringBuilder appendable;
+
+	@Setup
+	public void setup() {
+		this.binary = Frames.payload(this.size);
+		this.hexDump = new HexDump(32, this.includeHeader);
+		this.appendable = new StringBuilder();
+	}
+
+	@Benchmark
+	public Appendable print() throws IOException {
+		this.appendable.setLength(0);
+		return this.hexDump.print(this.appendable, this.binary);
+	}
+}
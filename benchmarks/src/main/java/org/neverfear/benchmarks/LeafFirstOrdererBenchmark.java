@@ -0,0 +1,83 @@
+package org.neverfear.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.Dependant;
+import org.neverfear.util.LeafFirstOrderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LeafFirstOrderer#order(Collection)} over large random acyclic
+ * dependency graphs.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeafFirstOrdererBenchmark {
+
+	private static final class Node
+		implements Dependant<Node> {
+
+		private final List<Node> dependencies = new ArrayList<>();
+
+		@Override
+		public Collection<Node> dependencies() {
+			return this.dependencies;
+		}
+	}
+
+	@Param({
+			"100", "1000", "5000"
+	})
+	public int nodeCount;
+
+	@Param({
+			"3"
+	})
+	public int dependenciesPerNode;
+
+	private final LeafFirstOrderer<Node> orderer = new LeafFirstOrderer<>();
+	private List<Node> nodes;
+
+	/**
+	 * Each node depends only on nodes created before it so the graph is
+	 * acyclic.
+	 */
+	@Setup
+	public void setup() {
+		final Random random = new Random(42);
+		this.nodes = new ArrayList<>(this.nodeCount);
+		for (int i = 0; i < this.nodeCount; i++) {
+			final Node node = new Node();
+			for (int d = 0; d < this.dependenciesPerNode && i > 0; d++) {
+				node.dependencies.add(this.nodes.get(random.nextInt(i)));
+			}
+			this.nodes.add(node);
+		}
+	}
+
+	@Benchmark
+	public List<Node> order() {
+		return this.orderer.order(this.nodes);
+	}
+}
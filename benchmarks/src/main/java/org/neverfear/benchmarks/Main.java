@@ -0,0 +1,38 @@
+package org.neverfear.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, except that
+ * results are written as JSON to jmh-result.json by default so runs can be
+ * compared between releases.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+public final class Main {
+
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	private Main() {}
+
+	public static void main(final String... args) throws Exception {
+		final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		final ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLineOptions);
+
+		if (!commandLineOptions.getResultFormat()
+				.hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+		if (!commandLineOptions.getResult()
+				.hasValue()) {
+			builder.result(DEFAULT_RESULT_FILE);
+		}
+
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,39 @@
+package org.neverfear.benchmarks;
+
+import static java.lang.Math.min;
+
+import java.io.InputStream;
+
+/**
+ * An endless stream that repeats the same bytes, so readers can be
+ * benchmarked without the cost of resetting their source.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+final class RepeatingInputStream
+	extends InputStream {
+
+	private final byte[] bytes;
+	private int offset = 0;
+
+	RepeatingInputStream(final byte[] bytes) {
+		super();
+		this.bytes = bytes;
+	}
+
+	@Override
+	public int read() {
+		final int value = this.bytes[this.offset] & 0xFF;
+		this.offset = (this.offset + 1) % this.bytes.length;
+		return value;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) {
+		final int size = min(len, this.bytes.length - this.offset);
+		System.arraycopy(this.bytes, this.offset, b, off, size);
+		this.offset = (this.offset + size) % this.bytes.length;
+		return size;
+	}
+}
@@ -0,0 +1,24 @@
+package org.neverfear.util;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Services keys selected by a {@link SelectorQueueGroup} worker.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+public interface SelectionKeyHandler {
+
+	/**
+	 * Called on the worker thread that owns the key's selector each time the
+	 * key is selected.
+	 * 
+	 * @param key a valid selected key
+	 * @throws IOException causes the key to be cancelled and its channel
+	 *         closed, as does a runtime exception. The worker carries on
+	 *         servicing its other keys.
+	 */
+	void onSelected(SelectionKey key) throws IOException;
+}
@@ -1,12 +1,13 @@
 package org.neverfear.util;
 
-import static java.lang.Thread.interrupted;
-import static java.lang.Thread.yield;
+import static org.neverfear.util.SelectorWaitStrategy.NO_TIMEOUT;
+import static org.neverfear.util.concurrent.Interrupts.throwIfInterrupted;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simplifies {@link Selector} interaction such that a user can just take the
@@ -18,31 +19,106 @@ import java.util.Iterator;
 public final class SelectorQueue {
 
 	private final Selector selector;
+	private final SelectorWaitStrategy waitStrategy;
+	private final TimeDevice timeDevice = TimeDevice.ticker();
 	private Iterator<SelectionKey> current = null;
+	private volatile boolean woken = false;
 
 	public SelectorQueue(final Selector selector) {
+		this(selector,
+				SelectorWaitStrategy.blocking());
+	}
+
+	public SelectorQueue(final Selector selector, final SelectorWaitStrategy waitStrategy) {
 		super();
 		this.selector = selector;
+		this.waitStrategy = waitStrategy;
 	}
 
+	/**
+	 * Take the next ready key, waiting as long as necessary.
+	 * 
+	 * @return the next ready key
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
 	public SelectionKey take() throws IOException, InterruptedException {
 		if (this.current == null || !this.current.hasNext()) {
+			select(NO_TIMEOUT, false);
+		}
+		return next();
+	}
 
-			while (this.selector.select() == 0) {
-				if (interrupted()) {
-					throw new InterruptedException();
-				}
+	/**
+	 * Take the next ready key, waiting up to the passed timeout or until
+	 * {@link #wakeup()} is called.
+	 * 
+	 * @param timeout {@link Long#MAX_VALUE} nanoseconds waits indefinitely
+	 * @param timeUnit
+	 * @return the next ready key or null if none became ready in time or the
+	 *         queue was woken
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public SelectionKey poll(final long timeout, final TimeUnit timeUnit) throws IOException, InterruptedException {
+		if (this.current == null || !this.current.hasNext()) {
+			if (!select(timeUnit.toNanos(timeout), true)) {
+				return null;
+			}
+		}
+		return next();
+	}
 
-				yield();
+	/**
+	 * Causes a thread waiting in {@link #poll(long, TimeUnit)} to return null,
+	 * or the next call to do so if no thread is waiting and no keys become
+	 * ready. {@link #take()} carries on waiting for a key.
+	 */
+	public void wakeup() {
+		this.woken = true;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * @param timeoutNanos
+	 * @param wakeable whether to return when {@link #wakeup()} is called
+	 * @return true if keys were selected, false if the timeout elapsed or the
+	 *         queue was woken
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean select(final long timeoutNanos, final boolean wakeable) throws IOException,
+			InterruptedException {
+		final long deadline = timeoutNanos == NO_TIMEOUT ? 0 : this.timeDevice.read() + timeoutNanos;
+
+		int attempt = 0;
+		long remaining = timeoutNanos;
+		while (this.waitStrategy.select(this.selector, attempt, remaining) == 0) {
+			throwIfInterrupted();
+
+			if (wakeable && this.woken) {
+				this.woken = false;
+				return false;
 			}
 
-			this.current = this.selector.selectedKeys()
-					.iterator();
-			assert this.current.hasNext();
+			attempt++;
+			if (timeoutNanos != NO_TIMEOUT) {
+				remaining = deadline - this.timeDevice.read();
+				if (remaining <= 0) {
+					return false;
+				}
+			}
 		}
 
+		this.current = this.selector.selectedKeys()
+				.iterator();
+		assert this.current.hasNext();
+		return true;
+	}
+
+	private SelectionKey next() {
 		final SelectionKey key = this.current.next();
 		this.current.remove();
 		return key;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,325 @@
+package org.neverfear.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shards channels across a number of {@link SelectorQueue}s, each with its
+ * own {@link Selector} drained by its own worker thread. Connection handling
+ * therefore scales with the number of workers rather than funnelling through
+ * a single {@link SelectorQueue#take()} caller.
+ * <p>
+ * A channel is assigned to one worker when it is registered and all of its
+ * keys are serviced by that worker's thread, so per-channel state needs no
+ * synchronisation.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+public final class SelectorQueueGroup
+	implements Closeable {
+
+	/**
+	 * How a newly registered channel is assigned to a worker.
+	 */
+	public enum Assignment {
+		/**
+		 * Each worker in turn.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * The worker with the fewest registered channels.
+		 */
+		LEAST_LOADED
+	}
+
+	/**
+	 * A channel waiting to be registered by a worker thread.
+	 */
+	private static final class Registration {
+
+		private final SelectableChannel channel;
+		private final int ops;
+		private final Object attachment;
+		private final CompletableFuture<SelectionKey> future;
+
+		Registration(final SelectableChannel channel,
+				final int ops,
+				final Object attachment,
+				final CompletableFuture<SelectionKey> future) {
+			this.channel = channel;
+			this.ops = ops;
+			this.attachment = attachment;
+			this.future = future;
+		}
+	}
+
+	private final class Worker
+		implements Runnable {
+
+		private final Selector selector;
+		private final SelectorQueue queue;
+		private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Set once the worker has stopped. It no longer takes registrations.
+		 */
+		private volatile boolean stopped = false;
+
+		/**
+		 * Number of keys registered with the selector as last observed by
+		 * the worker thread.
+		 */
+		private volatile int registered = 0;
+
+		Worker(final SelectorWaitStrategy waitStrategy) throws IOException {
+			this.selector = Selector.open();
+			this.queue = new SelectorQueue(this.selector, waitStrategy);
+		}
+
+		int load() {
+			return this.registered + this.pending.size();
+		}
+
+		void register(final Registration registration) {
+			this.pending.add(registration);
+			this.queue.wakeup();
+			if (this.stopped) {
+				// Stopped since it was selected, so nothing else will
+				failPending();
+			}
+		}
+
+		private void complete(final Registration registration) {
+			try {
+				final SelectionKey key = registration.channel.register(this.selector,
+						registration.ops,
+						registration.attachment);
+				this.registered = this.selector.keys()
+						.size();
+				registration.future.complete(key);
+			} catch (final IOException | RuntimeException e) {
+				registration.future.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Fail every registration not yet carried out. Each is either
+		 * completed or failed exactly once, whichever thread polls it.
+		 */
+		private void failPending() {
+			Registration registration;
+			while ((registration = this.pending.poll()) != null) {
+				registration.future.completeExceptionally(new IOException("Worker has stopped"));
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!SelectorQueueGroup.this.closed) {
+					Registration registration;
+					while ((registration = this.pending.poll()) != null) {
+						complete(registration);
+					}
+					this.registered = this.selector.keys()
+							.size();
+
+					final SelectionKey key = this.queue.poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+					if (key != null && key.isValid()) {
+						service(key);
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread()
+						.interrupt();
+			} catch (final IOException e) {
+				if (!SelectorQueueGroup.this.closed) {
+					throw new IllegalStateException("Selector failed", e);
+				}
+			} catch (final RuntimeException e) {
+				if (!SelectorQueueGroup.this.closed) {
+					throw e;
+				}
+			} finally {
+				close();
+			}
+		}
+
+		private void service(final SelectionKey key) {
+			try {
+				SelectorQueueGroup.this.handler.onSelected(key);
+			} catch (final IOException | RuntimeException e) {
+				// Only this channel is affected, the worker carries on
+				key.cancel();
+				try {
+					key.channel()
+							.close();
+				} catch (final IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			}
+		}
+
+		void close() {
+			this.stopped = true;
+			failPending();
+			try {
+				for (final SelectionKey key : this.selector.keys()) {
+					key.channel()
+							.close();
+				}
+				this.selector.close();
+			} catch (final IOException | RuntimeException e) {
+				// Closing anyway, nothing useful to do
+			}
+		}
+	}
+
+	private final List<Worker> workers;
+	private final List<Thread> threads;
+	private final SelectionKeyHandler handler;
+	private final Assignment assignment;
+	private final AtomicInteger next = new AtomicInteger();
+
+	private volatile boolean closed = false;
+
+	public SelectorQueueGroup(final int size,
+			final SelectionKeyHandler handler,
+			final ThreadFactory threadFactory) throws IOException {
+		this(size,
+				handler,
+				threadFactory,
+				Assignment.ROUND_ROBIN,
+				SelectorWaitStrategy.blocking());
+	}
+
+	public SelectorQueueGroup(final int size,
+			final SelectionKeyHandler handler,
+			final ThreadFactory threadFactory,
+			final Assignment assignment,
+			final SelectorWaitStrategy waitStrategy) throws IOException {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least one");
+		}
+		this.handler = handler;
+		this.assignment = assignment;
+		this.workers = new ArrayList<>(size);
+		this.threads = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			final Worker worker = new Worker(waitStrategy);
+			this.workers.add(worker);
+			this.threads.add(threadFactory.newThread(worker));
+		}
+	}
+
+	/**
+	 * Start all worker threads.
+	 */
+	public void start() {
+		for (final Thread thread : this.threads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Register a channel with one of the workers. The registration is carried
+	 * out on the worker thread.
+	 * 
+	 * @param channel must be non-blocking
+	 * @param ops
+	 * @param attachment may be null
+	 * @return completes with the key once registered, or exceptionally if
+	 *         the group is closed or the worker stops first
+	 */
+	public CompletableFuture<SelectionKey> register(final SelectableChannel channel,
+			final int ops,
+			final Object attachment) {
+		final CompletableFuture<SelectionKey> future = new CompletableFuture<>();
+		if (this.closed) {
+			future.completeExceptionally(new IOException("Group is closed"));
+			return future;
+		}
+		final Worker worker = select();
+		if (worker == null) {
+			future.completeExceptionally(new IOException("Every worker has stopped"));
+			return future;
+		}
+		worker.register(new Registration(channel, ops, attachment, future));
+		return future;
+	}
+
+	/**
+	 * @return the worker to assign a channel to, skipping stopped workers, or
+	 *         null if every worker has stopped
+	 */
+	private Worker select() {
+		switch (this.assignment) {
+			case LEAST_LOADED:
+				Worker least = null;
+				for (final Worker worker : this.workers) {
+					if (!worker.stopped && (least == null || worker.load() < least.load())) {
+						least = worker;
+					}
+				}
+				return least;
+			case ROUND_ROBIN:
+			default:
+				for (int attempt = 0; attempt < this.workers.size(); attempt++) {
+					final int index = (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.workers.size();
+					final Worker worker = this.workers.get(index);
+					if (!worker.stopped) {
+						return worker;
+					}
+				}
+				return null;
+		}
+	}
+
+	/**
+	 * @return the number of workers
+	 */
+	public int size() {
+		return this.workers.size();
+	}
+
+	/**
+	 * Stop all workers, closing their selectors and every registered channel,
+	 * and wait for the worker threads to finish.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		for (final Worker worker : this.workers) {
+			worker.queue.wakeup();
+		}
+		for (final Thread thread : this.threads) {
+			if (thread == Thread.currentThread()) {
+				continue;
+			}
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread()
+						.interrupt();
+				break;
+			}
+		}
+		// Covers workers that were never started
+		for (final Worker worker : this.workers) {
+			worker.close();
+		}
+	}
+}
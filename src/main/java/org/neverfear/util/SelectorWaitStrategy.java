@@ -0,0 +1,127 @@
+package org.neverfear.util;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines how a {@link SelectorQueue} waits for keys to become ready,
+ * trading CPU for latency.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+public abstract class SelectorWaitStrategy {
+
+	/**
+	 * Passed as the timeout when there is no deadline.
+	 */
+	public static final long NO_TIMEOUT = Long.MAX_VALUE;
+
+	private static final SelectorWaitStrategy BLOCKING = new SelectorWaitStrategy() {
+
+		@Override
+		public int select(final Selector selector, final int attempt, final long timeoutNanos) throws IOException {
+			return select(selector, timeoutNanos);
+		}
+	};
+
+	private static final SelectorWaitStrategy BUSY_SPIN = new SelectorWaitStrategy() {
+
+		@Override
+		public int select(final Selector selector, final int attempt, final long timeoutNanos) throws IOException {
+			return selector.selectNow();
+		}
+	};
+
+	/**
+	 * Blocks in {@link Selector#select()} until keys are ready. Uses no CPU
+	 * while waiting but pays the cost of being woken.
+	 */
+	public static SelectorWaitStrategy blocking() {
+		return BLOCKING;
+	}
+
+	/**
+	 * Spins on {@link Selector#selectNow()}. Lowest latency at the cost of a
+	 * core.
+	 */
+	public static SelectorWaitStrategy busySpin() {
+		return BUSY_SPIN;
+	}
+
+	/**
+	 * Spins on {@link Selector#selectNow()} for a number of attempts before
+	 * blocking. Suits bursty traffic where the next key is usually ready soon
+	 * after the last.
+	 * 
+	 * @param spins the number of non-blocking attempts before blocking
+	 */
+	public static SelectorWaitStrategy spinThenBlock(final int spins) {
+		return new SelectorWaitStrategy() {
+
+			@Override
+			public int select(final Selector selector, final int attempt, final long timeoutNanos)
+					throws IOException {
+				if (attempt < spins) {
+					return selector.selectNow();
+				}
+				return select(selector, timeoutNanos);
+			}
+		};
+	}
+
+	/**
+	 * Blocks for at most the passed timeout per attempt so that the caller
+	 * regularly regains control, e.g. to check for interruption.
+	 * 
+	 * @param timeout
+	 * @param timeUnit
+	 */
+	public static SelectorWaitStrategy timed(final long timeout, final TimeUnit timeUnit) {
+		final long timeoutNanos = timeUnit.toNanos(timeout);
+		return new SelectorWaitStrategy() {
+
+			@Override
+			public int select(final Selector selector, final int attempt, final long remainingNanos)
+					throws IOException {
+				return select(selector, min(timeoutNanos, remainingNanos));
+			}
+		};
+	}
+
+	/**
+	 * Make one attempt to select keys.
+	 * 
+	 * @param selector
+	 * @param attempt the number of attempts already made during this wait
+	 *            that selected nothing
+	 * @param timeoutNanos the longest this attempt may block for or
+	 *            {@link #NO_TIMEOUT}
+	 * @return the number of keys selected, which may be zero
+	 * @throws IOException
+	 */
+	public abstract int select(Selector selector, int attempt, long timeoutNanos) throws IOException;
+
+	/**
+	 * Blocks for at most the passed timeout.
+	 * 
+	 * @param selector
+	 * @param timeoutNanos the longest to block for or {@link #NO_TIMEOUT}
+	 * @return the number of keys selected
+	 * @throws IOException
+	 */
+	protected static int select(final Selector selector, final long timeoutNanos) throws IOException {
+		if (timeoutNanos == NO_TIMEOUT) {
+			return selector.select();
+		}
+		if (timeoutNanos <= 0) {
+			return selector.selectNow();
+		}
+		// Zero means forever to select(long) so always block for at least 1ms
+		return selector.select(max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+	}
+}
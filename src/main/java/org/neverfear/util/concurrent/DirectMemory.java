@@ -0,0 +1,177 @@
+package org.neverfear.util.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Volatile and ordered access to off heap memory, for structures shared
+ * between threads or processes through a direct or mapped buffer, which
+ * plain {@link ByteBuffer} access gives no ordering guarantees for.
+ * <p>
+ * Backed by {@code sun.misc.Unsafe}, looked up reflectively into method
+ * handles so that nothing refers to it at compile time. Addresses are not
+ * checked: callers must stay within a buffer they keep reachable.
+ *
+ * @author doug@neverfear.org
+ *
+ */
+public final class DirectMemory {
+
+	private static final MethodHandle GET_LONG;
+	private static final MethodHandle GET_INT;
+	private static final MethodHandle PUT_INT;
+	private static final MethodHandle GET_INT_VOLATILE;
+	private static final MethodHandle PUT_ORDERED_INT;
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle PUT_ORDERED_LONG;
+	private static final MethodHandle SET_MEMORY;
+
+	/**
+	 * The offset of {@code Buffer.address} within a buffer.
+	 */
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		try {
+			final Class<?> type = Class.forName("sun.misc.Unsafe");
+			final Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			final Object unsafe = field.get(null);
+
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			GET_LONG = lookup.findVirtual(type, "getLong", MethodType.methodType(long.class, Object.class, long.class))
+					.bindTo(unsafe);
+			GET_INT = lookup.findVirtual(type, "getInt", MethodType.methodType(int.class, long.class))
+					.bindTo(unsafe);
+			PUT_INT = lookup.findVirtual(type, "putInt", MethodType.methodType(void.class, long.class, int.class))
+					.bindTo(unsafe);
+			GET_INT_VOLATILE = lookup.findVirtual(type,
+					"getIntVolatile",
+					MethodType.methodType(int.class, Object.class, long.class))
+					.bindTo(unsafe);
+			PUT_ORDERED_INT = lookup.findVirtual(type,
+					"putOrderedInt",
+					MethodType.methodType(void.class, Object.class, long.class, int.class))
+					.bindTo(unsafe);
+			GET_LONG_VOLATILE = lookup.findVirtual(type,
+					"getLongVolatile",
+					MethodType.methodType(long.class, Object.class, long.class))
+					.bindTo(unsafe);
+			PUT_ORDERED_LONG = lookup.findVirtual(type,
+					"putOrderedLong",
+					MethodType.methodType(void.class, Object.class, long.class, long.class))
+					.bindTo(unsafe);
+			SET_MEMORY = lookup.findVirtual(type,
+					"setMemory",
+					MethodType.methodType(void.class, long.class, long.class, byte.class))
+					.bindTo(unsafe);
+
+			final MethodHandle objectFieldOffset = lookup.findVirtual(type,
+					"objectFieldOffset",
+					MethodType.methodType(long.class, Field.class));
+			ADDRESS_OFFSET = (long) objectFieldOffset.invoke(unsafe, Buffer.class.getDeclaredField("address"));
+		} catch (final Throwable e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private DirectMemory() {}
+
+	/**
+	 * @param buffer a direct or mapped buffer
+	 * @return the address of the first byte of its memory
+	 * @throws IllegalArgumentException if the buffer is not direct
+	 */
+	public static long address(final ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("Not a direct buffer: " + buffer);
+		}
+		try {
+			return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static int getInt(final long address) {
+		try {
+			return (int) GET_INT.invokeExact(address);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static void putInt(final long address, final int value) {
+		try {
+			PUT_INT.invokeExact(address, value);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static int getIntVolatile(final long address) {
+		try {
+			return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Stores the value after every store before it, without waiting for it
+	 * to become visible.
+	 */
+	public static void putOrderedInt(final long address, final int value) {
+		try {
+			PUT_ORDERED_INT.invokeExact((Object) null, address, value);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public static long getLongVolatile(final long address) {
+		try {
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Stores the value after every store before it, without waiting for it
+	 * to become visible.
+	 */
+	public static void putOrderedLong(final long address, final long value) {
+		try {
+			PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * @param address
+	 * @param length the number of bytes to zero
+	 */
+	public static void zero(final long address, final long length) {
+		try {
+			SET_MEMORY.invokeExact(address, length, (byte) 0);
+		} catch (final Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	private static RuntimeException rethrow(final Throwable e) {
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		throw new IllegalStateException(e);
+	}
+}
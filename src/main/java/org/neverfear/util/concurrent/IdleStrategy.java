@@ -0,0 +1,78 @@
+package org.neverfear.util.concurrent;
+
+import static java.lang.Math.min;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Determines how a thread waits when it has no work, e.g. a consumer polling
+ * an empty queue or a producer waiting for space, trading CPU for latency.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+public abstract class IdleStrategy {
+
+	private static final IdleStrategy BUSY_SPIN = new IdleStrategy() {
+
+		@Override
+		public void idle(final int attempt) {}
+	};
+
+	private static final IdleStrategy YIELDING = new IdleStrategy() {
+
+		@Override
+		public void idle(final int attempt) {
+			Thread.yield();
+		}
+	};
+
+	/**
+	 * Returns immediately. Lowest latency at the cost of a core.
+	 */
+	public static IdleStrategy busySpin() {
+		return BUSY_SPIN;
+	}
+
+	/**
+	 * Yields to other runnable threads.
+	 */
+	public static IdleStrategy yielding() {
+		return YIELDING;
+	}
+
+	/**
+	 * Spins, then yields, then parks for exponentially longer periods up to a
+	 * maximum. Suits bursty work where the next item usually arrives soon
+	 * after the last.
+	 * 
+	 * @param spins the number of attempts that return immediately
+	 * @param yields the number of attempts that then yield
+	 * @param maxParkNanos the longest period to park for
+	 */
+	public static IdleStrategy backoff(final int spins, final int yields, final long maxParkNanos) {
+		return new IdleStrategy() {
+
+			@Override
+			public void idle(final int attempt) {
+				if (attempt < spins) {
+					return;
+				}
+				if (attempt < spins + yields) {
+					Thread.yield();
+					return;
+				}
+				final int shift = min(attempt - spins - yields, Long.SIZE - 2);
+				LockSupport.parkNanos(min(1L << shift, maxParkNanos));
+			}
+		};
+	}
+
+	/**
+	 * Wait for work.
+	 * 
+	 * @param attempt the number of consecutive times the caller has found no
+	 *            work, starting from zero
+	 */
+	public abstract void idle(int attempt);
+}
@@ -0,0 +1,85 @@
+package org.neverfear.util.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates virtual threads where the running JVM supports them, and platform
+ * threads otherwise. The virtual thread API is looked up reflectively so the
+ * library still builds for, and runs on, older JVMs.
+ * 
+ * @author doug@neverfear.org
+ * 
+ */
+public final class VirtualThreads {
+
+	/**
+	 * Thread.ofVirtual(), or null if virtual threads are not available.
+	 */
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method FACTORY;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			name = builderClass.getMethod("name", String.class, long.class);
+			factory = builderClass.getMethod("factory");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			// Fails if virtual threads are a preview feature that is not enabled
+			ofVirtual.invoke(null);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+	}
+
+	private VirtualThreads() {}
+
+	/**
+	 * @return true if {@link #factory(String)} creates virtual threads
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Returns a factory of virtual threads if they are available, otherwise
+	 * of daemon platform threads. Threads are named with the prefix followed
+	 * by a sequence number.
+	 * 
+	 * @param prefix
+	 * @return the thread factory
+	 */
+	public static ThreadFactory factory(final String prefix) {
+		if (OF_VIRTUAL != null) {
+			try {
+				final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (final ReflectiveOperationException e) {
+				throw new IllegalStateException("Virtual thread builder failed", e);
+			}
+		}
+		return platformFactory(prefix);
+	}
+
+	/**
+	 * @param prefix
+	 * @return a factory of daemon platform threads named with the prefix
+	 *         followed by a sequence number
+	 */
+	public static ThreadFactory platformFactory(final String prefix) {
+		final AtomicLong sequence = new AtomicLong();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, prefix + sequence.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
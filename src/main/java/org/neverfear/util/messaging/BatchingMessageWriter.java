@@ -0,0 +1,226 @@
+package org.neverfear.util.messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.TimeDevice;
+
+/**
+ * Coalesces frames into a single outbound buffer which is passed to a
+ * transport in one write. The batch is written when:
+ * <ul>
+ * <li>the next frame would not fit in the batch
+ * <li>a frame is written after the oldest frame in the batch has lingered for
+ * longer than the maximum linger time, or {@link #flushIfExpired()} is called
+ * after that time
+ * <li>{@link #flush()} or {@link #close()} is called
+ * </ul>
+ * Frames larger than the batch are written straight through to the transport
+ * after any pending batch. The framing of the transport is bypassed, only its
+ * {@link LengthPrefixedMessageWriter#doWrite(ByteBuffer[])} is used.
+ * <p>
+ * Nothing is written in the background so callers that write infrequently
+ * should call {@link #flushIfExpired()} periodically.
+ * <p>
+ * The batch is drawn from an allocator, so writers that come and go can share
+ * a pool, and is returned to it on {@link #close()}.
+ */
+public final class BatchingMessageWriter
+	extends LengthPrefixedMessageWriter {
+
+	public static final int DEFAULT_SIZE = 64 * 1024;
+	public static final long DEFAULT_MAX_LINGER_MICROS = 100;
+
+	private final LengthPrefixedMessageWriter transport;
+	private final TimeDevice timeDevice;
+
+	/**
+	 * Maximum linger time in the units of the {@link #timeDevice}.
+	 */
+	private final long maxLinger;
+
+	private final ByteBufferAllocator allocator;
+	private final ByteBuffer batch;
+	private final ByteBuffer[] batchArray;
+
+	private boolean closed = false;
+
+	/**
+	 * Time the first frame was added to the current batch.
+	 */
+	private long batchStart;
+
+	public BatchingMessageWriter(final LengthPrefixedMessageWriter transport) {
+		this(transport,
+				DEFAULT_SIZE,
+				DEFAULT_MAX_LINGER_MICROS,
+				TimeUnit.MICROSECONDS);
+	}
+
+	public BatchingMessageWriter(final LengthPrefixedMessageWriter transport,
+			final int size,
+			final long maxLinger,
+			final TimeUnit timeUnit) {
+		this(transport,
+				size,
+				maxLinger,
+				timeUnit,
+				TimeDevice.ticker());
+	}
+
+	public BatchingMessageWriter(final LengthPrefixedMessageWriter transport,
+			final int size,
+			final long maxLinger,
+			final TimeUnit timeUnit,
+			final TimeDevice timeDevice) {
+		this(transport,
+				size,
+				maxLinger,
+				timeUnit,
+				timeDevice,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param transport
+	 * @param size the minimum size of the batch. A pooled allocator may
+	 *            return a larger buffer, all of which is used.
+	 * @param maxLinger
+	 * @param timeUnit
+	 * @param timeDevice
+	 * @param allocator supplies the batch
+	 */
+	public BatchingMessageWriter(final LengthPrefixedMessageWriter transport,
+			final int size,
+			final long maxLinger,
+			final TimeUnit timeUnit,
+			final TimeDevice timeDevice,
+			final ByteBufferAllocator allocator) {
+		super(transport.lengthPrefix(), transport.frameChecksum());
+		this.transport = transport;
+		this.timeDevice = timeDevice;
+		this.maxLinger = timeDevice.timeUnit()
+				.convert(maxLinger, timeUnit);
+		this.allocator = allocator;
+		this.batch = allocator.allocate(size);
+		this.batch.clear();
+		this.batchArray = new ByteBuffer[] {
+				this.batch
+		};
+	}
+
+	@Override
+	protected void doWrite(final ByteBuffer[] buffers) throws IOException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+		int total = 0;
+		for (final ByteBuffer buffer : buffers) {
+			total += buffer.remaining();
+		}
+
+		if (total > this.batch.remaining()) {
+			writeBatch();
+		}
+
+		if (total > this.batch.capacity()) {
+			this.transport.doWrite(buffers);
+			return;
+		}
+
+		final long now = this.timeDevice.read();
+		if (this.batch.position() == 0) {
+			this.batchStart = now;
+		}
+
+		for (final ByteBuffer buffer : buffers) {
+			this.batch.put(buffer);
+		}
+
+		if (!this.batch.hasRemaining() || now - this.batchStart >= this.maxLinger) {
+			writeBatch();
+		}
+	}
+
+	/**
+	 * Writes the pending batch if the oldest frame within it has lingered for
+	 * at least the maximum linger time.
+	 * 
+	 * @return true if a batch was written
+	 * @throws IOException
+	 */
+	public boolean flushIfExpired() throws IOException {
+		lockInterruptibly();
+		try {
+			if (this.closed || this.batch.position() == 0) {
+				return false;
+			}
+			if (this.timeDevice.read() - this.batchStart < this.maxLinger) {
+				return false;
+			}
+			writeBatch();
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes waiting to be written
+	 */
+	public int pending() {
+		this.lock.lock();
+		try {
+			return this.closed ? 0 : this.batch.position();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		lockInterruptibly();
+		try {
+			writeBatch();
+			this.transport.flush();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			try {
+				flush();
+			} finally {
+				this.closed = true;
+				try {
+					this.transport.close();
+				} finally {
+					this.allocator.release(this.batch);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private void writeBatch() throws IOException {
+		if (this.closed || this.batch.position() == 0) {
+			return;
+		}
+		this.batch.flip();
+		try {
+			this.transport.doWrite(this.batchArray);
+		} finally {
+			this.batch.clear();
+		}
+	}
+}
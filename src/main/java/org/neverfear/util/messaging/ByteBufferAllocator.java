@@ -0,0 +1,76 @@
+package org.neverfear.util.messaging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the buffers used by the messaging readers and writers.
+ * <p>
+ * Direct buffers let channel reads and writes go straight to and from the
+ * buffer, avoiding the temporary direct buffer and copy the JDK otherwise
+ * makes for heap buffers. They are more expensive to allocate so are best
+ * long lived or pooled.
+ */
+public abstract class ByteBufferAllocator {
+
+	private static final ByteBufferAllocator HEAP_ALLOCATOR = new ByteBufferAllocator(false) {
+
+		@Override
+		public ByteBuffer allocate(final int capacity) {
+			return ByteBuffer.allocate(capacity);
+		}
+	};
+
+	private static final ByteBufferAllocator DIRECT_ALLOCATOR = new ByteBufferAllocator(true) {
+
+		@Override
+		public ByteBuffer allocate(final int capacity) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+	};
+
+	public static ByteBufferAllocator heap() {
+		return HEAP_ALLOCATOR;
+	}
+
+	public static ByteBufferAllocator direct() {
+		return DIRECT_ALLOCATOR;
+	}
+
+	private final boolean direct;
+
+	public ByteBufferAllocator(final boolean direct) {
+		super();
+		this.direct = direct;
+	}
+
+	/**
+	 * @param capacity
+	 * @return a cleared buffer of at least the requested capacity, with the
+	 *         limit set to the requested capacity
+	 */
+	public abstract ByteBuffer allocate(int capacity);
+
+	/**
+	 * Return a buffer allocated by this allocator once it is no longer used.
+	 * The buffer must not be used afterwards. Does nothing unless the
+	 * allocator pools buffers.
+	 * 
+	 * @param buffer
+	 */
+	public void release(final ByteBuffer buffer) {}
+
+	/**
+	 * @return an allocator of the same kind of buffer which does not pool,
+	 *         for buffers that live as long as their owner
+	 */
+	public ByteBufferAllocator unpooled() {
+		return this.direct ? DIRECT_ALLOCATOR : HEAP_ALLOCATOR;
+	}
+
+	/**
+	 * @return true if allocated buffers are direct
+	 */
+	public final boolean isDirect() {
+		return this.direct;
+	}
+}
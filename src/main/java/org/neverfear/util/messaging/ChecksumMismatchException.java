@@ -0,0 +1,37 @@
+package org.neverfear.util.messaging;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the checksum trailer of a frame does not match the frame. The
+ * frame is consumed, trailer and all, so later frames may still be read.
+ */
+public final class ChecksumMismatchException
+	extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int expected;
+	private final int actual;
+
+	public ChecksumMismatchException(final int expected, final int actual) {
+		super("Frame checksum " + Integer.toHexString(actual) + " does not match trailer "
+				+ Integer.toHexString(expected));
+		this.expected = expected;
+		this.actual = actual;
+	}
+
+	/**
+	 * @return the checksum given by the frame's trailer
+	 */
+	public int expected() {
+		return this.expected;
+	}
+
+	/**
+	 * @return the checksum of the frame as read
+	 */
+	public int actual() {
+		return this.actual;
+	}
+}
@@ -0,0 +1,247 @@
+package org.neverfear.util.messaging;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C, the Castagnoli polynomial used by iSCSI, ext4 and SCTP.
+ * <p>
+ * Where the runtime has {@code java.util.zip.CRC32C}, from Java 9, the
+ * {@link #create() default} implementation delegates to it, which the JIT
+ * replaces with the CPU's CRC32 instructions. It is looked up reflectively so
+ * that this class still runs on Java 8, where the {@link #portable()
+ * portable} implementation, a table driven slicing-by-8 loop, is used
+ * instead. Both compute the same values.
+ * <p>
+ * Instances are stateful and not thread safe.
+ */
+public abstract class Crc32c
+	implements Checksum {
+
+	/**
+	 * Creates a {@code java.util.zip.CRC32C}, or null if there is none.
+	 */
+	private static final MethodHandle JDK_CONSTRUCTOR;
+
+	/**
+	 * Invokes {@code update(ByteBuffer)} on a {@code java.util.zip.CRC32C}.
+	 */
+	private static final MethodHandle JDK_UPDATE;
+
+	static {
+		MethodHandle constructor = null;
+		MethodHandle update = null;
+		try {
+			final Class<?> type = Class.forName("java.util.zip.CRC32C");
+			final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Checksum.class));
+			update = lookup.findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+					.asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+		} catch (final ReflectiveOperationException e) {
+			constructor = null;
+			update = null;
+		}
+		JDK_CONSTRUCTOR = constructor;
+		JDK_UPDATE = update;
+	}
+
+	/**
+	 * @return true if {@link #create()} delegates to
+	 *         {@code java.util.zip.CRC32C}
+	 */
+	public static boolean isIntrinsic() {
+		return JDK_CONSTRUCTOR != null;
+	}
+
+	/**
+	 * @return the fastest implementation available to this runtime
+	 */
+	public static Crc32c create() {
+		if (JDK_CONSTRUCTOR == null) {
+			return portable();
+		}
+		try {
+			return new Jdk((Checksum) JDK_CONSTRUCTOR.invokeExact());
+		} catch (final RuntimeException | Error e) {
+			throw e;
+		} catch (final Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the pure Java implementation, regardless of runtime
+	 */
+	public static Crc32c portable() {
+		return new Portable();
+	}
+
+	/**
+	 * Updates the checksum with the remaining bytes of the buffer. The
+	 * position is advanced to the limit.
+	 * 
+	 * @param buffer
+	 */
+	public abstract void update(ByteBuffer buffer);
+
+	/**
+	 * @return the checksum as an int, as written in a frame trailer
+	 */
+	public final int intValue() {
+		return (int) getValue();
+	}
+
+	private static final class Jdk
+		extends Crc32c {
+
+		private final Checksum delegate;
+
+		Jdk(final Checksum delegate) {
+			super();
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			try {
+				JDK_UPDATE.invokeExact(this.delegate, buffer);
+			} catch (final RuntimeException | Error e) {
+				throw e;
+			} catch (final Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void update(final int b) {
+			this.delegate.update(b);
+		}
+
+		@Override
+		public void update(final byte[] bytes, final int offset, final int length) {
+			this.delegate.update(bytes, offset, length);
+		}
+
+		@Override
+		public long getValue() {
+			return this.delegate.getValue();
+		}
+
+		@Override
+		public void reset() {
+			this.delegate.reset();
+		}
+	}
+
+	private static final class Portable
+		extends Crc32c {
+
+		/**
+		 * The reversed Castagnoli polynomial.
+		 */
+		private static final int POLYNOMIAL = 0x82F63B78;
+
+		/**
+		 * TABLE[n][b] is the CRC of byte b followed by n zero bytes, so eight
+		 * bytes are folded in with eight independent lookups.
+		 */
+		private static final int[][] TABLE = new int[8][256];
+
+		static {
+			for (int b = 0; b < 256; b++) {
+				int crc = b;
+				for (int bit = 0; bit < 8; bit++) {
+					crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+				}
+				TABLE[0][b] = crc;
+			}
+			for (int b = 0; b < 256; b++) {
+				for (int n = 1; n < 8; n++) {
+					final int previous = TABLE[n - 1][b];
+					TABLE[n][b] = (previous >>> 8) ^ TABLE[0][previous & 0xFF];
+				}
+			}
+		}
+
+		/**
+		 * The inverted CRC of the bytes so far.
+		 */
+		private int crc = ~0;
+
+		@Override
+		public void update(final int b) {
+			this.crc = (this.crc >>> 8) ^ TABLE[0][(this.crc ^ b) & 0xFF];
+		}
+
+		@Override
+		public void update(final byte[] bytes, final int offset, final int length) {
+			int crc = this.crc;
+			int index = offset;
+			final int end = offset + length;
+			for (; index + Long.BYTES <= end; index += Long.BYTES) {
+				final int low = (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8
+						| (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+				final int high = (bytes[index + 4] & 0xFF) | (bytes[index + 5] & 0xFF) << 8
+						| (bytes[index + 6] & 0xFF) << 16 | (bytes[index + 7] & 0xFF) << 24;
+				crc = fold(crc ^ low, high);
+			}
+			for (; index < end; index++) {
+				crc = (crc >>> 8) ^ TABLE[0][(crc ^ bytes[index]) & 0xFF];
+			}
+			this.crc = crc;
+		}
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			if (buffer.hasArray()) {
+				update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+				return;
+			}
+
+			int crc = this.crc;
+			int index = buffer.position();
+			final int end = buffer.limit();
+			final boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+			for (; index + Long.BYTES <= end; index += Long.BYTES) {
+				long word = buffer.getLong(index);
+				if (!littleEndian) {
+					word = Long.reverseBytes(word);
+				}
+				crc = fold(crc ^ (int) word, (int) (word >>> 32));
+			}
+			for (; index < end; index++) {
+				crc = (crc >>> 8) ^ TABLE[0][(crc ^ buffer.get(index)) & 0xFF];
+			}
+			buffer.position(end);
+			this.crc = crc;
+		}
+
+		/**
+		 * @param low the first four bytes, little endian, already combined
+		 *            with the CRC
+		 * @param high the next four bytes, little endian
+		 * @return the CRC after all eight
+		 */
+		private static int fold(final int low, final int high) {
+			return TABLE[7][low & 0xFF] ^ TABLE[6][(low >>> 8) & 0xFF] ^ TABLE[5][(low >>> 16) & 0xFF]
+					^ TABLE[4][low >>> 24] ^ TABLE[3][high & 0xFF] ^ TABLE[2][(high >>> 8) & 0xFF]
+					^ TABLE[1][(high >>> 16) & 0xFF] ^ TABLE[0][high >>> 24];
+		}
+
+		@Override
+		public long getValue() {
+			return ~this.crc & 0xFFFFFFFFL;
+		}
+
+		@Override
+		public void reset() {
+			this.crc = ~0;
+		}
+	}
+}
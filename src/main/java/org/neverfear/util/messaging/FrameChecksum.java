@@ -0,0 +1,81 @@
+package org.neverfear.util.messaging;
+
+/**
+ * Whether frames carry a checksum trailer after the payload.
+ * <p>
+ * With the {@link #crc32c() CRC-32C} trailer each frame is followed by a 4
+ * byte big endian CRC-32C of the whole frame, the length prefix included, so
+ * that a corrupt length is detected as well as a corrupt payload. Readers
+ * verify the trailer as the frame is read, checksumming each chunk as it is
+ * copied rather than making a second pass over the payload. A reader and a
+ * writer must agree on the checksum as per the length prefix.
+ * <p>
+ * Checksums are stateless and may be shared.
+ */
+public abstract class FrameChecksum {
+
+	private static final FrameChecksum NONE = new FrameChecksum() {
+
+		@Override
+		public int size() {
+			return 0;
+		}
+
+		@Override
+		public Crc32c newChecksum() {
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return "FrameChecksum [none]";
+		}
+	};
+
+	private static final FrameChecksum CRC32C = new FrameChecksum() {
+
+		@Override
+		public int size() {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public Crc32c newChecksum() {
+			return Crc32c.create();
+		}
+
+		@Override
+		public String toString() {
+			return "FrameChecksum [crc32c]";
+		}
+	};
+
+	FrameChecksum() {
+		super();
+	}
+
+	/**
+	 * @return no trailer, the default
+	 */
+	public static FrameChecksum none() {
+		return NONE;
+	}
+
+	/**
+	 * @return a 4 byte CRC-32C trailer
+	 */
+	public static FrameChecksum crc32c() {
+		return CRC32C;
+	}
+
+	/**
+	 * @return the number of bytes in the trailer
+	 */
+	public abstract int size();
+
+	/**
+	 * @return a running checksum for a single reader or writer, or null if
+	 *         frames have no trailer
+	 */
+	public abstract Crc32c newChecksum();
+}
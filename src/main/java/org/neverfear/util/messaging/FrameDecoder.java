@@ -0,0 +1,418 @@
+package org.neverfear.util.messaging;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import org.neverfear.util.SelectorQueue;
+
+/**
+ * A resumable decoder of length prefixed frames. Unlike
+ * {@link LengthPrefixedMessageReader} it never blocks waiting for bytes: it
+ * accepts whatever bytes are available, emits every frame that is complete
+ * and remembers any partial prefix or payload until more bytes arrive.
+ * <p>
+ * This makes it suitable for non-blocking channels driven by a
+ * {@link SelectorQueue}, with one decoder attached to each key:
+ * 
+ * <pre>
+ * channel.configureBlocking(false);
+ * channel.register(selector, SelectionKey.OP_READ, new FrameDecoder());
+ * ...
+ * final SelectionKey key = queue.take();
+ * final FrameDecoder decoder = (FrameDecoder) key.attachment();
+ * if (decoder.read((ReadableByteChannel) key.channel(), handler) &lt; 0) {
+ * 	key.channel().close();
+ * }
+ * </pre>
+ * 
+ * Frames that arrive whole are passed to the handler in place. Frames that
+ * arrive in pieces are assembled in a reusable scratch region that grows as
+ * required. Both the read buffer and the scratch region come from the
+ * allocator and are returned to it when the decoder is closed.
+ * <p>
+ * If frames carry a {@link FrameChecksum checksum} trailer it is verified
+ * before the frame is passed on. The checksum is updated with each piece of a
+ * frame as it arrives, so frames that arrive in pieces are not passed over
+ * twice.
+ * <p>
+ * A decoder holds per-stream state and is not thread safe.
+ */
+public final class FrameDecoder
+	implements Closeable {
+
+	public static final int DEFAULT_SIZE = 1024;
+
+	/**
+	 * Buffer used by {@link #read(ReadableByteChannel, FrameHandler)}. Left in
+	 * write mode between calls.
+	 */
+	private final ByteBuffer buffer;
+
+	private final ByteBufferAllocator allocator;
+
+	private final LengthPrefix lengthPrefix;
+
+	private final int maxFrameLength;
+
+	/**
+	 * The checksum of the current frame, or null if frames have no trailer.
+	 */
+	private final Crc32c checksum;
+
+	/**
+	 * Holds the trailer of the current frame as it arrives. Left in write
+	 * mode.
+	 */
+	private final ByteBuffer trailer;
+
+	/**
+	 * Holds a length prefix that arrives in pieces. Left in write mode.
+	 */
+	private final ByteBuffer prefix;
+
+	/**
+	 * The length of the current frame or {@link LengthPrefix#INCOMPLETE} if
+	 * its prefix has not been decoded.
+	 */
+	private int length = LengthPrefix.INCOMPLETE;
+
+	/**
+	 * Assembles frames that arrive in pieces. Empty until first needed, after
+	 * which it comes from the allocator.
+	 */
+	private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+	private boolean closed;
+
+	public FrameDecoder() {
+		this(DEFAULT_SIZE);
+	}
+
+	public FrameDecoder(final int size) {
+		this(size,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param size the capacity of the buffer channels are read into
+	 * @param allocator a direct allocator lets channel reads land straight in
+	 *            the buffer
+	 */
+	public FrameDecoder(final int size, final ByteBufferAllocator allocator) {
+		this(size,
+				allocator,
+				LengthPrefix.standard());
+	}
+
+	/**
+	 * @param size the capacity of the buffer channels are read into
+	 * @param allocator
+	 * @param lengthPrefix how frame lengths are encoded
+	 */
+	public FrameDecoder(final int size, final ByteBufferAllocator allocator, final LengthPrefix lengthPrefix) {
+		this(size,
+				allocator,
+				lengthPrefix,
+				LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * @param size the capacity of the buffer channels are read into
+	 * @param allocator
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param maxFrameLength the longest frame accepted. Bounds the memory a
+	 *            corrupt length prefix can make the decoder allocate.
+	 */
+	public FrameDecoder(final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength) {
+		this(size,
+				allocator,
+				lengthPrefix,
+				maxFrameLength,
+				FrameChecksum.none());
+	}
+
+	/**
+	 * @param size the capacity of the buffer channels are read into
+	 * @param allocator
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param maxFrameLength the longest frame accepted
+	 * @param frameChecksum whether frames are followed by a checksum, which
+	 *            is verified before the frame is passed on
+	 */
+	public FrameDecoder(final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength,
+			final FrameChecksum frameChecksum) {
+		this.maxFrameLength = maxFrameLength;
+		this.checksum = frameChecksum.newChecksum();
+		this.trailer = ByteBuffer.allocate(frameChecksum.size());
+		this.buffer = allocator.allocate(size);
+		this.allocator = allocator;
+		this.lengthPrefix = lengthPrefix;
+		this.prefix = ByteBuffer.allocate(lengthPrefix.maxSize());
+	}
+
+	/**
+	 * Reads whatever bytes are available from the channel and decodes them.
+	 * At most one read is issued so that a single busy channel cannot starve
+	 * others sharing the same thread.
+	 * 
+	 * @param channel
+	 * @param handler receives each complete frame
+	 * @return the number of frames decoded or -1 if EOF was reached
+	 * @throws EOFException if EOF was reached part way through a frame
+	 * @throws ClosedChannelException if the decoder is closed
+	 * @throws IOException
+	 */
+	public int read(final ReadableByteChannel channel, final FrameHandler handler) throws IOException {
+		checkOpen();
+		final int readCount = channel.read(this.buffer);
+
+		final int frameCount;
+		this.buffer.flip();
+		try {
+			frameCount = decode(this.buffer, handler);
+		} finally {
+			this.buffer.compact();
+		}
+
+		if (readCount < 0) {
+			if (isPartial()) {
+				throw new EOFException("EOF reached before message was completely read");
+			}
+			return -1;
+		}
+		return frameCount;
+	}
+
+	/**
+	 * Decodes all remaining bytes of the source.
+	 * 
+	 * @param source consumed entirely
+	 * @param handler receives each complete frame
+	 * @return the number of frames decoded
+	 * @throws FrameTooLargeException if a frame is longer than the maximum
+	 *         frame length. The stream cannot be decoded further.
+	 * @throws ChecksumMismatchException if a frame does not match its
+	 *         trailer. The frame is skipped and the source left positioned
+	 *         after it, so decoding may continue.
+	 * @throws ClosedChannelException if the decoder is closed
+	 * @throws IOException
+	 */
+	public int decode(final ByteBuffer source, final FrameHandler handler) throws IOException {
+		checkOpen();
+		int frameCount = 0;
+		while (true) {
+			if (this.length == LengthPrefix.INCOMPLETE) {
+				if (!decodeLength(source)) {
+					return frameCount;
+				}
+			}
+
+			if (this.scratch.position() == 0 && this.trailer.position() == 0
+					&& source.remaining() >= this.length + this.trailer.capacity()) {
+				// Whole frame is available so hand it over in place
+				final int limit = source.limit();
+				final int end = source.position() + this.length;
+				reset();
+				updateChecksum(source, source.position(), end);
+				for (int i = 0; i < this.trailer.capacity(); i++) {
+					this.trailer.put(source.get(end + i));
+				}
+				verifyTrailer(source, end + this.trailer.capacity());
+				source.limit(end);
+				try {
+					handler.onFrame(source);
+				} finally {
+					source.limit(limit);
+					source.position(end + this.trailer.capacity());
+				}
+				frameCount++;
+				continue;
+			}
+
+			ensureScratch();
+
+			final int size = min(source.remaining(), this.length - this.scratch.position());
+			updateChecksum(source, source.position(), source.position() + size);
+			final int limit = source.limit();
+			source.limit(source.position() + size);
+			this.scratch.put(source);
+			source.limit(limit);
+
+			if (this.scratch.position() < this.length) {
+				return frameCount;
+			}
+
+			while (this.trailer.hasRemaining() && source.hasRemaining()) {
+				this.trailer.put(source.get());
+			}
+			if (this.trailer.hasRemaining()) {
+				return frameCount;
+			}
+
+			this.scratch.flip();
+			reset();
+			try {
+				verifyTrailer(source, source.position());
+				handler.onFrame(this.scratch);
+			} finally {
+				this.scratch.clear();
+			}
+			frameCount++;
+		}
+	}
+
+	/**
+	 * @return true if part of a frame has been decoded
+	 */
+	public boolean isPartial() {
+		return this.length != LengthPrefix.INCOMPLETE || this.prefix.position() > 0;
+	}
+
+	/**
+	 * Returns the read buffer and scratch region to the allocator. The
+	 * decoder cannot be used afterwards. Closing more than once has no
+	 * effect.
+	 */
+	@Override
+	public void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.allocator.release(this.buffer);
+		releaseScratch();
+		this.scratch = ByteBuffer.allocate(0);
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	/**
+	 * Adds the bytes of the source between the passed indices to the
+	 * checksum of the current frame, if any, leaving the source unchanged.
+	 */
+	private void updateChecksum(final ByteBuffer source, final int from, final int to) {
+		if (this.checksum == null || from == to) {
+			return;
+		}
+		final int position = source.position();
+		final int limit = source.limit();
+		source.limit(to);
+		source.position(from);
+		this.checksum.update(source);
+		source.limit(limit);
+		source.position(position);
+	}
+
+	/**
+	 * Compares the trailer of the current frame, once it has all arrived,
+	 * with the checksum of the frame, and clears it for the next frame.
+	 * 
+	 * @param source
+	 * @param next where the source is left if they differ, after the frame
+	 * @throws ChecksumMismatchException if they differ
+	 */
+	private void verifyTrailer(final ByteBuffer source, final int next) throws ChecksumMismatchException {
+		if (this.checksum == null) {
+			return;
+		}
+		final int expected = this.trailer.getInt(0);
+		final int actual = this.checksum.intValue();
+		this.trailer.clear();
+		if (expected != actual) {
+			source.position(next);
+			throw new ChecksumMismatchException(expected, actual);
+		}
+	}
+
+	/**
+	 * @param source
+	 * @return true if the length prefix is complete
+	 * @throws StreamCorruptedException if the length is invalid
+	 * @throws FrameTooLargeException
+	 */
+	private boolean decodeLength(final ByteBuffer source) throws IOException {
+		if (this.prefix.position() == 0) {
+			if (this.checksum != null) {
+				this.checksum.reset();
+			}
+			final int start = source.position();
+			this.length = this.lengthPrefix.decode(source);
+			if (this.length != LengthPrefix.INCOMPLETE) {
+				checkFrameLength();
+				updateChecksum(source, start, source.position());
+				return true;
+			}
+			// Fewer bytes than the largest prefix remain
+			this.prefix.put(source);
+			return false;
+		}
+
+		while (source.hasRemaining()) {
+			this.prefix.put(source.get());
+			this.prefix.flip();
+			this.length = this.lengthPrefix.decode(this.prefix);
+			if (this.length != LengthPrefix.INCOMPLETE) {
+				checkFrameLength();
+				// Bytes the prefix did not consume belong to the frame, and
+				// follow it in the checksum
+				updateChecksum(this.prefix, 0, this.prefix.limit());
+				ensureScratch();
+				this.scratch.put(this.prefix);
+				this.prefix.clear();
+				return true;
+			}
+			this.prefix.position(this.prefix.limit());
+			this.prefix.limit(this.prefix.capacity());
+		}
+		return false;
+	}
+
+	private void checkFrameLength() throws FrameTooLargeException {
+		if (this.length > this.maxFrameLength) {
+			throw new FrameTooLargeException(this.length, this.maxFrameLength);
+		}
+	}
+
+	/**
+	 * Grows the scratch region to hold the current frame, keeping its
+	 * contents.
+	 */
+	private void ensureScratch() {
+		if (this.scratch.capacity() < this.length) {
+			final ByteBuffer grown = this.allocator.allocate(max(this.length, this.scratch.capacity() * 2));
+			grown.limit(grown.capacity());
+			this.scratch.flip();
+			grown.put(this.scratch);
+			releaseScratch();
+			this.scratch = grown;
+		}
+	}
+
+	private void releaseScratch() {
+		if (this.scratch.capacity() > 0) {
+			this.allocator.release(this.scratch);
+		}
+	}
+
+	private void reset() {
+		this.length = LengthPrefix.INCOMPLETE;
+	}
+}
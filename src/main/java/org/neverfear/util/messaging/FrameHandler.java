@@ -0,0 +1,22 @@
+package org.neverfear.util.messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives complete frames from a decoder.
+ */
+public interface FrameHandler {
+
+	/**
+	 * Called once for each complete frame. The position of the buffer is the
+	 * start of the payload and the limit is the end of the payload.
+	 * 
+	 * The buffer is only valid for the duration of the call and must not be
+	 * retained. Copy the payload if it is needed afterwards.
+	 * 
+	 * @param frame
+	 * @throws IOException
+	 */
+	void onFrame(ByteBuffer frame) throws IOException;
+}
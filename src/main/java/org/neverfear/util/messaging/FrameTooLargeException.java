@@ -0,0 +1,36 @@
+package org.neverfear.util.messaging;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of allocating for a frame longer than the configured
+ * maximum. A corrupt length prefix typically shows up this way.
+ */
+public final class FrameTooLargeException
+	extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int length;
+	private final int maxLength;
+
+	public FrameTooLargeException(final int length, final int maxLength) {
+		super("Frame of " + length + " bytes exceeds the maximum of " + maxLength);
+		this.length = length;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @return the length given by the frame's prefix
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * @return the largest frame that may be read
+	 */
+	public int maxLength() {
+		return this.maxLength;
+	}
+}
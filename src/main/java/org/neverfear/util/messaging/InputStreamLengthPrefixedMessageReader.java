@@ -3,37 +3,90 @@ package org.neverfear.util.messaging;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 public final class InputStreamLengthPrefixedMessageReader
 	extends LengthPrefixedMessageReader {
 
 	public static final int DEFAULT_SIZE = 1024;
 
-	private final byte[] byteArray;
 	private final InputStream inputStream;
 
+	/**
+	 * Created on first use to read into destinations without an accessible
+	 * array, such as direct buffers.
+	 */
+	private ReadableByteChannel channel;
+
 	public InputStreamLengthPrefixedMessageReader(final InputStream inputStream) {
 		this(inputStream,
 				DEFAULT_SIZE);
 	}
 
 	public InputStreamLengthPrefixedMessageReader(final InputStream inputStream, final int size) {
-		super(size);
+		this(inputStream,
+				size,
+				LengthPrefix.standard());
+	}
+
+	public InputStreamLengthPrefixedMessageReader(final InputStream inputStream,
+			final int size,
+			final LengthPrefix lengthPrefix) {
+		this(inputStream,
+				size,
+				lengthPrefix,
+				DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public InputStreamLengthPrefixedMessageReader(final InputStream inputStream,
+			final int size,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength) {
+		this(inputStream,
+				size,
+				lengthPrefix,
+				maxFrameLength,
+				FrameChecksum.none());
+	}
+
+	public InputStreamLengthPrefixedMessageReader(final InputStream inputStream,
+			final int size,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength,
+			final FrameChecksum frameChecksum) {
+		super(size, ByteBufferAllocator.heap(), lengthPrefix, maxFrameLength, frameChecksum);
 		this.inputStream = inputStream;
-		this.byteArray = new byte[size];
 	}
 
+	/**
+	 * Reads straight into the array backing the buffer. Large frames are read
+	 * directly into the caller's destination, which may not have one.
+	 */
 	@Override
 	protected int fillBuffer(final ByteBuffer buffer) throws IOException {
-		final int readCount = this.inputStream.read(this.byteArray);
+		if (!buffer.hasArray()) {
+			if (this.channel == null) {
+				this.channel = Channels.newChannel(this.inputStream);
+			}
+			return this.channel.read(buffer);
+		}
+
+		final int readCount = this.inputStream.read(buffer.array(),
+				buffer.arrayOffset() + buffer.position(),
+				buffer.remaining());
 		if (readCount > 0) {
-			buffer.put(this.byteArray, 0, readCount);
+			buffer.position(buffer.position() + readCount);
 		}
 		return readCount;
 	}
 
 	@Override
 	public void close() throws IOException {
-		this.inputStream.close();
+		try {
+			this.inputStream.close();
+		} finally {
+			super.close();
+		}
 	}
 }
@@ -0,0 +1,343 @@
+package org.neverfear.util.messaging;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.neverfear.util.Bytes;
+
+/**
+ * How the length of each frame is encoded on the wire.
+ * <p>
+ * The {@link #standard() standard} prefix is a 4 byte big endian int, as
+ * written by {@link java.io.DataOutputStream#writeInt(int)}. Small frames can
+ * save bytes with a {@link #varint() varint} or narrow {@link #fixed(int,
+ * ByteOrder) fixed} width prefix, and existing binary protocols can be read
+ * and written with a {@link #headerField(int, int, int, ByteOrder) length
+ * field} inside a fixed size header.
+ * <p>
+ * Prefixes are stateless and may be shared.
+ */
+public abstract class LengthPrefix {
+
+	/**
+	 * Returned by {@link #decode(ByteBuffer)} when more bytes are needed.
+	 */
+	public static final int INCOMPLETE = -1;
+
+	private static final LengthPrefix STANDARD = new Fixed(Integer.BYTES, ByteOrder.BIG_ENDIAN);
+	private static final LengthPrefix VARINT = new Varint();
+
+	/**
+	 * @return a 4 byte big endian prefix
+	 */
+	public static LengthPrefix standard() {
+		return STANDARD;
+	}
+
+	/**
+	 * @return an unsigned LEB128 prefix of 1 to 5 bytes. Frames of less than
+	 *         128 bytes take a single byte.
+	 */
+	public static LengthPrefix varint() {
+		return VARINT;
+	}
+
+	/**
+	 * 1 and 2 byte widths are unsigned. 4 and 8 byte widths are signed and
+	 * must not exceed {@link Integer#MAX_VALUE}.
+	 * 
+	 * @param width 1, 2, 4 or 8 bytes
+	 * @param order
+	 * @return a fixed width prefix
+	 */
+	public static LengthPrefix fixed(final int width, final ByteOrder order) {
+		if (width == Integer.BYTES && order == ByteOrder.BIG_ENDIAN) {
+			return STANDARD;
+		}
+		return new Fixed(width, order);
+	}
+
+	/**
+	 * A length field within a fixed size header that starts each frame. The
+	 * field holds the number of bytes that follow the header. The header is
+	 * part of the frame: readers receive it along with the body, and writers
+	 * expect the payload to start with it, setting the length field as the
+	 * frame is written.
+	 * 
+	 * @param headerSize
+	 * @param offset the offset of the length field within the header
+	 * @param width the width of the length field. See
+	 *            {@link #fixed(int, ByteOrder)}.
+	 * @param order
+	 * @return a header field prefix
+	 */
+	public static LengthPrefix headerField(final int headerSize,
+			final int offset,
+			final int width,
+			final ByteOrder order) {
+		return new HeaderField(headerSize, offset, width, order);
+	}
+
+	/**
+	 * @return the largest number of bytes the prefix may occupy
+	 */
+	public abstract int maxSize();
+
+	/**
+	 * Decodes the length of the frame starting at the position of the source.
+	 * If it is complete the position is advanced past any bytes that are not
+	 * part of the payload, otherwise the position is left unchanged. A prefix
+	 * is only incomplete if fewer than {@link #maxSize()} bytes remain.
+	 * 
+	 * @param source
+	 * @return the length of the payload or {@link #INCOMPLETE}
+	 * @throws StreamCorruptedException if the length is invalid
+	 */
+	public abstract int decode(ByteBuffer source) throws StreamCorruptedException;
+
+	/**
+	 * Writes the bytes that go before the remaining bytes of the payload into
+	 * the header. The prefix may move bytes from the start of the payload
+	 * into the header.
+	 * 
+	 * @param payload
+	 * @param header must have {@link #maxSize()} bytes remaining
+	 * @throws IllegalArgumentException if the payload cannot be encoded
+	 */
+	public abstract void encode(ByteBuffer payload, ByteBuffer header);
+
+	/**
+	 * Writes the prefix of a frame with a payload of the given length, for
+	 * when the payload is written separately.
+	 * 
+	 * @param length
+	 * @param header must have {@link #maxSize()} bytes remaining
+	 * @throws IllegalArgumentException if the length cannot be encoded
+	 * @throws UnsupportedOperationException if the prefix needs the payload
+	 */
+	public abstract void encodeLength(int length, ByteBuffer header);
+
+	/**
+	 * @return the largest value a field of the width may hold
+	 */
+	private static long maxValue(final int width) {
+		switch (width) {
+		case Byte.BYTES:
+			return 0xFF;
+		case Short.BYTES:
+			return 0xFFFF;
+		case Integer.BYTES:
+		case Long.BYTES:
+			return Integer.MAX_VALUE;
+		default:
+			throw new IllegalArgumentException("Unsupported width: " + width);
+		}
+	}
+
+	private static long getField(final ByteBuffer source, final int index, final int width, final ByteOrder order) {
+		final boolean swap = source.order() != order;
+		switch (width) {
+		case Byte.BYTES:
+			return source.get(index) & 0xFF;
+		case Short.BYTES: {
+			final short value = source.getShort(index);
+			return (swap ? Short.reverseBytes(value) : value) & 0xFFFF;
+		}
+		case Integer.BYTES: {
+			final int value = source.getInt(index);
+			return swap ? Bytes.swapByteEndianness(value) : value;
+		}
+		default: {
+			final long value = source.getLong(index);
+			return swap ? Bytes.swapByteEndianness(value) : value;
+		}
+		}
+	}
+
+	private static void putField(final ByteBuffer destination,
+			final int index,
+			final int width,
+			final ByteOrder order,
+			final int value) {
+		final boolean swap = destination.order() != order;
+		switch (width) {
+		case Byte.BYTES:
+			destination.put(index, (byte) value);
+			break;
+		case Short.BYTES:
+			destination.putShort(index, swap ? Short.reverseBytes((short) value) : (short) value);
+			break;
+		case Integer.BYTES:
+			destination.putInt(index, swap ? Bytes.swapByteEndianness(value) : value);
+			break;
+		default:
+			destination.putLong(index, swap ? Bytes.swapByteEndianness((long) value) : value);
+			break;
+		}
+	}
+
+	private static int checkLength(final long length) throws StreamCorruptedException {
+		if (length < 0) {
+			throw new StreamCorruptedException("Negative frame length " + length);
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new StreamCorruptedException("Frame length " + length + " too large");
+		}
+		return (int) length;
+	}
+
+	private static final class Fixed
+		extends LengthPrefix {
+
+		private final int width;
+		private final ByteOrder order;
+		private final long maxValue;
+
+		Fixed(final int width, final ByteOrder order) {
+			this.width = width;
+			this.order = order;
+			this.maxValue = maxValue(width);
+		}
+
+		@Override
+		public int maxSize() {
+			return this.width;
+		}
+
+		@Override
+		public int decode(final ByteBuffer source) throws StreamCorruptedException {
+			if (source.remaining() < this.width) {
+				return INCOMPLETE;
+			}
+			final int length = checkLength(getField(source, source.position(), this.width, this.order));
+			source.position(source.position() + this.width);
+			return length;
+		}
+
+		@Override
+		public void encode(final ByteBuffer payload, final ByteBuffer header) {
+			encodeLength(payload.remaining(), header);
+		}
+
+		@Override
+		public void encodeLength(final int length, final ByteBuffer header) {
+			if (length > this.maxValue) {
+				throw new IllegalArgumentException("Frame of " + length + " bytes too large for a " + this.width
+						+ " byte prefix");
+			}
+			putField(header, header.position(), this.width, this.order, length);
+			header.position(header.position() + this.width);
+		}
+	}
+
+	private static final class Varint
+		extends LengthPrefix {
+
+		private static final int MAX_SIZE = 5;
+
+		@Override
+		public int maxSize() {
+			return MAX_SIZE;
+		}
+
+		@Override
+		public int decode(final ByteBuffer source) throws StreamCorruptedException {
+			final int start = source.position();
+			long length = 0;
+			for (int i = 0; i < MAX_SIZE; i++) {
+				if (start + i >= source.limit()) {
+					return INCOMPLETE;
+				}
+				final byte b = source.get(start + i);
+				length |= (long) (b & 0x7F) << (7 * i);
+				if (b >= 0) {
+					checkLength(length);
+					source.position(start + i + 1);
+					return (int) length;
+				}
+			}
+			throw new StreamCorruptedException("Varint length longer than " + MAX_SIZE + " bytes");
+		}
+
+		@Override
+		public void encode(final ByteBuffer payload, final ByteBuffer header) {
+			encodeLength(payload.remaining(), header);
+		}
+
+		@Override
+		public void encodeLength(final int length, final ByteBuffer header) {
+			int remaining = length;
+			while ((remaining & ~0x7F) != 0) {
+				header.put((byte) ((remaining & 0x7F) | 0x80));
+				remaining >>>= 7;
+			}
+			header.put((byte) remaining);
+		}
+	}
+
+	private static final class HeaderField
+		extends LengthPrefix {
+
+		private final int headerSize;
+		private final int offset;
+		private final int width;
+		private final ByteOrder order;
+		private final long maxValue;
+
+		HeaderField(final int headerSize, final int offset, final int width, final ByteOrder order) {
+			if (offset < 0 || offset + width > headerSize) {
+				throw new IllegalArgumentException("Length field at " + offset + " does not fit in a header of "
+						+ headerSize + " bytes");
+			}
+			this.headerSize = headerSize;
+			this.offset = offset;
+			this.width = width;
+			this.order = order;
+			this.maxValue = Math.min(maxValue(width), Integer.MAX_VALUE - headerSize);
+		}
+
+		@Override
+		public int maxSize() {
+			return this.headerSize;
+		}
+
+		@Override
+		public int decode(final ByteBuffer source) throws StreamCorruptedException {
+			if (source.remaining() < this.headerSize) {
+				return INCOMPLETE;
+			}
+			final long bodyLength = getField(source, source.position() + this.offset, this.width, this.order);
+			return checkLength(this.headerSize + bodyLength);
+		}
+
+		@Override
+		public void encode(final ByteBuffer payload, final ByteBuffer header) {
+			final int bodyLength = payload.remaining() - this.headerSize;
+			if (bodyLength < 0) {
+				throw new IllegalArgumentException("Payload of " + payload.remaining()
+						+ " bytes is shorter than the header");
+			}
+			if (bodyLength > this.maxValue) {
+				throw new IllegalArgumentException("Body of " + bodyLength + " bytes too large for a "
+						+ this.width + " byte length field");
+			}
+
+			final int start = header.position();
+			final int limit = payload.limit();
+			payload.limit(payload.position() + this.headerSize);
+			header.put(payload);
+			payload.limit(limit);
+			putField(header, start + this.offset, this.width, this.order, bodyLength);
+		}
+
+		/**
+		 * @throws UnsupportedOperationException always, as the header comes
+		 *         from the payload
+		 */
+		@Override
+		public void encodeLength(final int length, final ByteBuffer header) {
+			throw new UnsupportedOperationException("The header is taken from the payload");
+		}
+	}
+}
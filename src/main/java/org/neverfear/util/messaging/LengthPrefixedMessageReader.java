@@ -1,35 +1,179 @@
 package org.neverfear.util.messaging;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class LengthPrefixedMessageReader
 	implements MessageReader {
 
 	/**
-	 * Used to buffer the byte source.
+	 * The default largest frame that is read into memory in one piece.
+	 * Larger frames can still be read with {@link #readMessageStream()}.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * Used to buffer the byte source. Between reads the buffer is left in read
+	 * mode, i.e. the bytes between the position and the limit are buffered but
+	 * not yet consumed. It is only compacted when more bytes are required.
 	 */
 	private final ByteBuffer buffer;
 
 	/**
-	 * Offset in the current message buffer
+	 * A flyweight over {@link #buffer} used to expose frames in place.
+	 */
+	private final ByteBuffer view;
+
+	/**
+	 * Reusable region for frames that are larger than {@link #buffer}. Grown
+	 * on demand.
+	 */
+	private ByteBuffer scratch;
+
+	private final ByteBufferAllocator allocator;
+
+	private final LengthPrefix lengthPrefix;
+
+	/**
+	 * Reused to pass a destination and the receive buffer to
+	 * {@link #fillBuffers(ByteBuffer[])}.
+	 */
+	private final ByteBuffer[] scatter;
+
+	/**
+	 * The number of bytes consumed decoding the last length prefix.
+	 */
+	private int prefixSize;
+
+	private final int maxFrameLength;
+
+	/**
+	 * The checksum of the current frame, or null if frames have no trailer.
 	 */
-	private transient int offset = 0;
+	private final Crc32c checksum;
 
 	/**
-	 * Buffer used to store the complete message while we read in the buffer.
+	 * The number of bytes after the payload of each frame.
 	 */
-	private transient byte[] message = null;
+	private final int trailerSize;
+
+	private final ReaderStats.Counters counters = new ReaderStats.Counters();
+
+	/**
+	 * The payload stream of the current frame, if it is being streamed.
+	 */
+	private PayloadStream stream = null;
+
+	/**
+	 * Guards reads. A lock rather than a monitor so that a virtual thread
+	 * blocked reading does not pin its carrier thread. Package private, like
+	 * the writer's, for classes in this package that need to exclude reads.
+	 */
+	final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Set once the buffers have been returned to the allocator. Guarded by
+	 * the {@link #lock}.
+	 */
+	private boolean closed = false;
 
 	public LengthPrefixedMessageReader(final int size) {
-		this.buffer = ByteBuffer.allocate(size);
+		this(size,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param size the capacity of the receive buffer
+	 * @param allocator source of the receive buffer and scratch region. Use a
+	 *            direct allocator for channels so reads land in the receive
+	 *            buffer without an extra copy.
+	 */
+	public LengthPrefixedMessageReader(final int size, final ByteBufferAllocator allocator) {
+		this(size,
+				allocator,
+				LengthPrefix.standard());
+	}
+
+	/**
+	 * @param size the capacity of the receive buffer
+	 * @param allocator source of the receive buffer and scratch region
+	 * @param lengthPrefix how frame lengths are encoded
+	 */
+	public LengthPrefixedMessageReader(final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix) {
+		this(size,
+				allocator,
+				lengthPrefix,
+				DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * @param size the capacity of the receive buffer
+	 * @param allocator source of the receive buffer and scratch region
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param maxFrameLength the largest frame that is read into memory in one
+	 *            piece
+	 */
+	public LengthPrefixedMessageReader(final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength) {
+		this(size,
+				allocator,
+				lengthPrefix,
+				maxFrameLength,
+				FrameChecksum.none());
+	}
+
+	/**
+	 * @param size the capacity of the receive buffer
+	 * @param allocator source of the receive buffer and scratch region
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param maxFrameLength the largest frame that is read into memory in one
+	 *            piece
+	 * @param frameChecksum whether frames are followed by a checksum, which
+	 *            is then verified as each frame is read
+	 */
+	public LengthPrefixedMessageReader(final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength,
+			final FrameChecksum frameChecksum) {
+		if (lengthPrefix.maxSize() > size) {
+			throw new IllegalArgumentException("Buffer of " + size + " bytes cannot hold a length prefix of "
+					+ lengthPrefix.maxSize() + " bytes");
+		}
+		if (frameChecksum.size() > size) {
+			throw new IllegalArgumentException("Buffer of " + size + " bytes cannot hold a checksum of "
+					+ frameChecksum.size() + " bytes");
+		}
+		this.allocator = allocator;
+		this.lengthPrefix = lengthPrefix;
+		this.maxFrameLength = maxFrameLength;
+		this.checksum = frameChecksum.newChecksum();
+		this.trailerSize = frameChecksum.size();
+		this.buffer = allocator.allocate(size);
+		this.buffer.flip();
+		this.view = this.buffer.duplicate();
+		this.scatter = new ByteBuffer[] {
+				null, this.buffer
+		};
+		this.scratch = null;
 	}
 
 	/**
@@ -42,62 +186,778 @@ public abstract class LengthPrefixedMessageReader
 	protected abstract int fillBuffer(final ByteBuffer buffer) throws IOException;
 
 	/**
+	 * Fill the passed buffers, in order, with available bytes. Used to read
+	 * the remainder of a large frame straight into its destination, followed
+	 * by the receive buffer so that any bytes after the frame are not lost.
+	 * <p>
+	 * Either buffer may be a caller's buffer rather than the receive buffer.
+	 * By default only the first buffer is filled; sources that support
+	 * scattering reads should override this.
+	 * 
+	 * @param buffers
+	 * @return the number of bytes written into the buffers or -1 at EOF
+	 * @throws IOException
+	 */
+	protected long fillBuffers(final ByteBuffer[] buffers) throws IOException {
+		return fillBuffer(buffers[0]);
+	}
+
+	/**
+	 * Ensures at least the given number of bytes are buffered, filling the
+	 * buffer as many times as necessary.
+	 * 
+	 * @param required must not exceed the capacity of the buffer
+	 * @return false if EOF was reached before the bytes were available
+	 * @throws IOException
+	 */
+	private boolean ensureBuffered(final int required) throws IOException {
+		while (this.buffer.remaining() < required) {
+			if (Thread.interrupted()) {
+				throw new InterruptedIOException();
+			}
+
+			if (this.buffer.position() > 0 && this.buffer.hasRemaining()) {
+				this.counters.recordCompaction();
+			}
+			this.buffer.compact();
+			final int readCount;
+			try {
+				readCount = fillBuffer(this.buffer);
+			} finally {
+				this.buffer.flip();
+			}
+			this.counters.recordFill(readCount < 0);
+			if (readCount < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the length prefix of the next frame.
+	 * 
+	 * @return the length of the payload or -1 if EOF was reached cleanly
+	 *         between frames.
+	 * @throws EOFException if EOF was reached part way through the prefix
+	 */
+	private int readLength() throws IOException {
+		if (this.stream != null) {
+			this.stream.close();
+		}
+
+		boolean partial = false;
+		while (true) {
+			final int start = this.buffer.position();
+			final int length = this.lengthPrefix.decode(this.buffer);
+			if (length != LengthPrefix.INCOMPLETE) {
+				this.prefixSize = this.buffer.position() - start;
+				if (this.checksum != null) {
+					this.checksum.reset();
+					updateChecksum(this.buffer, start, this.buffer.position());
+				}
+				if (partial || length > this.buffer.remaining() - this.trailerSize) {
+					this.counters.recordPartialFrame();
+				}
+				return length;
+			}
+			partial |= this.buffer.hasRemaining();
+
+			if (!ensureBuffered(this.buffer.remaining() + 1)) {
+				if (this.buffer.hasRemaining()) {
+					throw new EOFException("EOF reached before length prefix was completely read");
+				}
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Adds the bytes of the source between the passed indices to the
+	 * checksum of the current frame, if any, leaving the source unchanged.
+	 * Called on each chunk of the frame as it is read so the payload is not
+	 * passed over a second time.
+	 * 
+	 * @param source
+	 * @param from
+	 * @param to
+	 */
+	private void updateChecksum(final ByteBuffer source, final int from, final int to) {
+		if (this.checksum == null || from == to) {
+			return;
+		}
+		final int position = source.position();
+		final int limit = source.limit();
+		source.limit(to);
+		source.position(from);
+		this.checksum.update(source);
+		source.limit(limit);
+		source.position(position);
+	}
+
+	/**
+	 * Reads the checksum trailer of the current frame, if any, and verifies
+	 * it against the checksum of the frame as read.
+	 * 
+	 * @throws ChecksumMismatchException if they differ
+	 * @throws IOException
+	 */
+	private void readTrailer() throws IOException {
+		if (this.checksum == null) {
+			return;
+		}
+		if (!ensureBuffered(this.trailerSize)) {
+			throw new EOFException("EOF reached before checksum was completely read");
+		}
+		final int expected = this.buffer.getInt();
+		final int actual = this.checksum.intValue();
+		if (expected != actual) {
+			throw new ChecksumMismatchException(expected, actual);
+		}
+	}
+
+	/**
+	 * Puts the prefix back if the frame is too large to read into memory, so
+	 * it may be streamed instead.
+	 * 
+	 * @param length
+	 * @throws FrameTooLargeException
+	 */
+	private void checkFrameLength(final int length) throws FrameTooLargeException {
+		if (length > this.maxFrameLength) {
+			this.buffer.position(this.buffer.position() - this.prefixSize);
+			throw new FrameTooLargeException(length, this.maxFrameLength);
+		}
+	}
+
+	/**
+	 * Transfers whatever payload bytes are buffered into the destination,
+	 * filling the buffer first if it is empty.
+	 * 
+	 * @param destination
+	 * @param max the most bytes to transfer
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	private int readChunk(final ByteBuffer destination, final int max) throws IOException {
+		final int wanted = min(destination.remaining(), max);
+		if (wanted >= this.buffer.capacity() && !this.buffer.hasRemaining()) {
+			final int position = destination.position();
+			readDirect(destination, wanted);
+			return destination.position() - position;
+		}
+
+		if (!ensureBuffered(1)) {
+			throw new EOFException("EOF reached before message was completely read");
+		}
+		final int size = min(min(this.buffer.remaining(), destination.remaining()), max);
+		final int start = this.buffer.position();
+		final int limit = this.buffer.limit();
+		this.buffer.limit(start + size);
+		destination.put(this.buffer);
+		this.buffer.limit(limit);
+		updateChecksum(this.buffer, start, start + size);
+		return size;
+	}
+
+	/**
+	 * Discards payload bytes, filling the buffer as many times as necessary.
+	 * 
+	 * @param count
+	 * @throws IOException
+	 */
+	private void skipPayload(final int count) throws IOException {
+		int remaining = count;
+		while (remaining > 0) {
+			if (!ensureBuffered(1)) {
+				throw new EOFException("EOF reached before message was completely read");
+			}
+			final int size = min(this.buffer.remaining(), remaining);
+			final int start = this.buffer.position();
+			updateChecksum(this.buffer, start, start + size);
+			this.buffer.position(start + size);
+			remaining -= size;
+		}
+	}
+
+	/**
+	 * Acquire the {@link #lock} unless interrupted, so that a thread waiting
+	 * behind a blocked read can be cancelled.
 	 * 
-	 * @return the remaining bytes to complete this message.
+	 * @throws InterruptedIOException if interrupted while waiting
+	 * @throws ClosedChannelException if the reader is closed, in which case
+	 *         the lock is not held
 	 */
-	private int remaining() {
-		return this.message.length - this.offset;
+	private void lockInterruptibly() throws IOException {
+		try {
+			this.lock.lockInterruptibly();
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (this.closed) {
+			this.lock.unlock();
+			throw new ClosedChannelException();
+		}
 	}
 
 	/**
-	 * Fills the message with all available remaining bytes. If more the message
-	 * requires more bytes than available in the buffer, the entire buffer will
-	 * be consumed. If the message requires less than or equal to the number of
-	 * bytes in the buffer, only that portion will be consumed.
+	 * Transfers the payload of the current frame into the destination,
+	 * filling the buffer as many times as necessary. Never compacts more
+	 * than once per fill.
+	 * 
+	 * @param destination must have at least length bytes remaining
+	 * @param length
+	 * @throws IOException
 	 */
-	private void fillMessage() {
-		final int bufferRemaining = this.buffer.remaining();
-		final int size = min(bufferRemaining, remaining());
-		this.buffer.get(this.message, this.offset, size);
-		this.offset += size;
+	private void readPayload(final ByteBuffer destination, final int length) throws IOException {
+		int remaining = length;
+		while (true) {
+			final int size = min(this.buffer.remaining(), remaining);
+			final int start = this.buffer.position();
+			final int limit = this.buffer.limit();
+			this.buffer.limit(start + size);
+			destination.put(this.buffer);
+			this.buffer.limit(limit);
+			updateChecksum(this.buffer, start, start + size);
+			remaining -= size;
+
+			if (remaining == 0) {
+				return;
+			}
+
+			if (remaining >= this.buffer.capacity()) {
+				readDirect(destination, remaining);
+				return;
+			}
+
+			if (!ensureBuffered(1)) {
+				throw new EOFException("EOF reached before message was completely read");
+			}
+		}
+	}
+
+	/**
+	 * Reads the remainder of a large frame straight into its destination
+	 * rather than through the receive buffer, which must be empty. Saves a
+	 * copy and the many small reads of a buffer smaller than the frame.
+	 * 
+	 * @param destination
+	 * @param length the number of bytes remaining in the frame
+	 * @throws IOException
+	 */
+	private void readDirect(final ByteBuffer destination, final int length) throws IOException {
+		final int limit = destination.limit();
+		destination.limit(destination.position() + length);
+		this.scatter[0] = destination;
+		try {
+			while (destination.hasRemaining()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedIOException();
+				}
+
+				this.buffer.clear();
+				final int start = destination.position();
+				final long readCount;
+				try {
+					readCount = fillBuffers(this.scatter);
+				} finally {
+					this.buffer.flip();
+				}
+				this.counters.recordFill(readCount < 0);
+				if (readCount < 0) {
+					throw new EOFException("EOF reached before message was completely read");
+				}
+				updateChecksum(destination, start, destination.position());
+			}
+		} finally {
+			this.scatter[0] = null;
+			destination.limit(limit);
+		}
 	}
 
+	/**
+	 * Read one complete message into a newly allocated array.
+	 * 
+	 * @throws FrameTooLargeException if the frame is larger than the maximum
+	 *         frame length. The message is not consumed so the caller may
+	 *         stream it instead.
+	 * @throws ChecksumMismatchException if frames have a checksum and the
+	 *         message does not match it
+	 * @see MessageReader#readMessage()
+	 */
 	@Override
-	public synchronized byte[] readMessage() throws IOException {
-		final int remainingInBuffer = this.buffer.capacity() - this.buffer.remaining();
-		if (remainingInBuffer < Integer.BYTES) {
-			if (fillBuffer(this.buffer) < 0) {
+	public byte[] readMessage() throws IOException {
+		lockInterruptibly();
+		try {
+			final int length = readLength();
+			if (length < 0) {
 				return null;
 			}
+			checkFrameLength(length);
+
+			final byte[] message = new byte[length];
+			readPayload(ByteBuffer.wrap(message), length);
+			readTrailer();
+			this.counters.recordFrame(length);
+			return message;
+		} finally {
+			this.lock.unlock();
 		}
-		this.buffer.flip();
+	}
+
+	/**
+	 * Read one complete message into the passed buffer without allocating.
+	 * The payload is written from the current position of the destination
+	 * which is advanced by the length of the payload.
+	 * 
+	 * @param destination
+	 * @return the length of the payload or -1 if EOF was reached.
+	 * @throws BufferOverflowException if the destination does not have enough
+	 *         space for the payload. The message is not consumed so the caller
+	 *         may retry with a larger buffer.
+	 * @throws ChecksumMismatchException if frames have a checksum and the
+	 *         message does not match it. The payload has been written to the
+	 *         destination regardless.
+	 * @throws IOException
+	 */
+	@Override
+	public int readMessage(final ByteBuffer destination) throws IOException {
+		lockInterruptibly();
+		try {
+			final int length = readLength();
+			if (length < 0) {
+				return -1;
+			}
 
-		final int length = this.buffer.getInt();
-		this.message = new byte[length];
-		this.offset = 0;
+			if (destination.remaining() < length) {
+				// Put the prefix back so the message can be read again
+				this.buffer.position(this.buffer.position() - this.prefixSize);
+				throw new BufferOverflowException();
+			}
 
-		fillMessage();
+			readPayload(destination, length);
+			readTrailer();
+			this.counters.recordFrame(length);
+			return length;
+		} finally {
+			this.lock.unlock();
+		}
+	}
 
-		while (remaining() > 0) {
-			if (Thread.interrupted()) {
-				throw new InterruptedIOException();
+	/**
+	 * Read one complete message into a buffer drawn from the passed allocator.
+	 * The caller owns the buffer and should release it back to the allocator
+	 * once finished with it.
+	 * 
+	 * @param allocator
+	 * @return a buffer positioned at the start of the payload with its limit
+	 *         at the end, or null if EOF was reached.
+	 * @throws FrameTooLargeException if the frame is larger than the maximum
+	 *         frame length. The message is not consumed so the caller may
+	 *         stream it instead.
+	 * @throws IOException
+	 */
+	public ByteBuffer readMessage(final ByteBufferAllocator allocator) throws IOException {
+		lockInterruptibly();
+		try {
+			final int length = readLength();
+			if (length < 0) {
+				return null;
 			}
+			checkFrameLength(length);
 
-			this.buffer.compact();
-			if (fillBuffer(this.buffer) < 0) {
-				throw new EOFException("EOF reached before message was completely read");
+			final ByteBuffer message = allocator.allocate(length);
+			try {
+				readPayload(message, length);
+				readTrailer();
+			} catch (final IOException e) {
+				allocator.release(message);
+				throw e;
+			}
+			this.counters.recordFrame(length);
+			message.flip();
+			return message;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Read one complete message without copying or allocating where possible.
+	 * Messages that fit in the buffer are exposed in place. Larger messages
+	 * are read into a reusable scratch region that grows as required.
+	 * <p>
+	 * The returned buffer is a flyweight: it is only valid until the next
+	 * read from this reader and must not be retained. Its position is the
+	 * start of the payload and its limit the end of the payload.
+	 * 
+	 * @return a view of the message payload or null if EOF was reached.
+	 * @throws FrameTooLargeException if the frame does not fit in the buffer
+	 *         and is larger than the maximum frame length. The message is not
+	 *         consumed so the caller may stream it instead.
+	 * @throws ChecksumMismatchException if frames have a checksum and the
+	 *         message does not match it
+	 * @throws IOException
+	 */
+	public ByteBuffer readMessageView() throws IOException {
+		lockInterruptibly();
+		try {
+			final int length = readLength();
+			if (length < 0) {
+				return null;
+			}
+
+			if (length <= this.buffer.capacity() - this.trailerSize) {
+				if (!ensureBuffered(length + this.trailerSize)) {
+					throw new EOFException("EOF reached before message was completely read");
+				}
+				final int start = this.buffer.position();
+				this.buffer.position(start + length);
+				updateChecksum(this.buffer, start, start + length);
+				readTrailer();
+				this.counters.recordFrame(length);
+
+				this.view.limit(start + length);
+				this.view.position(start);
+				return this.view;
+			}
+
+			checkFrameLength(length);
+			if (this.scratch == null || this.scratch.capacity() < length) {
+				final int capacity = this.scratch == null ? length : max(length, this.scratch.capacity() * 2);
+				if (this.scratch != null) {
+					this.allocator.release(this.scratch);
+				}
+				this.scratch = this.allocator.allocate(capacity);
+			}
+			this.scratch.clear();
+			readPayload(this.scratch, length);
+			readTrailer();
+			this.counters.recordFrame(length);
+			this.scratch.flip();
+			return this.scratch;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Read every message that is available without blocking for more than
+	 * one. Blocks until the first message is received, then passes it and
+	 * every further complete message already buffered to the handler, so a
+	 * burst of small messages costs one fill of the buffer.
+	 * <p>
+	 * Each message is passed as a flyweight as per {@link #readMessageView()}
+	 * which is only valid for the duration of the call to the handler.
+	 * 
+	 * @param handler
+	 * @return the number of messages read or -1 if EOF was reached.
+	 * @throws FrameTooLargeException as per {@link #readMessageView()}, for
+	 *         the first message only
+	 * @throws IOException
+	 */
+	public int readMessages(final FrameHandler handler) throws IOException {
+		lockInterruptibly();
+		try {
+			final ByteBuffer first = readMessageView();
+			if (first == null) {
+				return -1;
 			}
-			this.buffer.flip();
+			handler.onFrame(first);
 
-			fillMessage();
+			int count = 1;
+			while (true) {
+				final int start = this.buffer.position();
+				final int length = this.lengthPrefix.decode(this.buffer);
+				if (length == LengthPrefix.INCOMPLETE) {
+					return count;
+				}
+				if (length > this.buffer.remaining() - this.trailerSize) {
+					this.buffer.position(start);
+					return count;
+				}
+
+				final int payloadStart = this.buffer.position();
+				if (this.checksum != null && !checksumMatches(start, payloadStart + length)) {
+					// Leave it to be read, and the mismatch thrown, by the next call
+					this.buffer.position(start);
+					return count;
+				}
+				this.buffer.position(payloadStart + length + this.trailerSize);
+				this.counters.recordFrame(length);
+				this.view.limit(payloadStart + length);
+				this.view.position(payloadStart);
+				handler.onFrame(this.view);
+				count++;
+			}
+		} finally {
+			this.lock.unlock();
 		}
+	}
 
-		/*
-		 * Do not need to do flip because we want to write from where we left
-		 * off reading after compaction.
+	/**
+	 * @param start the start of a buffered frame
+	 * @param end the end of its payload, followed by its trailer
+	 * @return true if the checksum of the frame matches its trailer
+	 */
+	private boolean checksumMatches(final int start, final int end) {
+		this.checksum.reset();
+		updateChecksum(this.buffer, start, end);
+		return this.buffer.getInt(end) == this.checksum.intValue();
+	}
+
+	/**
+	 * Read every message that is available, as per
+	 * {@link #readMessages(FrameHandler)}, copying each into a new array.
+	 * 
+	 * @param messages receives the messages
+	 * @return the number of messages read or -1 if EOF was reached.
+	 * @throws IOException
+	 */
+	public int readMessages(final Collection<? super byte[]> messages) throws IOException {
+		return readMessages(frame -> {
+			final byte[] message = new byte[frame.remaining()];
+			frame.get(message);
+			messages.add(message);
+		});
+	}
+
+	/**
+	 * Read the payload of the next message as a stream, so that frames of any
+	 * size may be read in constant memory. The stream is bounded to the
+	 * payload and is closed when the next message is read; any of the payload
+	 * not yet read is then skipped.
+	 * 
+	 * @return the payload stream or null if EOF was reached.
+	 * @throws IOException
+	 */
+	public PayloadStream readMessageStream() throws IOException {
+		lockInterruptibly();
+		try {
+			final int length = readLength();
+			if (length < 0) {
+				return null;
+			}
+			this.counters.recordFrame(length);
+			this.stream = new PayloadStream(length);
+			return this.stream;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * The payload of a single frame, read straight from the reader's buffer.
+	 * Available as both an {@link InputStream} and a
+	 * {@link ReadableByteChannel}. Closing it skips the rest of the payload
+	 * but leaves the reader open.
+	 * <p>
+	 * Any checksum trailer is verified once the end of the payload is reached
+	 * or the stream is closed, whichever is first.
+	 */
+	public final class PayloadStream
+		extends InputStream
+		implements ReadableByteChannel {
+
+		private int remaining;
+		private boolean open = true;
+
+		/**
+		 * Whether the trailer has been read.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * Destination of {@link #read()}, reused to avoid allocating per byte.
+		 */
+		private final byte[] single = new byte[1];
+
+		PayloadStream(final int length) {
+			super();
+			this.remaining = length;
+		}
+
+		/**
+		 * @return the number of payload bytes not yet read
 		 */
-		this.buffer.compact();
-		return this.message;
+		public int remaining() {
+			LengthPrefixedMessageReader.this.lock.lock();
+			try {
+				return this.remaining;
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			// Held across the read so that no other reader overwrites the byte
+			lockInterruptibly();
+			try {
+				return read(this.single, 0, 1) < 0 ? -1 : this.single[0] & 0xFF;
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			return read(ByteBuffer.wrap(bytes, offset, length));
+		}
+
+		@Override
+		public int read(final ByteBuffer destination) throws IOException {
+			lockInterruptibly();
+			try {
+				if (!this.open) {
+					throw new ClosedChannelException();
+				}
+				if (this.remaining == 0) {
+					finish();
+					return -1;
+				}
+				if (!destination.hasRemaining()) {
+					return 0;
+				}
+				final int count = readChunk(destination, this.remaining);
+				this.remaining -= count;
+				return count;
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Read the trailer, once the whole payload has been read.
+		 * 
+		 * @throws ChecksumMismatchException
+		 * @throws IOException
+		 */
+		private void finish() throws IOException {
+			if (this.finished) {
+				return;
+			}
+			this.finished = true;
+			readTrailer();
+		}
+
+		@Override
+		public long skip(final long count) throws IOException {
+			lockInterruptibly();
+			try {
+				if (!this.open || count <= 0) {
+					return 0;
+				}
+				final int size = (int) min(count, this.remaining);
+				skipPayload(size);
+				this.remaining -= size;
+				return size;
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+
+		@Override
+		public int available() {
+			LengthPrefixedMessageReader.this.lock.lock();
+			try {
+				if (!this.open || LengthPrefixedMessageReader.this.closed) {
+					return 0;
+				}
+				return min(this.remaining, LengthPrefixedMessageReader.this.buffer.remaining());
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			LengthPrefixedMessageReader.this.lock.lock();
+			try {
+				return this.open;
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Skips the rest of the payload.
+		 * 
+		 * @throws ChecksumMismatchException if the trailer has not already
+		 *         been verified and does not match
+		 */
+		@Override
+		public void close() throws IOException {
+			LengthPrefixedMessageReader.this.lock.lock();
+			try {
+				if (!this.open) {
+					return;
+				}
+				this.open = false;
+				if (LengthPrefixedMessageReader.this.closed) {
+					// The rest of the payload went with the reader's buffers
+					return;
+				}
+				LengthPrefixedMessageReader.this.stream = null;
+				final int count = this.remaining;
+				this.remaining = 0;
+				skipPayload(count);
+				finish();
+			} finally {
+				LengthPrefixedMessageReader.this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return a snapshot of the frames read so far and how they were read
+	 */
+	public ReaderStats stats() {
+		return this.counters.snapshot();
+	}
+
+	/**
+	 * The live counters behind {@link #stats()}, to register with an MBean
+	 * server. For example:
+	 * 
+	 * <pre>
+	 * ManagementFactory.getPlatformMBeanServer().registerMBean(reader.statsMXBean(),
+	 * 		new ObjectName(&quot;org.neverfear.util.messaging:type=Reader,name=orders&quot;));
+	 * </pre>
+	 * 
+	 * The caller is responsible for unregistering it.
+	 * 
+	 * @return the counters
+	 */
+	public ReaderStatsMXBean statsMXBean() {
+		return this.counters;
+	}
+
+	/**
+	 * Returns the buffers to the allocator. Subclasses must call this when
+	 * closed. Reads after this throw {@link ClosedChannelException} and
+	 * closing again has no effect.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.stream = null;
+			this.allocator.release(this.buffer);
+			if (this.scratch != null) {
+				this.allocator.release(this.scratch);
+				this.scratch = null;
+			}
+		} finally {
+			this.lock.unlock();
+		}
 	}
 
 	public static void main(final String... strings) throws Exception {
@@ -120,19 +980,7 @@ public abstract class LengthPrefixedMessageReader
 			}
 		};
 
-		final MessageWriter writer = new LengthPrefixedMessageWriter(1024) {
-
-			@Override
-			protected void doWrite(final byte[] message) throws IOException {
-				final ByteBuffer byteBuffer = ByteBuffer.wrap(message);
-				client.write(byteBuffer);
-			}
-
-			@Override
-			public void close() throws IOException {
-				client.close();
-			}
-		};
+		final MessageWriter writer = new SocketChannelLengthPrefixedMessageWriter(client);
 
 		/**
 		 * Scenarios:
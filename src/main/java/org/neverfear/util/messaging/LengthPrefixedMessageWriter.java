@@ -1,27 +1,436 @@
 package org.neverfear.util.messaging;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class LengthPrefixedMessageWriter
 	implements MessageWriter {
 
-	private final ByteArrayOutputStream baos;
+	private final LengthPrefix lengthPrefix;
 
+	private final FrameChecksum frameChecksum;
+
+	/**
+	 * The checksum of the frame being written, or null if frames have no
+	 * trailer.
+	 */
+	private final Crc32c checksum;
+
+	/**
+	 * Guards writes. A lock rather than a monitor so that a virtual thread
+	 * blocked writing does not pin its carrier thread. Subclasses in this
+	 * package hold it to exclude writes.
+	 */
+	final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Reused to hold the length prefix of each frame.
+	 */
+	private final ByteBuffer header;
+
+	/**
+	 * Reused to hold the checksum trailer of each frame.
+	 */
+	private final ByteBuffer trailer;
+
+	/**
+	 * Reused to pass the header and payload to {@link #doWrite(ByteBuffer[])}.
+	 */
+	private final ByteBuffer[] frame;
+
+	/**
+	 * Reused to pass the header, payload and trailer to
+	 * {@link #doWrite(ByteBuffer[])} when frames have a checksum.
+	 */
+	private final ByteBuffer[] checksummedFrame;
+
+	/**
+	 * Reused to pass the later chunks of a streamed payload to
+	 * {@link #doWrite(ByteBuffer[])}.
+	 */
+	private final ByteBuffer[] chunk = new ByteBuffer[1];
+
+	/**
+	 * The payload stream of the frame being written, if any.
+	 */
+	private PayloadStream stream = null;
+
+	public LengthPrefixedMessageWriter() {
+		this(LengthPrefix.standard());
+	}
+
+	/**
+	 * @param size ignored, as frames are no longer built in a buffer
+	 * @deprecated use {@link #LengthPrefixedMessageWriter()}
+	 */
+	@Deprecated
 	public LengthPrefixedMessageWriter(final int size) {
-		this.baos = new ByteArrayOutputStream(size);
+		this();
 	}
 
-	protected abstract void doWrite(final byte[] message) throws IOException;
+	/**
+	 * @param lengthPrefix how frame lengths are encoded
+	 */
+	public LengthPrefixedMessageWriter(final LengthPrefix lengthPrefix) {
+		this(lengthPrefix,
+				FrameChecksum.none());
+	}
+
+	/**
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param frameChecksum whether frames are followed by a checksum
+	 */
+	public LengthPrefixedMessageWriter(final LengthPrefix lengthPrefix, final FrameChecksum frameChecksum) {
+		this.lengthPrefix = lengthPrefix;
+		this.frameChecksum = frameChecksum;
+		this.checksum = frameChecksum.newChecksum();
+		this.header = ByteBuffer.allocate(lengthPrefix.maxSize());
+		this.trailer = ByteBuffer.allocate(frameChecksum.size());
+		this.frame = new ByteBuffer[] {
+				this.header, null
+		};
+		this.checksummedFrame = new ByteBuffer[] {
+				this.header, null, this.trailer
+		};
+	}
 
+	/**
+	 * @return how frame lengths are encoded
+	 */
+	public final LengthPrefix lengthPrefix() {
+		return this.lengthPrefix;
+	}
+
+	/**
+	 * @return whether frames are followed by a checksum
+	 */
+	public final FrameChecksum frameChecksum() {
+		return this.frameChecksum;
+	}
+
+	/**
+	 * Write all remaining bytes of each buffer, in order. The buffers must not
+	 * be retained after this method returns.
+	 * <p>
+	 * Subclasses should override this. By default the bytes are copied into
+	 * an array and passed to {@link #doWrite(byte[])}, for subclasses written
+	 * against it.
+	 * 
+	 * @param buffers
+	 * @throws IOException
+	 */
+	protected void doWrite(final ByteBuffer[] buffers) throws IOException {
+		int length = 0;
+		for (final ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		final byte[] bytes = new byte[length];
+		int offset = 0;
+		for (final ByteBuffer buffer : buffers) {
+			final int remaining = buffer.remaining();
+			buffer.get(bytes, offset, remaining);
+			offset += remaining;
+		}
+		doWrite(bytes);
+	}
+
+	/**
+	 * Write the bytes. Called with each whole frame, except that a frame
+	 * written through a {@link PayloadStream} arrives in parts.
+	 * 
+	 * @param bytes
+	 * @throws IOException
+	 * @deprecated override {@link #doWrite(ByteBuffer[])}, which avoids
+	 *             copying each frame
+	 */
+	@Deprecated
+	protected void doWrite(final byte[] bytes) throws IOException {
+		throw new UnsupportedOperationException("doWrite(ByteBuffer[]) is not overridden");
+	}
+
+	@Override
+	public void write(final byte[] payload) throws IOException {
+		write(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Writes the remaining bytes of the payload as a single frame without
+	 * copying it. The position of the payload is advanced to its limit.
+	 * 
+	 * @throws IllegalArgumentException if the length prefix cannot encode the
+	 *         payload
+	 * @throws IllegalStateException if a payload stream is open
+	 */
 	@Override
-	public synchronized void write(final byte[] payload) throws IOException {
-		final DataOutputStream dos = new DataOutputStream(this.baos);
-		dos.writeInt(payload.length);
-		dos.write(payload);
-		final byte[] resultant = this.baos.toByteArray();
-		this.baos.reset();
-		doWrite(resultant);
+	public void write(final ByteBuffer payload) throws IOException {
+		lockInterruptibly();
+		try {
+			checkNoStream();
+			this.header.clear();
+			this.lengthPrefix.encode(payload, this.header);
+			this.header.flip();
+
+			final ByteBuffer[] buffers;
+			if (this.checksum == null) {
+				buffers = this.frame;
+			} else {
+				startChecksum();
+				updateChecksum(payload);
+				finishChecksum();
+				buffers = this.checksummedFrame;
+			}
+
+			buffers[1] = payload;
+			try {
+				doWrite(buffers);
+			} finally {
+				buffers[1] = null;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Start a frame whose payload is written in chunks through the returned
+	 * stream, so that frames of any size may be written in constant memory.
+	 * The length must be known up front. No other frame may be written until
+	 * the stream is closed.
+	 * 
+	 * @param length the exact length of the payload
+	 * @return the payload stream
+	 * @throws IllegalArgumentException if the length prefix cannot encode the
+	 *         length
+	 * @throws UnsupportedOperationException if the length prefix needs the
+	 *         payload
+	 * @throws IllegalStateException if a payload stream is already open
+	 */
+	public PayloadStream writeMessageStream(final int length) {
+		this.lock.lock();
+		try {
+			checkNoStream();
+			if (length < 0) {
+				throw new IllegalArgumentException("Negative length " + length);
+			}
+			this.header.clear();
+			this.lengthPrefix.encodeLength(length, this.header);
+			this.header.flip();
+			if (this.checksum != null) {
+				startChecksum();
+			}
+			this.stream = new PayloadStream(length);
+			return this.stream;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquire the {@link #lock} unless interrupted, so that a thread waiting
+	 * behind a blocked write can be cancelled.
+	 * 
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	final void lockInterruptibly() throws InterruptedIOException {
+		try {
+			this.lock.lockInterruptibly();
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Start the checksum of a new frame with its header.
+	 */
+	private void startChecksum() {
+		this.checksum.reset();
+		updateChecksum(this.header);
+	}
+
+	/**
+	 * Add the remaining bytes of the source to the checksum, leaving its
+	 * position unchanged.
+	 */
+	private void updateChecksum(final ByteBuffer source) {
+		final int position = source.position();
+		this.checksum.update(source);
+		source.position(position);
+	}
+
+	/**
+	 * Write the checksum of the frame into the trailer.
+	 */
+	private void finishChecksum() {
+		this.trailer.clear();
+		this.trailer.putInt(this.checksum.intValue());
+		this.trailer.flip();
+	}
+
+	private void checkNoStream() {
+		if (this.stream != null) {
+			throw new IllegalStateException("A payload stream is open");
+		}
+	}
+
+	/**
+	 * The payload of a single frame, written straight through to the
+	 * transport as each chunk is written. Available as both an
+	 * {@link OutputStream} and a {@link WritableByteChannel}. The length
+	 * prefix is written with the first chunk and any checksum trailer when
+	 * closed.
+	 */
+	public final class PayloadStream
+		extends OutputStream
+		implements WritableByteChannel {
+
+		/**
+		 * Reused by {@link #write(int)}, guarded by the writer's lock.
+		 */
+		private final ByteBuffer single = ByteBuffer.allocate(1);
+
+		private int remaining;
+		private boolean headerWritten = false;
+		private boolean open = true;
+
+		PayloadStream(final int length) {
+			super();
+			this.remaining = length;
+		}
+
+		/**
+		 * @return the number of payload bytes still to be written
+		 */
+		public int remaining() {
+			LengthPrefixedMessageWriter.this.lock.lock();
+			try {
+				return this.remaining;
+			} finally {
+				LengthPrefixedMessageWriter.this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			lockInterruptibly();
+			try {
+				this.single.clear();
+				this.single.put(0, (byte) b);
+				write(this.single);
+			} finally {
+				LengthPrefixedMessageWriter.this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+			write(ByteBuffer.wrap(bytes, offset, length));
+		}
+
+		/**
+		 * @throws IOException if the chunk would exceed the length of the
+		 *         payload
+		 */
+		@Override
+		public int write(final ByteBuffer source) throws IOException {
+			lockInterruptibly();
+			try {
+				if (!this.open) {
+					throw new ClosedChannelException();
+				}
+				final int length = source.remaining();
+				if (length > this.remaining) {
+					throw new IOException("Chunk of " + length + " bytes exceeds the " + this.remaining
+							+ " bytes remaining of the payload");
+				}
+				if (LengthPrefixedMessageWriter.this.checksum != null) {
+					updateChecksum(source);
+				}
+				writeChunk(source);
+				this.remaining -= length;
+				return length;
+			} finally {
+				LengthPrefixedMessageWriter.this.lock.unlock();
+			}
+		}
+
+		private void writeChunk(final ByteBuffer source) throws IOException {
+			final ByteBuffer[] buffers;
+			if (this.headerWritten) {
+				buffers = LengthPrefixedMessageWriter.this.chunk;
+				buffers[0] = source;
+			} else {
+				buffers = LengthPrefixedMessageWriter.this.frame;
+				buffers[1] = source;
+			}
+			try {
+				doWrite(buffers);
+				this.headerWritten = true;
+			} finally {
+				buffers[buffers.length - 1] = null;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			LengthPrefixedMessageWriter.this.flush();
+		}
+
+		@Override
+		public boolean isOpen() {
+			LengthPrefixedMessageWriter.this.lock.lock();
+			try {
+				return this.open;
+			} finally {
+				LengthPrefixedMessageWriter.this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Completes the frame, allowing the next to be written.
+		 * 
+		 * @throws IOException if less than the length of the payload was
+		 *         written. The stream of frames is then corrupt.
+		 */
+		@Override
+		public void close() throws IOException {
+			LengthPrefixedMessageWriter.this.lock.lock();
+			try {
+				if (!this.open) {
+					return;
+				}
+				this.open = false;
+				LengthPrefixedMessageWriter.this.stream = null;
+				if (!this.headerWritten) {
+					writeChunk(ByteBuffer.allocate(0));
+				}
+				if (this.remaining > 0) {
+					throw new IOException("Payload stream closed with " + this.remaining + " bytes unwritten");
+				}
+				if (LengthPrefixedMessageWriter.this.checksum != null) {
+					finishChecksum();
+					writeChunk(LengthPrefixedMessageWriter.this.trailer);
+				}
+			} finally {
+				LengthPrefixedMessageWriter.this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param buffers
+	 * @return true if any of the buffers has remaining bytes
+	 */
+	protected static boolean hasRemaining(final ByteBuffer[] buffers) {
+		for (final ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
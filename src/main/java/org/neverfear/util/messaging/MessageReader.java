@@ -2,6 +2,8 @@ package org.neverfear.util.messaging;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 public interface MessageReader
 	extends Closeable {
@@ -18,4 +20,27 @@ public interface MessageReader
 	 */
 	byte[] readMessage() throws IOException;
 
+	/**
+	 * Read one complete message into the passed buffer. The payload is written
+	 * from the current position of the destination which is advanced by the
+	 * length of the payload.
+	 * 
+	 * Blocks until full message is received.
+	 * 
+	 * @param destination
+	 * @return the length of the payload or -1 if EOF was reached.
+	 * @throws BufferOverflowException if the destination does not have enough
+	 *         space for the payload. Unless otherwise stated by the
+	 *         implementation the message is lost.
+	 * @throws IOException
+	 */
+	default int readMessage(final ByteBuffer destination) throws IOException {
+		final byte[] message = readMessage();
+		if (message == null) {
+			return -1;
+		}
+		destination.put(message);
+		return message.length;
+	}
+
 }
\ No newline at end of file
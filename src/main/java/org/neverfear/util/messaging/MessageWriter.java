@@ -1,11 +1,33 @@
 package org.neverfear.util.messaging;
 
 import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface MessageWriter
-	extends Closeable {
+	extends Closeable, Flushable {
 
 	void write(final byte[] payload) throws IOException;
 
-}
\ No newline at end of file
+	/**
+	 * Write the remaining bytes of the buffer as one message. The position of
+	 * the buffer is advanced to its limit.
+	 * 
+	 * @param payload
+	 * @throws IOException
+	 */
+	default void write(final ByteBuffer payload) throws IOException {
+		final byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		write(bytes);
+	}
+
+	/**
+	 * Write any buffered messages. Writers that do not buffer need not
+	 * override this.
+	 */
+	@Override
+	default void flush() throws IOException {}
+
+}
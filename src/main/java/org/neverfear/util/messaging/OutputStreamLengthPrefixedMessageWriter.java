@@ -1,14 +1,23 @@
 package org.neverfear.util.messaging;
 
+import static java.lang.Math.min;
+
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Frames that fit within the configured size are copied into a reusable array
+ * so they are passed to the stream with a single write. Larger frames are
+ * written straight from the payload where it is backed by an array.
+ */
 public class OutputStreamLengthPrefixedMessageWriter
 	extends LengthPrefixedMessageWriter {
 
 	public static final int DEFAULT_SIZE = 1024;
 
 	private final OutputStream outputStream;
+	private final byte[] byteArray;
 
 	public OutputStreamLengthPrefixedMessageWriter(final OutputStream outputStream) {
 		this(outputStream,
@@ -16,13 +25,67 @@ public class OutputStreamLengthPrefixedMessageWriter
 	}
 
 	public OutputStreamLengthPrefixedMessageWriter(final OutputStream outputStream, final int size) {
-		super(size);
+		this(outputStream,
+				size,
+				LengthPrefix.standard());
+	}
+
+	public OutputStreamLengthPrefixedMessageWriter(final OutputStream outputStream,
+			final int size,
+			final LengthPrefix lengthPrefix) {
+		this(outputStream,
+				size,
+				lengthPrefix,
+				FrameChecksum.none());
+	}
+
+	public OutputStreamLengthPrefixedMessageWriter(final OutputStream outputStream,
+			final int size,
+			final LengthPrefix lengthPrefix,
+			final FrameChecksum frameChecksum) {
+		super(lengthPrefix, frameChecksum);
 		this.outputStream = outputStream;
+		this.byteArray = new byte[size];
+	}
+
+	@Override
+	protected void doWrite(final ByteBuffer[] buffers) throws IOException {
+		int total = 0;
+		for (final ByteBuffer buffer : buffers) {
+			total += buffer.remaining();
+		}
+
+		if (total <= this.byteArray.length) {
+			int offset = 0;
+			for (final ByteBuffer buffer : buffers) {
+				final int size = buffer.remaining();
+				buffer.get(this.byteArray, offset, size);
+				offset += size;
+			}
+			this.outputStream.write(this.byteArray, 0, total);
+		} else {
+			for (final ByteBuffer buffer : buffers) {
+				writeBuffer(buffer);
+			}
+		}
+	}
+
+	private void writeBuffer(final ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			this.outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+		} else {
+			while (buffer.hasRemaining()) {
+				final int size = min(buffer.remaining(), this.byteArray.length);
+				buffer.get(this.byteArray, 0, size);
+				this.outputStream.write(this.byteArray, 0, size);
+			}
+		}
 	}
 
 	@Override
-	protected void doWrite(final byte[] message) throws IOException {
-		this.outputStream.write(message);
+	public void flush() throws IOException {
+		this.outputStream.flush();
 	}
 
 	@Override
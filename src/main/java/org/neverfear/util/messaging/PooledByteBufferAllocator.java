@@ -0,0 +1,258 @@
+package org.neverfear.util.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pools buffers in power of two size classes. Each thread keeps a small cache
+ * per size class which is checked first, falling back to a lock-free pool
+ * shared by all threads and finally to allocating a new buffer.
+ * <p>
+ * Requests larger than the maximum size class are allocated without pooling
+ * and dropped when released.
+ * <p>
+ * Buffers must be released at most once and must not be used after release.
+ * The {@link #stats()} track the number outstanding so that leaks can be
+ * spotted. When assertions are enabled every pooled buffer is also tracked,
+ * so that releasing one twice fails at the second release rather than later,
+ * when two owners are handed the same buffer.
+ */
+public final class PooledByteBufferAllocator
+	extends ByteBufferAllocator {
+
+	public static final int DEFAULT_MIN_CAPACITY = 64;
+	public static final int DEFAULT_MAX_CAPACITY = 1024 * 1024;
+	public static final int DEFAULT_THREAD_CACHE_SIZE = 8;
+	public static final int DEFAULT_MAX_POOLED = 256;
+
+	private static final boolean CHECKED;
+
+	static {
+		boolean checked = false;
+		assert checked = true;
+		CHECKED = checked;
+	}
+
+	/**
+	 * A point in time view of the pool's counters.
+	 */
+	public static final class Stats {
+
+		private final long hits;
+		private final long misses;
+		private final long outstanding;
+
+		Stats(final long hits, final long misses, final long outstanding) {
+			super();
+			this.hits = hits;
+			this.misses = misses;
+			this.outstanding = outstanding;
+		}
+
+		/**
+		 * @return the number of allocations served from a cache or pool
+		 */
+		public long hits() {
+			return this.hits;
+		}
+
+		/**
+		 * @return the number of allocations that created a new buffer
+		 */
+		public long misses() {
+			return this.misses;
+		}
+
+		/**
+		 * @return the number of buffers allocated and not yet released
+		 */
+		public long outstanding() {
+			return this.outstanding;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats [hits=" + this.hits + ", misses=" + this.misses + ", outstanding=" + this.outstanding + "]";
+		}
+	}
+
+	/**
+	 * Per thread cache of released buffers for each size class.
+	 */
+	private final class ThreadCache {
+		final ByteBuffer[][] buffers = new ByteBuffer[PooledByteBufferAllocator.this.sizeClasses][PooledByteBufferAllocator.this.threadCacheSize];
+		final int[] counts = new int[PooledByteBufferAllocator.this.sizeClasses];
+	}
+
+	private final int minShift;
+	private final int maxCapacity;
+	private final int sizeClasses;
+	private final int threadCacheSize;
+	private final int maxPooled;
+
+	private final Queue<ByteBuffer>[] pools;
+	private final AtomicInteger[] pooledCounts;
+	private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(ThreadCache::new);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder outstanding = new LongAdder();
+
+	/**
+	 * The buffers currently held by a cache or pool, if assertions are
+	 * enabled.
+	 */
+	private final Set<ByteBuffer> pooled = CHECKED
+			? Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()))
+			: null;
+
+	public PooledByteBufferAllocator(final boolean direct) {
+		this(direct,
+				DEFAULT_MIN_CAPACITY,
+				DEFAULT_MAX_CAPACITY,
+				DEFAULT_THREAD_CACHE_SIZE,
+				DEFAULT_MAX_POOLED);
+	}
+
+	/**
+	 * @param direct whether to pool direct buffers
+	 * @param minCapacity the smallest size class, rounded up to a power of
+	 *            two
+	 * @param maxCapacity the largest size class, rounded up to a power of two
+	 * @param threadCacheSize the number of buffers of each size class cached
+	 *            per thread
+	 * @param maxPooled the number of buffers of each size class held in the
+	 *            shared pool
+	 */
+	@SuppressWarnings("unchecked")
+	public PooledByteBufferAllocator(final boolean direct,
+			final int minCapacity,
+			final int maxCapacity,
+			final int threadCacheSize,
+			final int maxPooled) {
+		super(direct);
+		if (minCapacity < 1 || maxCapacity < minCapacity || maxCapacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity range " + minCapacity + " to " + maxCapacity);
+		}
+		this.minShift = shift(minCapacity);
+		this.maxCapacity = 1 << shift(maxCapacity);
+		this.sizeClasses = shift(maxCapacity) - this.minShift + 1;
+		this.threadCacheSize = threadCacheSize;
+		this.maxPooled = maxPooled;
+
+		this.pools = new Queue[this.sizeClasses];
+		this.pooledCounts = new AtomicInteger[this.sizeClasses];
+		for (int i = 0; i < this.sizeClasses; i++) {
+			this.pools[i] = new ConcurrentLinkedQueue<>();
+			this.pooledCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @param capacity
+	 * @return the power of two exponent of the smallest power of two that is
+	 *         at least the capacity
+	 */
+	private static int shift(final int capacity) {
+		return capacity <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1);
+	}
+
+	/**
+	 * @param capacity
+	 * @return the size class of the capacity or -1 if it is not pooled
+	 */
+	private int sizeClass(final int capacity) {
+		if (capacity > this.maxCapacity) {
+			return -1;
+		}
+		return Math.max(0, shift(capacity) - this.minShift);
+	}
+
+	@Override
+	public ByteBuffer allocate(final int capacity) {
+		this.outstanding.increment();
+
+		final int sizeClass = sizeClass(capacity);
+		if (sizeClass < 0) {
+			this.misses.increment();
+			return newBuffer(capacity);
+		}
+
+		ByteBuffer buffer = null;
+		final ThreadCache cache = this.threadCaches.get();
+		final int count = cache.counts[sizeClass];
+		if (count > 0) {
+			buffer = cache.buffers[sizeClass][count - 1];
+			cache.buffers[sizeClass][count - 1] = null;
+			cache.counts[sizeClass] = count - 1;
+		} else {
+			buffer = this.pools[sizeClass].poll();
+			if (buffer != null) {
+				this.pooledCounts[sizeClass].decrementAndGet();
+			}
+		}
+
+		if (buffer == null) {
+			this.misses.increment();
+			buffer = newBuffer(1 << (sizeClass + this.minShift));
+		} else {
+			this.hits.increment();
+			if (this.pooled != null) {
+				this.pooled.remove(buffer);
+			}
+			buffer.clear();
+		}
+		buffer.limit(capacity);
+		return buffer;
+	}
+
+	private ByteBuffer newBuffer(final int capacity) {
+		return isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * @throws IllegalStateException if assertions are enabled and the buffer
+	 *         has already been released
+	 */
+	@Override
+	public void release(final ByteBuffer buffer) {
+		final int capacity = buffer.capacity();
+		final int sizeClass = sizeClass(capacity);
+		if (sizeClass < 0 || capacity != 1 << (sizeClass + this.minShift) || buffer.isDirect() != isDirect()) {
+			// Not one of ours to pool
+			this.outstanding.decrement();
+			return;
+		}
+		if (this.pooled != null && !this.pooled.add(buffer)) {
+			throw new IllegalStateException("Buffer released twice: " + buffer);
+		}
+		this.outstanding.decrement();
+
+		final ThreadCache cache = this.threadCaches.get();
+		final int count = cache.counts[sizeClass];
+		if (count < this.threadCacheSize) {
+			cache.buffers[sizeClass][count] = buffer;
+			cache.counts[sizeClass] = count + 1;
+			return;
+		}
+
+		if (this.pooledCounts[sizeClass].incrementAndGet() <= this.maxPooled) {
+			this.pools[sizeClass].add(buffer);
+		} else {
+			this.pooledCounts[sizeClass].decrementAndGet();
+			if (this.pooled != null) {
+				this.pooled.remove(buffer);
+			}
+		}
+	}
+
+	public Stats stats() {
+		return new Stats(this.hits.sum(), this.misses.sum(), this.outstanding.sum());
+	}
+}
@@ -0,0 +1,243 @@
+package org.neverfear.util.messaging;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the work done by a {@link LengthPrefixedMessageReader}: how
+ * many frames it read, how often it had to go back to its source for more
+ * bytes and how large the frames were. A high proportion of partial frames
+ * or compactions suggests the receive buffer is too small for the traffic.
+ */
+public final class ReaderStats {
+
+	/**
+	 * The number of buckets in the frame size distribution: one for empty
+	 * frames and one for each power of two up to {@link Integer#MAX_VALUE}.
+	 */
+	public static final int FRAME_SIZE_BUCKETS = Integer.SIZE;
+
+	/**
+	 * Accumulates the counts a snapshot is taken of. Recording is lock free
+	 * and does not allocate.
+	 */
+	static final class Counters
+		implements ReaderStatsMXBean {
+
+		private final LongAdder frames = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder fills = new LongAdder();
+		private final LongAdder partialFrames = new LongAdder();
+		private final LongAdder compactions = new LongAdder();
+		private final LongAdder eofs = new LongAdder();
+		private final LongAdder[] frameSizes = new LongAdder[FRAME_SIZE_BUCKETS];
+
+		Counters() {
+			super();
+			for (int i = 0; i < this.frameSizes.length; i++) {
+				this.frameSizes[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * @param length the length of the payload of a frame read
+		 */
+		void recordFrame(final int length) {
+			this.frames.increment();
+			this.bytes.add(length);
+			this.frameSizes[bucket(length)].increment();
+		}
+
+		/**
+		 * @param eof true if the source was at EOF
+		 */
+		void recordFill(final boolean eof) {
+			this.fills.increment();
+			if (eof) {
+				this.eofs.increment();
+			}
+		}
+
+		void recordPartialFrame() {
+			this.partialFrames.increment();
+		}
+
+		void recordCompaction() {
+			this.compactions.increment();
+		}
+
+		@Override
+		public long getFrames() {
+			return this.frames.sum();
+		}
+
+		@Override
+		public long getBytes() {
+			return this.bytes.sum();
+		}
+
+		@Override
+		public long getFills() {
+			return this.fills.sum();
+		}
+
+		@Override
+		public long getPartialFrames() {
+			return this.partialFrames.sum();
+		}
+
+		@Override
+		public long getCompactions() {
+			return this.compactions.sum();
+		}
+
+		@Override
+		public long getEofs() {
+			return this.eofs.sum();
+		}
+
+		@Override
+		public long[] getFrameSizes() {
+			final long[] sizes = new long[this.frameSizes.length];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = this.frameSizes[i].sum();
+			}
+			return sizes;
+		}
+
+		ReaderStats snapshot() {
+			return new ReaderStats(getFrames(),
+					getBytes(),
+					getFills(),
+					getPartialFrames(),
+					getCompactions(),
+					getEofs(),
+					getFrameSizes());
+		}
+	}
+
+	private final long frames;
+	private final long bytes;
+	private final long fills;
+	private final long partialFrames;
+	private final long compactions;
+	private final long eofs;
+	private final long[] frameSizes;
+
+	ReaderStats(final long frames,
+			final long bytes,
+			final long fills,
+			final long partialFrames,
+			final long compactions,
+			final long eofs,
+			final long[] frameSizes) {
+		super();
+		this.frames = frames;
+		this.bytes = bytes;
+		this.fills = fills;
+		this.partialFrames = partialFrames;
+		this.compactions = compactions;
+		this.eofs = eofs;
+		this.frameSizes = frameSizes;
+	}
+
+	/**
+	 * @param length
+	 * @return the index of the frame size bucket that counts frames of the
+	 *         passed length
+	 */
+	public static int bucket(final int length) {
+		return Integer.SIZE - Integer.numberOfLeadingZeros(length);
+	}
+
+	/**
+	 * @return the number of frames read
+	 */
+	public long frames() {
+		return this.frames;
+	}
+
+	/**
+	 * @return the total length of their payloads
+	 */
+	public long bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return the number of times the reader read from its source
+	 */
+	public long fills() {
+		return this.fills;
+	}
+
+	/**
+	 * @return the number of frames that were not entirely buffered when their
+	 *         length was read, so that the rest had to be waited for
+	 */
+	public long partialFrames() {
+		return this.partialFrames;
+	}
+
+	/**
+	 * @return the number of times unread bytes were moved to the start of the
+	 *         receive buffer to make room for more
+	 */
+	public long compactions() {
+		return this.compactions;
+	}
+
+	/**
+	 * @return the number of reads from the source that returned EOF
+	 */
+	public long eofs() {
+		return this.eofs;
+	}
+
+	/**
+	 * @return the distribution of payload lengths. Element 0 counts empty
+	 *         frames and element n counts frames of at least 2^(n-1) and less
+	 *         than 2^n bytes. See {@link #bucket(int)}.
+	 */
+	public long[] frameSizes() {
+		return this.frameSizes.clone();
+	}
+
+	/**
+	 * @return the mean payload length
+	 */
+	public double meanFrameSize() {
+		return this.frames == 0 ? 0.0 : (double) this.bytes / this.frames;
+	}
+
+	/**
+	 * An upper bound on a percentile of the payload lengths, accurate to a
+	 * power of two. A receive buffer of this size holds that proportion of
+	 * frames whole.
+	 * 
+	 * @param percentile between 0 and 100
+	 * @return the length below which at least the passed percentage of
+	 *         payloads fall, or 0 if no frames have been read
+	 */
+	public long frameSizePercentile(final double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile " + percentile + " is not between 0 and 100");
+		}
+		final double target = this.frames * percentile / 100;
+		long count = 0;
+		for (int i = 0; i < this.frameSizes.length; i++) {
+			count += this.frameSizes[i];
+			if (count > 0 && count >= target) {
+				return i == 0 ? 0 : (1L << i) - 1;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ReaderStats [frames=" + this.frames + ", bytes=" + this.bytes + ", fills=" + this.fills
+				+ ", partialFrames=" + this.partialFrames + ", compactions=" + this.compactions + ", eofs="
+				+ this.eofs + ", frameSizes=" + Arrays.toString(this.frameSizes) + "]";
+	}
+}
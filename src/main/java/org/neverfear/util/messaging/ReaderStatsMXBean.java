@@ -0,0 +1,29 @@
+package org.neverfear.util.messaging;
+
+/**
+ * The live counters of a {@link LengthPrefixedMessageReader}, for
+ * registration with an MBean server. Each attribute is read afresh, so
+ * attributes read one after the other may be slightly inconsistent; use
+ * {@link LengthPrefixedMessageReader#stats()} for a snapshot.
+ * 
+ * @see ReaderStats
+ */
+public interface ReaderStatsMXBean {
+
+	long getFrames();
+
+	long getBytes();
+
+	long getFills();
+
+	long getPartialFrames();
+
+	long getCompactions();
+
+	long getEofs();
+
+	/**
+	 * @see ReaderStats#frameSizes()
+	 */
+	long[] getFrameSizes();
+}
@@ -0,0 +1,438 @@
+package org.neverfear.util.messaging;
+
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neverfear.util.concurrent.DirectMemory;
+import org.neverfear.util.concurrent.IdleStrategy;
+
+/**
+ * A writer for many producer threads sharing one channel without a lock.
+ * <p>
+ * Producers claim space for their frame in a ring buffer by advancing its
+ * tail with a compare and swap, copy the framed bytes in and then commit the
+ * frame by storing its length in the header word before it. A single
+ * drainer, either a thread running this writer or a caller of
+ * {@link #drain()} or {@link #flush()}, gathers every committed frame from
+ * the head of the ring and writes them to the channel in one write. Draining
+ * is claimed exclusively, so only one thread drains at a time. Producers only
+ * wait when the ring is full.
+ * <p>
+ * Each frame occupies a 4 byte header plus its framed bytes, rounded up to a
+ * multiple of 4. The framed bytes may wrap around the end of the ring but the
+ * header never does. The drainer zeroes the space it releases, so a header
+ * reads zero until its frame is committed.
+ */
+public final class RingBufferMessageWriter
+	implements MessageWriter, Runnable {
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	/**
+	 * The size, and alignment, of the header before each frame.
+	 */
+	private static final int HEADER_SIZE = Integer.BYTES;
+
+	/**
+	 * The most regions passed to the channel in one write. Each frame takes
+	 * one region, or two if it wraps.
+	 */
+	private static final int MAX_GATHER = 16;
+
+	/**
+	 * The state each producer thread reuses between frames.
+	 */
+	private final class Producer {
+
+		private final ByteBuffer header = ByteBuffer.allocate(RingBufferMessageWriter.this.lengthPrefix.maxSize());
+		private final ByteBuffer ring = RingBufferMessageWriter.this.ring.duplicate();
+
+		/**
+		 * Copies the source into the ring, wrapping at the end.
+		 */
+		void put(final long position, final ByteBuffer source) {
+			final int offset = index(position);
+			final int first = min(source.remaining(), RingBufferMessageWriter.this.capacity - offset);
+
+			this.ring.limit(offset + first);
+			this.ring.position(offset);
+			final int limit = source.limit();
+			source.limit(source.position() + first);
+			this.ring.put(source);
+			source.limit(limit);
+
+			if (source.hasRemaining()) {
+				this.ring.clear();
+				this.ring.put(source);
+			}
+		}
+	}
+
+	private final WritableByteChannel channel;
+	private final LengthPrefix lengthPrefix;
+	private final int capacity;
+	private final ByteBuffer ring;
+
+	/**
+	 * The address of the ring, for ordered access to frame headers.
+	 */
+	private final long address;
+
+	private final IdleStrategy producerIdleStrategy;
+	private final IdleStrategy drainerIdleStrategy;
+	private final ThreadLocal<Producer> producers = ThreadLocal.withInitial(Producer::new);
+
+	/**
+	 * The position after the last claimed byte.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The number of writes that have passed the closed check but not yet
+	 * committed their frame. {@link #close()} waits for them so that no
+	 * frame is committed after the final drain.
+	 */
+	private final AtomicInteger writing = new AtomicInteger();
+
+	/**
+	 * The position of the first byte not yet written to the channel. Only
+	 * advanced by the drainer.
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * The drainer's views of the ring.
+	 */
+	private final ByteBuffer[] regions;
+
+	/**
+	 * Claimed by whichever thread is draining, and held by a thread running
+	 * the writer for as long as it runs.
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	private volatile boolean closed = false;
+	private volatile Thread drainer = null;
+	private volatile IOException failure = null;
+
+	public RingBufferMessageWriter(final WritableByteChannel channel) {
+		this(channel,
+				DEFAULT_CAPACITY,
+				LengthPrefix.standard(),
+				IdleStrategy.yielding(),
+				IdleStrategy.backoff(100, 10, 100_000));
+	}
+
+	/**
+	 * @param channel a blocking channel
+	 * @param capacity the size of the ring, a power of two of at least 8.
+	 *            Bounds the largest frame.
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param producerIdleStrategy how producers wait for space
+	 * @param drainerIdleStrategy how the drainer thread waits for frames
+	 */
+	public RingBufferMessageWriter(final WritableByteChannel channel,
+			final int capacity,
+			final LengthPrefix lengthPrefix,
+			final IdleStrategy producerIdleStrategy,
+			final IdleStrategy drainerIdleStrategy) {
+		if (capacity < 2 * HEADER_SIZE || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two of at least " + 2 * HEADER_SIZE
+					+ ": " + capacity);
+		}
+		this.channel = channel;
+		this.lengthPrefix = lengthPrefix;
+		this.capacity = capacity;
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.address = DirectMemory.address(this.ring);
+		this.producerIdleStrategy = producerIdleStrategy;
+		this.drainerIdleStrategy = drainerIdleStrategy;
+		this.regions = new ByteBuffer[MAX_GATHER];
+		for (int i = 0; i < this.regions.length; i++) {
+			this.regions[i] = this.ring.duplicate();
+		}
+	}
+
+	private int index(final long position) {
+		return (int) position & (this.capacity - 1);
+	}
+
+	/**
+	 * @param length the number of framed bytes
+	 * @return the space the frame occupies in the ring
+	 */
+	private static int recordSize(final int length) {
+		return (HEADER_SIZE + length + HEADER_SIZE - 1) & -HEADER_SIZE;
+	}
+
+	private void checkOpen() throws IOException {
+		if (this.failure != null) {
+			throw new IOException("Drainer failed", this.failure);
+		}
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public void write(final byte[] payload) throws IOException {
+		write(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Copies the frame into the ring, waiting only if the ring is full. The
+	 * frame is written to the channel by the drainer.
+	 * 
+	 * @throws IllegalArgumentException if the frame is larger than the ring
+	 * @throws ClosedChannelException if the writer is closed, in which case
+	 *         the frame is not written
+	 */
+	@Override
+	public void write(final ByteBuffer payload) throws IOException {
+		this.writing.incrementAndGet();
+		try {
+			// Checked after announcing the write, so close() either fails it
+			// here or waits for it to commit
+			checkOpen();
+
+			final Producer producer = this.producers.get();
+			producer.header.clear();
+			this.lengthPrefix.encode(payload, producer.header);
+			producer.header.flip();
+
+			final int length = producer.header.remaining() + payload.remaining();
+			if (recordSize(length) > this.capacity) {
+				throw new IllegalArgumentException("Frame of " + length + " bytes does not fit in a ring of "
+						+ this.capacity + " bytes");
+			}
+
+			final long position = claim(recordSize(length));
+			producer.put(position + HEADER_SIZE, producer.header);
+			producer.put(position + HEADER_SIZE + producer.header.limit(), payload);
+			DirectMemory.putOrderedInt(this.address + index(position), length);
+		} finally {
+			this.writing.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param size
+	 * @return the position of the claimed space
+	 * @throws IOException if the writer is closed while waiting for space
+	 */
+	private long claim(final int size) throws IOException {
+		int attempt = 0;
+		while (true) {
+			final long tail = this.tail.get();
+			if (tail + size - this.head > this.capacity) {
+				checkOpen();
+				this.producerIdleStrategy.idle(attempt++);
+				continue;
+			}
+			if (this.tail.compareAndSet(tail, tail + size)) {
+				return tail;
+			}
+		}
+	}
+
+	/**
+	 * Writes every committed frame at the head of the ring to the channel, up
+	 * to {@value #MAX_GATHER} regions at a time. Does nothing if another
+	 * thread is draining, including a thread running the writer.
+	 * 
+	 * @return the number of bytes written, which is 0 if another thread is
+	 *         draining
+	 * @throws IOException
+	 */
+	public int drain() throws IOException {
+		if (!this.draining.compareAndSet(false, true)) {
+			return 0;
+		}
+		try {
+			return drainClaimed();
+		} finally {
+			this.draining.set(false);
+		}
+	}
+
+	/**
+	 * Drains on behalf of the thread that has claimed draining.
+	 */
+	private int drainClaimed() throws IOException {
+		final long start = this.head;
+		long end = start;
+		int count = 0;
+		int written = 0;
+		while (count + 2 <= this.regions.length && end - start < this.capacity) {
+			final int length = DirectMemory.getIntVolatile(this.address + index(end));
+			if (length == 0) {
+				break;
+			}
+			count = addRegions(count, end + HEADER_SIZE, length);
+			written += length;
+			end += recordSize(length);
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		writeFully(count);
+
+		// Releases the space to producers, with every header in it zeroed
+		zero(start, end);
+		this.head = end;
+		return written;
+	}
+
+	/**
+	 * Sets the next one or two regions to the bytes of a frame.
+	 * 
+	 * @return the number of regions now in use
+	 */
+	private int addRegions(final int count, final long position, final int length) {
+		final int offset = index(position);
+		final int first = min(length, this.capacity - offset);
+		this.regions[count].limit(offset + first);
+		this.regions[count].position(offset);
+		if (first == length) {
+			return count + 1;
+		}
+		this.regions[count + 1].limit(length - first);
+		this.regions[count + 1].position(0);
+		return count + 2;
+	}
+
+	private void zero(final long start, final long end) {
+		final int offset = index(start);
+		final int length = (int) (end - start);
+		final int first = min(length, this.capacity - offset);
+		DirectMemory.zero(this.address + offset, first);
+		if (first < length) {
+			DirectMemory.zero(this.address, length - first);
+		}
+	}
+
+	private void writeFully(final int count) throws IOException {
+		int attempt = 0;
+		while (this.regions[count - 1].hasRemaining()) {
+			long written;
+			if (this.channel instanceof GatheringByteChannel) {
+				written = ((GatheringByteChannel) this.channel).write(this.regions, 0, count);
+			} else {
+				written = 0;
+				for (int i = 0; i < count; i++) {
+					written += this.channel.write(this.regions[i]);
+				}
+			}
+			if (written == 0) {
+				this.drainerIdleStrategy.idle(attempt++);
+			}
+		}
+	}
+
+	/**
+	 * Drains frames until the writer is closed and every frame has been
+	 * written. A failure to write stops the drainer and fails subsequent
+	 * writes.
+	 */
+	@Override
+	public void run() {
+		int attempt = 0;
+		while (!this.draining.compareAndSet(false, true)) {
+			if (this.closed && this.head == this.tail.get()) {
+				return;
+			}
+			// Another thread is draining, for a flush or running the writer
+			this.drainerIdleStrategy.idle(attempt++);
+		}
+		this.drainer = Thread.currentThread();
+		try {
+			attempt = 0;
+			while (!this.closed || this.head != this.tail.get()) {
+				if (drainClaimed() > 0) {
+					attempt = 0;
+				} else {
+					this.drainerIdleStrategy.idle(attempt++);
+				}
+			}
+		} catch (final IOException e) {
+			this.failure = e;
+		} finally {
+			this.drainer = null;
+			this.draining.set(false);
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the ring claimed but not yet written to
+	 *         the channel, including frame headers
+	 */
+	public int pending() {
+		return (int) (this.tail.get() - this.head);
+	}
+
+	/**
+	 * Waits until every frame written before the call has been written to the
+	 * channel. Drains on the caller's thread if no other thread is draining,
+	 * otherwise waits for that thread to write them.
+	 */
+	@Override
+	public void flush() throws IOException {
+		final long target = this.tail.get();
+		int attempt = 0;
+		while (this.head < target) {
+			if (this.failure != null) {
+				throw new IOException("Drainer failed", this.failure);
+			}
+			if (drain() > 0) {
+				attempt = 0;
+			} else {
+				// Waiting for another drainer, or for a claimed frame to be
+				// committed
+				this.producerIdleStrategy.idle(attempt++);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting frames, waits for every frame to be written and closes
+	 * the channel. Writes that race with the close either fail or are
+	 * written, never lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		try {
+			int attempt = 0;
+			while (this.writing.get() > 0) {
+				this.producerIdleStrategy.idle(attempt++);
+			}
+
+			final Thread thread = this.drainer;
+			if (thread != null && thread != Thread.currentThread()) {
+				thread.join();
+			}
+			if (this.failure == null) {
+				flush();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread()
+					.interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			this.channel.close();
+		}
+		if (this.failure != null) {
+			throw new IOException("Drainer failed", this.failure);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package org.neverfear.util.messaging;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
@@ -19,18 +20,94 @@ public final class SocketChannelLengthPrefixedMessageReader
 	}
 
 	public SocketChannelLengthPrefixedMessageReader(final SocketChannel channel, final int size) {
-		super(size);
+		this(channel,
+				size,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param channel
+	 * @param size
+	 * @param allocator a direct allocator lets socket reads land straight in
+	 *            the receive buffer
+	 */
+	public SocketChannelLengthPrefixedMessageReader(final SocketChannel channel,
+			final int size,
+			final ByteBufferAllocator allocator) {
+		this(channel,
+				size,
+				allocator,
+				LengthPrefix.standard());
+	}
+
+	public SocketChannelLengthPrefixedMessageReader(final SocketChannel channel,
+			final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix) {
+		this(channel,
+				size,
+				allocator,
+				lengthPrefix,
+				DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public SocketChannelLengthPrefixedMessageReader(final SocketChannel channel,
+			final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength) {
+		this(channel,
+				size,
+				allocator,
+				lengthPrefix,
+				maxFrameLength,
+				FrameChecksum.none());
+	}
+
+	public SocketChannelLengthPrefixedMessageReader(final SocketChannel channel,
+			final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength,
+			final FrameChecksum frameChecksum) {
+		super(size, allocator, lengthPrefix, maxFrameLength, frameChecksum);
 		this.channel = channel;
 	}
 
+	/**
+	 * @throws IllegalBlockingModeException if the channel is non-blocking and
+	 *         has no bytes available. Use a {@link FrameDecoder} for
+	 *         non-blocking channels.
+	 */
 	@Override
 	protected int fillBuffer(final ByteBuffer buffer) throws IOException {
-		return this.channel.read(buffer);
+		final int readCount = this.channel.read(buffer);
+		if (readCount == 0 && !this.channel.isBlocking()) {
+			throw new IllegalBlockingModeException();
+		}
+		return readCount;
+	}
+
+	/**
+	 * Scatters a single read across the destination of a large frame and the
+	 * receive buffer.
+	 */
+	@Override
+	protected long fillBuffers(final ByteBuffer[] buffers) throws IOException {
+		final long readCount = this.channel.read(buffers);
+		if (readCount == 0 && !this.channel.isBlocking()) {
+			throw new IllegalBlockingModeException();
+		}
+		return readCount;
 	}
 
 	@Override
 	public void close() throws IOException {
-		this.channel.close();
+		try {
+			this.channel.close();
+		} finally {
+			super.close();
+		}
 	}
 
 	public static void main(final String... strings) throws Exception {
@@ -43,19 +120,7 @@ public final class SocketChannelLengthPrefixedMessageReader
 		final MessageReader codec = new SocketChannelLengthPrefixedMessageReader(rem,
 				6);
 
-		final MessageWriter writer = new LengthPrefixedMessageWriter(1024) {
-
-			@Override
-			protected void doWrite(final byte[] message) throws IOException {
-				final ByteBuffer byteBuffer = ByteBuffer.wrap(message);
-				client.write(byteBuffer);
-			}
-
-			@Override
-			public void close() throws IOException {
-				client.close();
-			}
-		};
+		final MessageWriter writer = new SocketChannelLengthPrefixedMessageWriter(client);
 
 		/**
 		 * Scenarios:
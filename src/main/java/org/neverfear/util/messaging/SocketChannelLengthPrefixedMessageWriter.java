@@ -4,27 +4,54 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
+/**
+ * Writes each frame with a single gathering write of the length prefix and
+ * the payload. The channel must be in blocking mode.
+ */
 public final class SocketChannelLengthPrefixedMessageWriter
 	extends LengthPrefixedMessageWriter {
 
+	/**
+	 * @deprecated no longer used, as frames are not built in a buffer
+	 */
+	@Deprecated
 	public static final int DEFAULT_SIZE = 1024;
 
 	private final SocketChannel channel;
 
 	public SocketChannelLengthPrefixedMessageWriter(final SocketChannel channel) {
 		this(channel,
-				DEFAULT_SIZE);
+				LengthPrefix.standard());
 	}
 
+	/**
+	 * @param channel
+	 * @param size ignored, as frames are no longer built in a buffer
+	 * @deprecated use {@link #SocketChannelLengthPrefixedMessageWriter(SocketChannel)}
+	 */
+	@Deprecated
 	public SocketChannelLengthPrefixedMessageWriter(final SocketChannel channel, final int size) {
-		super(size);
+		this(channel);
+	}
+
+	public SocketChannelLengthPrefixedMessageWriter(final SocketChannel channel, final LengthPrefix lengthPrefix) {
+		this(channel,
+				lengthPrefix,
+				FrameChecksum.none());
+	}
+
+	public SocketChannelLengthPrefixedMessageWriter(final SocketChannel channel,
+			final LengthPrefix lengthPrefix,
+			final FrameChecksum frameChecksum) {
+		super(lengthPrefix, frameChecksum);
 		this.channel = channel;
 	}
 
 	@Override
-	protected void doWrite(final byte[] message) throws IOException {
-		final ByteBuffer buffer = ByteBuffer.wrap(message);
-		this.channel.write(buffer);
+	protected void doWrite(final ByteBuffer[] buffers) throws IOException {
+		do {
+			this.channel.write(buffers);
+		} while (hasRemaining(buffers));
 	}
 
 	@Override
@@ -0,0 +1,356 @@
+package org.neverfear.util.messaging.async;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.Crc32c;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.FrameDecoder;
+import org.neverfear.util.messaging.FrameHandler;
+import org.neverfear.util.messaging.LengthPrefix;
+
+/**
+ * A connection served by an {@link AsyncTransport}. Each connection owns a
+ * {@link FrameDecoder} and an outbound queue.
+ * <p>
+ * There is always exactly one read outstanding, whose completion decodes the
+ * bytes received and issues the next read. At most one write is outstanding.
+ * Frames sent while it is in flight are queued and written together, in a
+ * single gathering write, when it completes.
+ * <p>
+ * Sending is thread safe.
+ */
+public final class AsyncConnection
+	implements Closeable {
+
+	/**
+	 * The most queued frames written by one gathering write.
+	 */
+	private static final int MAX_GATHER = 16;
+
+	private final AsynchronousSocketChannel channel;
+	private final Set<AsyncConnection> connections;
+	private final AsyncConnectionHandler handler;
+	private final ByteBufferAllocator allocator;
+	private final LengthPrefix lengthPrefix;
+
+	/**
+	 * Computes the trailer of each frame sent, or null if frames have no
+	 * trailer. Senders take turns by synchronizing on it.
+	 */
+	private final Crc32c checksum;
+	private final int trailerSize;
+	private final FrameDecoder decoder;
+	private final FrameHandler frameHandler;
+	private final ByteBuffer readBuffer;
+	private final ReadCompletion readCompletion = new ReadCompletion();
+	private final WriteCompletion writeCompletion = new WriteCompletion();
+
+	private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+
+	/**
+	 * The buffers of the outstanding write. Only touched by whoever holds the
+	 * right to write, see {@link #writing}.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	private boolean writing = false;
+	private boolean closed = false;
+
+	/**
+	 * @param channel
+	 * @param connections the open connections of the transport, which this
+	 *            connection is added to until closed
+	 * @param handler
+	 * @param size
+	 * @param allocator source of the buffers frames are queued in. The read
+	 *            buffer lives as long as the connection so is not pooled.
+	 * @param lengthPrefix
+	 * @param maxFrameLength
+	 * @param frameChecksum
+	 */
+	AsyncConnection(final AsynchronousSocketChannel channel,
+			final Set<AsyncConnection> connections,
+			final AsyncConnectionHandler handler,
+			final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength,
+			final FrameChecksum frameChecksum) {
+		this.channel = channel;
+		this.connections = connections;
+		this.connections.add(this);
+		this.handler = handler;
+		this.allocator = allocator;
+		this.lengthPrefix = lengthPrefix;
+		this.checksum = frameChecksum.newChecksum();
+		this.trailerSize = frameChecksum.size();
+		this.readBuffer = allocator.unpooled()
+				.allocate(size);
+		// Only decode() is used, so the decoder needs no read buffer of its own
+		this.decoder = new FrameDecoder(0, ByteBufferAllocator.heap(), lengthPrefix, maxFrameLength, frameChecksum);
+		this.frameHandler = frame -> this.handler.onFrame(this, frame);
+	}
+
+	public AsynchronousSocketChannel channel() {
+		return this.channel;
+	}
+
+	public void send(final byte[] payload) throws IOException {
+		send(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Send the remaining bytes of the payload as one frame. The frame is copied
+	 * so the payload may be reused as soon as this returns. Returns without
+	 * waiting for the frame to be written.
+	 * 
+	 * @param payload
+	 * @throws IOException
+	 */
+	public void send(final ByteBuffer payload) throws IOException {
+		final ByteBuffer frame = this.allocator.allocate(this.lengthPrefix.maxSize() + payload.remaining()
+				+ this.trailerSize);
+		this.lengthPrefix.encode(payload, frame);
+		frame.put(payload);
+		if (this.checksum != null) {
+			putTrailer(frame);
+		}
+		frame.flip();
+
+		synchronized (this) {
+			if (this.closed) {
+				this.allocator.release(frame);
+				throw new ClosedChannelException();
+			}
+
+			this.outbound.add(frame);
+			if (this.writing) {
+				return;
+			}
+			this.writing = true;
+		}
+		writeQueued();
+	}
+
+	/**
+	 * Puts the big endian checksum of the frame so far after it.
+	 * 
+	 * @param frame in write mode
+	 */
+	private void putTrailer(final ByteBuffer frame) {
+		final int end = frame.position();
+		final int limit = frame.limit();
+		final int checksum;
+		synchronized (this.checksum) {
+			this.checksum.reset();
+			frame.flip();
+			this.checksum.update(frame);
+			checksum = this.checksum.intValue();
+		}
+		frame.limit(limit);
+		frame.position(end);
+		frame.put((byte) (checksum >>> 24))
+				.put((byte) (checksum >>> 16))
+				.put((byte) (checksum >>> 8))
+				.put((byte) checksum);
+	}
+
+	/**
+	 * @return the number of bytes queued or being written
+	 */
+	public synchronized long pending() {
+		long pending = 0;
+		for (final ByteBuffer buffer : this.outbound) {
+			pending += buffer.remaining();
+		}
+		return pending;
+	}
+
+	/**
+	 * Issue the first read. Called once the handler has been told the
+	 * connection is open.
+	 */
+	void start() {
+		read();
+	}
+
+	private void read() {
+		try {
+			this.channel.read(this.readBuffer, null, this.readCompletion);
+		} catch (final RuntimeException e) {
+			closeOnFailure(e);
+		}
+	}
+
+	/**
+	 * Write as many queued frames as a single gathering write allows. Must
+	 * only be called by whoever set {@link #writing}.
+	 */
+	private void writeQueued() {
+		final int count;
+		synchronized (this) {
+			int index = 0;
+			for (final ByteBuffer buffer : this.outbound) {
+				if (index == MAX_GATHER) {
+					break;
+				}
+				this.gather[index++] = buffer;
+			}
+			count = index;
+		}
+
+		try {
+			this.channel.write(this.gather, 0, count, 0L, TimeUnit.MILLISECONDS, null, this.writeCompletion);
+		} catch (final RuntimeException e) {
+			writeFailed(e);
+		}
+	}
+
+	/**
+	 * Close the connection and, as no write is outstanding any longer,
+	 * return the queued buffers that {@link #close(IOException)} left.
+	 */
+	private void writeFailed(final Throwable cause) {
+		closeOnFailure(cause);
+		synchronized (this) {
+			this.writing = false;
+			releaseOutbound();
+		}
+	}
+
+	/**
+	 * Must hold the monitor and no write may be outstanding.
+	 */
+	private void releaseOutbound() {
+		ByteBuffer buffer;
+		while ((buffer = this.outbound.poll()) != null) {
+			this.allocator.release(buffer);
+		}
+	}
+
+	private final class ReadCompletion
+		implements CompletionHandler<Integer, Void> {
+
+		@Override
+		public void completed(final Integer readCount, final Void attachment) {
+			final AsyncConnection connection = AsyncConnection.this;
+			if (readCount < 0) {
+				if (connection.decoder.isPartial()) {
+					connection.close(new EOFException("EOF reached before message was completely read"));
+				} else {
+					connection.close(null);
+				}
+				return;
+			}
+
+			connection.readBuffer.flip();
+			try {
+				connection.decoder.decode(connection.readBuffer, connection.frameHandler);
+			} catch (final IOException | RuntimeException e) {
+				// Including the handler failing, which the channel group
+				// would otherwise swallow and leave the connection unread
+				connection.closeOnFailure(e);
+				return;
+			} finally {
+				connection.readBuffer.clear();
+			}
+			connection.read();
+		}
+
+		@Override
+		public void failed(final Throwable cause, final Void attachment) {
+			closeOnFailure(cause);
+		}
+	}
+
+	private final class WriteCompletion
+		implements CompletionHandler<Long, Void> {
+
+		@Override
+		public void completed(final Long writeCount, final Void attachment) {
+			final AsyncConnection connection = AsyncConnection.this;
+			synchronized (connection) {
+				if (connection.closed) {
+					// Closed while the write was outstanding, which left the
+					// buffers for this completion to return
+					connection.writing = false;
+					connection.releaseOutbound();
+					return;
+				}
+
+				ByteBuffer buffer;
+				while ((buffer = connection.outbound.peek()) != null && !buffer.hasRemaining()) {
+					connection.allocator.release(connection.outbound.remove());
+				}
+				if (buffer == null) {
+					connection.writing = false;
+					return;
+				}
+			}
+			connection.writeQueued();
+		}
+
+		@Override
+		public void failed(final Throwable cause, final Void attachment) {
+			writeFailed(cause);
+		}
+	}
+
+	private void closeOnFailure(final Throwable cause) {
+		if (cause instanceof IOException) {
+			close((IOException) cause);
+		} else {
+			close(new IOException(cause));
+		}
+	}
+
+	/**
+	 * Close the connection, discarding anything not yet sent. The handler is
+	 * notified on the calling thread.
+	 */
+	@Override
+	public void close() {
+		close(null);
+	}
+
+	void close(final IOException cause) {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			// Buffers of an outstanding write may still be in use so are
+			// returned by its completion instead
+			if (!this.writing) {
+				releaseOutbound();
+			}
+		}
+
+		this.connections.remove(this);
+		IOException failure = cause;
+		try {
+			this.channel.close();
+		} catch (final IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		this.handler.onClose(this, failure);
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncConnection [" + this.channel + "]";
+	}
+}
@@ -0,0 +1,43 @@
+package org.neverfear.util.messaging.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.neverfear.util.messaging.FrameHandler;
+
+/**
+ * Receives the events of every {@link AsyncConnection} served by an
+ * {@link AsyncTransport}. Methods are called on the threads of the transport's
+ * channel group and should not block. Frames from any one connection are
+ * delivered one at a time and in order.
+ */
+public interface AsyncConnectionHandler {
+
+	/**
+	 * Called when a connection has been accepted or connected, before any
+	 * frames are received from it.
+	 * 
+	 * @param connection
+	 * @throws IOException
+	 */
+	default void onOpen(final AsyncConnection connection) throws IOException {}
+
+	/**
+	 * Called with each complete frame received from the connection.
+	 * 
+	 * @param connection
+	 * @param frame only valid for the duration of the call, as per
+	 *            {@link FrameHandler#onFrame(ByteBuffer)}
+	 * @throws IOException
+	 */
+	void onFrame(AsyncConnection connection, ByteBuffer frame) throws IOException;
+
+	/**
+	 * Called once when the connection is closed.
+	 * 
+	 * @param connection
+	 * @param cause the failure that closed the connection or null if it was
+	 *            closed normally
+	 */
+	default void onClose(final AsyncConnection connection, final IOException cause) {}
+}
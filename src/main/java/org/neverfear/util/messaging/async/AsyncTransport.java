@@ -0,0 +1,301 @@
+package org.neverfear.util.messaging.async;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.FrameDecoder;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.LengthPrefixedMessageReader;
+import org.neverfear.util.messaging.reactor.Reactor;
+
+/**
+ * Serves length prefixed connections with {@link AsynchronousSocketChannel}s
+ * rather than a selector. Frames are decoded and passed to the
+ * {@link AsyncConnectionHandler} in completion handlers, which run on the
+ * threads of the {@link AsynchronousChannelGroup}.
+ * <p>
+ * Where a {@link Reactor} serves every connection from one thread, this lets
+ * a service that already runs on a fixed thread pool spread its connections
+ * over that pool:
+ * 
+ * <pre>
+ * final AsynchronousChannelGroup group = AsynchronousChannelGroup.withThreadPool(executor);
+ * final AsyncTransport transport = new AsyncTransport(handler, group);
+ * transport.listen(new InetSocketAddress(port));
+ * </pre>
+ * 
+ * The transport does not own the group, which must be shut down separately
+ * after the transport is closed. All methods may be called from any thread.
+ */
+public final class AsyncTransport
+	implements Closeable {
+
+	private final AsyncConnectionHandler handler;
+	private final AsynchronousChannelGroup group;
+	private final int size;
+	private final ByteBufferAllocator allocator;
+	private final LengthPrefix lengthPrefix;
+	private final int maxFrameLength;
+	private final FrameChecksum frameChecksum;
+	private final Set<AsynchronousServerSocketChannel> serverChannels = ConcurrentHashMap.newKeySet();
+	private final Set<AsyncConnection> connections = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Serve connections on the JVM wide default group.
+	 * 
+	 * @param handler
+	 */
+	public AsyncTransport(final AsyncConnectionHandler handler) {
+		this(handler,
+				null);
+	}
+
+	/**
+	 * @param handler
+	 * @param group the group whose threads complete I/O and call the handler,
+	 *            or null for the JVM wide default group
+	 */
+	public AsyncTransport(final AsyncConnectionHandler handler, final AsynchronousChannelGroup group) {
+		this(handler,
+				group,
+				FrameDecoder.DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param handler
+	 * @param group
+	 * @param size the size of each connection's read buffer
+	 */
+	public AsyncTransport(final AsyncConnectionHandler handler, final AsynchronousChannelGroup group, final int size) {
+		this(handler,
+				group,
+				size,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param handler
+	 * @param group
+	 * @param size the size of each connection's read buffer
+	 * @param allocator source of connection buffers, e.g. a shared
+	 *            {@link org.neverfear.util.messaging.PooledByteBufferAllocator}
+	 */
+	public AsyncTransport(final AsyncConnectionHandler handler,
+			final AsynchronousChannelGroup group,
+			final int size,
+			final ByteBufferAllocator allocator) {
+		this(handler,
+				group,
+				size,
+				allocator,
+				LengthPrefix.standard(),
+				LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * @param handler
+	 * @param group
+	 * @param size the size of each connection's read buffer
+	 * @param allocator
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param maxFrameLength the longest frame accepted. A longer frame closes
+	 *            the connection.
+	 */
+	public AsyncTransport(final AsyncConnectionHandler handler,
+			final AsynchronousChannelGroup group,
+			final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength) {
+		this(handler,
+				group,
+				size,
+				allocator,
+				lengthPrefix,
+				maxFrameLength,
+				FrameChecksum.none());
+	}
+
+	/**
+	 * @param handler
+	 * @param group
+	 * @param size the size of each connection's read buffer
+	 * @param allocator
+	 * @param lengthPrefix how frame lengths are encoded
+	 * @param maxFrameLength the longest frame accepted. A longer frame closes
+	 *            the connection.
+	 * @param frameChecksum whether frames are followed by a checksum. A frame
+	 *            received that does not match its checksum closes the
+	 *            connection.
+	 */
+	public AsyncTransport(final AsyncConnectionHandler handler,
+			final AsynchronousChannelGroup group,
+			final int size,
+			final ByteBufferAllocator allocator,
+			final LengthPrefix lengthPrefix,
+			final int maxFrameLength,
+			final FrameChecksum frameChecksum) {
+		super();
+		this.handler = handler;
+		this.group = group;
+		this.size = size;
+		this.allocator = allocator;
+		this.lengthPrefix = lengthPrefix;
+		this.maxFrameLength = maxFrameLength;
+		this.frameChecksum = frameChecksum;
+	}
+
+	/**
+	 * Accept connections on the passed address.
+	 * 
+	 * @param address
+	 * @return the address actually bound, useful when binding to an ephemeral
+	 *         port
+	 * @throws IOException
+	 */
+	public SocketAddress listen(final SocketAddress address) throws IOException {
+		final AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(this.group);
+		try {
+			serverChannel.bind(address);
+			this.serverChannels.add(serverChannel);
+			accept(serverChannel);
+		} catch (final IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		return serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Connect to the passed address.
+	 * 
+	 * @param address
+	 * @return completed with the connection once connected and the handler
+	 *         has been told it is open
+	 * @throws IOException
+	 */
+	public CompletableFuture<AsyncConnection> connect(final SocketAddress address) throws IOException {
+		final CompletableFuture<AsyncConnection> future = new CompletableFuture<>();
+		final AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(this.group);
+		channel.connect(address, null, new CompletionHandler<Void, Void>() {
+
+			@Override
+			public void completed(final Void result, final Void attachment) {
+				try {
+					future.complete(register(channel));
+				} catch (final IOException e) {
+					future.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void failed(final Throwable cause, final Void attachment) {
+				closeQuietly(channel);
+				future.completeExceptionally(cause);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Serve an already connected channel. It must belong to the transport's
+	 * group for the handler to be called on that group's threads.
+	 * 
+	 * @param channel
+	 * @return the connection
+	 * @throws ClosedChannelException if the transport is closed, in which
+	 *         case the channel is closed without involving the handler
+	 * @throws IOException if the handler fails to open the connection, in
+	 *         which case it is closed
+	 */
+	public AsyncConnection register(final AsynchronousSocketChannel channel) throws IOException {
+		final AsyncConnection connection = new AsyncConnection(channel,
+				this.connections,
+				this.handler,
+				this.size,
+				this.allocator,
+				this.lengthPrefix,
+				this.maxFrameLength,
+				this.frameChecksum);
+		if (this.closed) {
+			// The handler never saw it open so is not told it closed
+			this.connections.remove(connection);
+			closeQuietly(channel);
+			throw new ClosedChannelException();
+		}
+
+		try {
+			this.handler.onOpen(connection);
+		} catch (final IOException e) {
+			connection.close(e);
+			throw e;
+		}
+		connection.start();
+		return connection;
+	}
+
+	/**
+	 * Accept the next connection on the server channel. Each completion
+	 * issues the next accept before serving the connection it accepted. A
+	 * failed accept closes the server channel.
+	 */
+	private void accept(final AsynchronousServerSocketChannel serverChannel) {
+		serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+
+			@Override
+			public void completed(final AsynchronousSocketChannel channel, final Void attachment) {
+				accept(serverChannel);
+				try {
+					register(channel);
+				} catch (final IOException e) {
+					// The handler has been told why the connection closed, or
+					// the transport is closed
+				}
+			}
+
+			@Override
+			public void failed(final Throwable cause, final Void attachment) {
+				AsyncTransport.this.serverChannels.remove(serverChannel);
+				closeQuietly(serverChannel);
+			}
+		});
+	}
+
+	private static void closeQuietly(final Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (final IOException e) {
+			// Already failed
+		}
+	}
+
+	/**
+	 * Stop serving and close all connections and listening channels.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+
+		for (final AsynchronousServerSocketChannel serverChannel : this.serverChannels) {
+			serverChannel.close();
+		}
+		this.serverChannels.clear();
+
+		for (final AsyncConnection connection : this.connections) {
+			connection.close();
+		}
+	}
+}
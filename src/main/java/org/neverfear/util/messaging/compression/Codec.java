@@ -0,0 +1,88 @@
+package org.neverfear.util.messaging.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses and decompresses whole frames between arrays.
+ * <p>
+ * Codecs reuse their working state between frames so are not thread safe. A
+ * codec is identified on the wire by its {@link #id()}; both ends of a
+ * stream must use the same codec, including any preset dictionary.
+ */
+public abstract class Codec
+	implements Closeable {
+
+	/**
+	 * @return a deflate codec at the default compression level
+	 */
+	public static Codec deflate() {
+		return deflate(Deflater.DEFAULT_COMPRESSION, null);
+	}
+
+	/**
+	 * @param level the deflate compression level
+	 * @param dictionary a preset dictionary of content common to frames, or
+	 *            null. Greatly improves the compression of small repetitive
+	 *            frames.
+	 * @return a deflate codec
+	 */
+	public static Codec deflate(final int level, final byte[] dictionary) {
+		return new DeflateCodec(level, dictionary);
+	}
+
+	/**
+	 * @return a fast LZ77 codec that trades compression ratio for speed
+	 */
+	public static Codec lz() {
+		return new LzCodec();
+	}
+
+	/**
+	 * @return the non-zero identifier of the codec written in each compressed
+	 *         frame
+	 */
+	public abstract byte id();
+
+	/**
+	 * @param source
+	 * @param sourceOffset
+	 * @param sourceLength
+	 * @param destination
+	 * @param destinationOffset
+	 * @param destinationLength the most bytes that may be written
+	 * @return the number of compressed bytes or -1 if they would not fit in
+	 *         the destination length
+	 */
+	public abstract int compress(byte[] source,
+			int sourceOffset,
+			int sourceLength,
+			byte[] destination,
+			int destinationOffset,
+			int destinationLength);
+
+	/**
+	 * @param source
+	 * @param sourceOffset
+	 * @param sourceLength
+	 * @param destination
+	 * @param destinationOffset
+	 * @param destinationLength the exact length of the decompressed bytes
+	 * @throws StreamCorruptedException if the source is not a valid
+	 *         compressed frame of the given length
+	 */
+	public abstract void decompress(byte[] source,
+			int sourceOffset,
+			int sourceLength,
+			byte[] destination,
+			int destinationOffset,
+			int destinationLength) throws IOException;
+
+	/**
+	 * Releases any native resources.
+	 */
+	@Override
+	public void close() {}
+}
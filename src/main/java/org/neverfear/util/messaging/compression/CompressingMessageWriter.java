@@ -0,0 +1,156 @@
+package org.neverfear.util.messaging.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.Bytes;
+import org.neverfear.util.TimeDevice;
+import org.neverfear.util.messaging.MessageWriter;
+
+/**
+ * Compresses the payload of each frame before passing it to another writer.
+ * <p>
+ * Every frame starts with a flag byte. Payloads shorter than the threshold,
+ * or that do not shrink, are stored after a flag of {@link #STORED}.
+ * Compressed payloads follow a flag of the codec's id and the 4 byte big
+ * endian length of the uncompressed payload. Read them with a
+ * {@link DecompressingMessageReader} using the same codec.
+ */
+public final class CompressingMessageWriter
+	implements MessageWriter {
+
+	public static final int DEFAULT_THRESHOLD = 512;
+
+	/**
+	 * Flags a payload that was not compressed.
+	 */
+	public static final byte STORED = 0;
+
+	static final int STORED_HEADER_SIZE = 1;
+	static final int COMPRESSED_HEADER_SIZE = 1 + Integer.BYTES;
+
+	private final MessageWriter delegate;
+	private final Codec codec;
+	private final int threshold;
+	private final TimeDevice timeDevice;
+	private final CompressionStats.Counters counters = new CompressionStats.Counters();
+
+	/**
+	 * Holds payloads that are not backed by an array. Grown on demand.
+	 */
+	private byte[] input = new byte[0];
+
+	/**
+	 * Holds the outbound frame. Grown on demand.
+	 */
+	private byte[] output = new byte[0];
+
+	public CompressingMessageWriter(final MessageWriter delegate, final Codec codec) {
+		this(delegate,
+				codec,
+				DEFAULT_THRESHOLD);
+	}
+
+	public CompressingMessageWriter(final MessageWriter delegate, final Codec codec, final int threshold) {
+		this(delegate,
+				codec,
+				threshold,
+				TimeDevice.ticker());
+	}
+
+	/**
+	 * @param delegate receives the compressed frames
+	 * @param codec owned by this writer and closed with it
+	 * @param threshold payloads shorter than this are stored uncompressed
+	 * @param timeDevice measures the time spent compressing
+	 */
+	public CompressingMessageWriter(final MessageWriter delegate,
+			final Codec codec,
+			final int threshold,
+			final TimeDevice timeDevice) {
+		super();
+		this.delegate = delegate;
+		this.codec = codec;
+		this.threshold = threshold;
+		this.timeDevice = timeDevice;
+	}
+
+	@Override
+	public void write(final byte[] payload) throws IOException {
+		write(ByteBuffer.wrap(payload));
+	}
+
+	@Override
+	public synchronized void write(final ByteBuffer payload) throws IOException {
+		final int length = payload.remaining();
+		if (this.output.length < STORED_HEADER_SIZE + length) {
+			this.output = new byte[STORED_HEADER_SIZE + length];
+		}
+
+		if (length >= this.threshold && length > COMPRESSED_HEADER_SIZE) {
+			final byte[] source;
+			final int offset;
+			if (payload.hasArray()) {
+				source = payload.array();
+				offset = payload.arrayOffset() + payload.position();
+			} else {
+				if (this.input.length < length) {
+					this.input = new byte[length];
+				}
+				payload.duplicate()
+						.get(this.input, 0, length);
+				source = this.input;
+				offset = 0;
+			}
+
+			// Only worth sending if smaller than storing it
+			final long start = this.timeDevice.read(TimeUnit.NANOSECONDS);
+			final int compressedLength = this.codec.compress(source,
+					offset,
+					length,
+					this.output,
+					COMPRESSED_HEADER_SIZE,
+					length - COMPRESSED_HEADER_SIZE);
+			final long elapsed = this.timeDevice.read(TimeUnit.NANOSECONDS) - start;
+
+			if (compressedLength >= 0) {
+				this.output[0] = this.codec.id();
+				Bytes.intToBigEndianBytes(this.output, 1, length);
+				payload.position(payload.limit());
+				final int frameLength = COMPRESSED_HEADER_SIZE + compressedLength;
+				this.counters.record(length, frameLength, true, elapsed);
+				this.delegate.write(ByteBuffer.wrap(this.output, 0, frameLength));
+				return;
+			}
+			this.counters.record(length, STORED_HEADER_SIZE + length, false, elapsed);
+		} else {
+			this.counters.record(length, STORED_HEADER_SIZE + length, false, 0);
+		}
+
+		this.output[0] = STORED;
+		payload.get(this.output, STORED_HEADER_SIZE, length);
+		this.delegate.write(ByteBuffer.wrap(this.output, 0, STORED_HEADER_SIZE + length));
+	}
+
+	/**
+	 * @return a snapshot of the compression done so far
+	 */
+	public CompressionStats stats() {
+		return this.counters.snapshot();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.delegate.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			this.delegate.close();
+		} finally {
+			this.codec.close();
+		}
+	}
+}
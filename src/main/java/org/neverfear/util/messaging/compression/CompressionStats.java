@@ -0,0 +1,115 @@
+package org.neverfear.util.messaging.compression;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the work done by a compression stage.
+ */
+public final class CompressionStats {
+
+	/**
+	 * Accumulates the counts a snapshot is taken of. Recording is lock free.
+	 */
+	static final class Counters {
+
+		private final LongAdder frames = new LongAdder();
+		private final LongAdder compressedFrames = new LongAdder();
+		private final LongAdder uncompressedBytes = new LongAdder();
+		private final LongAdder wireBytes = new LongAdder();
+		private final LongAdder codecNanos = new LongAdder();
+
+		/**
+		 * @param uncompressed the length of the payload
+		 * @param wire the length of the frame on the wire
+		 * @param compressed true if the frame was compressed
+		 * @param nanos time spent in the codec
+		 */
+		void record(final int uncompressed, final int wire, final boolean compressed, final long nanos) {
+			this.frames.increment();
+			if (compressed) {
+				this.compressedFrames.increment();
+			}
+			this.uncompressedBytes.add(uncompressed);
+			this.wireBytes.add(wire);
+			this.codecNanos.add(nanos);
+		}
+
+		CompressionStats snapshot() {
+			return new CompressionStats(this.frames.sum(),
+					this.compressedFrames.sum(),
+					this.uncompressedBytes.sum(),
+					this.wireBytes.sum(),
+					this.codecNanos.sum());
+		}
+	}
+
+	private final long frames;
+	private final long compressedFrames;
+	private final long uncompressedBytes;
+	private final long wireBytes;
+	private final long codecNanos;
+
+	CompressionStats(final long frames,
+			final long compressedFrames,
+			final long uncompressedBytes,
+			final long wireBytes,
+			final long codecNanos) {
+		super();
+		this.frames = frames;
+		this.compressedFrames = compressedFrames;
+		this.uncompressedBytes = uncompressedBytes;
+		this.wireBytes = wireBytes;
+		this.codecNanos = codecNanos;
+	}
+
+	/**
+	 * @return the number of frames passed through the stage
+	 */
+	public long frames() {
+		return this.frames;
+	}
+
+	/**
+	 * @return the number of frames that were compressed rather than stored
+	 */
+	public long compressedFrames() {
+		return this.compressedFrames;
+	}
+
+	/**
+	 * @return the total length of the payloads
+	 */
+	public long uncompressedBytes() {
+		return this.uncompressedBytes;
+	}
+
+	/**
+	 * @return the total length of the frames on the wire, including the
+	 *         compression header
+	 */
+	public long wireBytes() {
+		return this.wireBytes;
+	}
+
+	/**
+	 * @return the time spent compressing or decompressing, in nanoseconds
+	 */
+	public long codecNanos() {
+		return this.codecNanos;
+	}
+
+	/**
+	 * @return uncompressed bytes per wire byte. Greater than one when
+	 *         compression is saving bandwidth.
+	 */
+	public double ratio() {
+		return this.wireBytes == 0 ? 1.0 : (double) this.uncompressedBytes / this.wireBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStats [frames=" + this.frames + ", compressedFrames=" + this.compressedFrames
+				+ ", uncompressedBytes=" + this.uncompressedBytes + ", wireBytes=" + this.wireBytes
+				+ ", codecNanos=" + this.codecNanos + "]";
+	}
+}
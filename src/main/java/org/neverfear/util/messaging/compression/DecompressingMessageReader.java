@@ -0,0 +1,200 @@
+package org.neverfear.util.messaging.compression;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.Bytes;
+import org.neverfear.util.TimeDevice;
+import org.neverfear.util.messaging.FrameTooLargeException;
+import org.neverfear.util.messaging.LengthPrefixedMessageReader;
+import org.neverfear.util.messaging.MessageReader;
+
+/**
+ * Reads frames written by a {@link CompressingMessageWriter} from another
+ * reader, returning the original payloads.
+ * <p>
+ * The decompressed length is taken from the frame's header, so it is checked
+ * against a maximum before anything is allocated for it. A corrupt or hostile
+ * header cannot make the reader allocate more than that.
+ */
+public final class DecompressingMessageReader
+	implements MessageReader {
+
+	private final MessageReader delegate;
+	private final Codec codec;
+	private final TimeDevice timeDevice;
+	private final int maxLength;
+	private final CompressionStats.Counters counters = new CompressionStats.Counters();
+
+	/**
+	 * A frame that did not fit the destination it was read for, kept so it
+	 * can be read again.
+	 */
+	private byte[] pending = null;
+
+	public DecompressingMessageReader(final MessageReader delegate, final Codec codec) {
+		this(delegate,
+				codec,
+				TimeDevice.ticker());
+	}
+
+	/**
+	 * @param delegate supplies the compressed frames
+	 * @param codec owned by this reader and closed with it
+	 * @param timeDevice measures the time spent decompressing
+	 */
+	public DecompressingMessageReader(final MessageReader delegate, final Codec codec, final TimeDevice timeDevice) {
+		this(delegate,
+				codec,
+				timeDevice,
+				LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	/**
+	 * @param delegate supplies the compressed frames
+	 * @param codec owned by this reader and closed with it
+	 * @param timeDevice measures the time spent decompressing
+	 * @param maxLength the longest payload a frame may decompress to
+	 */
+	public DecompressingMessageReader(final MessageReader delegate,
+			final Codec codec,
+			final TimeDevice timeDevice,
+			final int maxLength) {
+		super();
+		this.delegate = delegate;
+		this.codec = codec;
+		this.timeDevice = timeDevice;
+		this.maxLength = maxLength;
+	}
+
+	private byte[] nextFrame() throws IOException {
+		if (this.pending != null) {
+			final byte[] frame = this.pending;
+			this.pending = null;
+			return frame;
+		}
+
+		final byte[] frame = this.delegate.readMessage();
+		if (frame != null && frame.length < CompressingMessageWriter.STORED_HEADER_SIZE) {
+			throw new StreamCorruptedException("Frame is missing the compression flag");
+		}
+		return frame;
+	}
+
+	/**
+	 * @param frame
+	 * @return the length of the payload once decompressed
+	 * @throws StreamCorruptedException
+	 * @throws FrameTooLargeException if the payload would be longer than the
+	 *         maximum
+	 */
+	private int payloadLength(final byte[] frame) throws IOException {
+		final byte flag = frame[0];
+		if (flag == CompressingMessageWriter.STORED) {
+			return frame.length - CompressingMessageWriter.STORED_HEADER_SIZE;
+		}
+		if (flag != this.codec.id()) {
+			throw new StreamCorruptedException("Frame compressed with unknown codec " + flag);
+		}
+		if (frame.length < CompressingMessageWriter.COMPRESSED_HEADER_SIZE) {
+			throw new StreamCorruptedException("Truncated compression header");
+		}
+		final int length = Bytes.bigEndianBytesToInt(frame, 1);
+		if (length < 0) {
+			throw new StreamCorruptedException("Negative payload length " + length);
+		}
+		if (length > this.maxLength) {
+			throw new FrameTooLargeException(length, this.maxLength);
+		}
+		return length;
+	}
+
+	private void decode(final byte[] frame,
+			final int length,
+			final byte[] destination,
+			final int destinationOffset) throws IOException {
+		if (frame[0] == CompressingMessageWriter.STORED) {
+			System.arraycopy(frame, CompressingMessageWriter.STORED_HEADER_SIZE, destination, destinationOffset, length);
+			this.counters.record(length, frame.length, false, 0);
+			return;
+		}
+
+		final long start = this.timeDevice.read(TimeUnit.NANOSECONDS);
+		this.codec.decompress(frame,
+				CompressingMessageWriter.COMPRESSED_HEADER_SIZE,
+				frame.length - CompressingMessageWriter.COMPRESSED_HEADER_SIZE,
+				destination,
+				destinationOffset,
+				length);
+		this.counters.record(length, frame.length, true, this.timeDevice.read(TimeUnit.NANOSECONDS) - start);
+	}
+
+	@Override
+	public synchronized byte[] readMessage() throws IOException {
+		final byte[] frame = nextFrame();
+		if (frame == null) {
+			return null;
+		}
+
+		final int length = payloadLength(frame);
+		if (frame[0] == CompressingMessageWriter.STORED) {
+			this.counters.record(length, frame.length, false, 0);
+			return Arrays.copyOfRange(frame, CompressingMessageWriter.STORED_HEADER_SIZE, frame.length);
+		}
+		final byte[] message = new byte[length];
+		decode(frame, length, message, 0);
+		return message;
+	}
+
+	/**
+	 * Decompresses straight into the destination when it is backed by an
+	 * array.
+	 * 
+	 * @throws BufferOverflowException if the destination does not have enough
+	 *         space for the payload. The message is kept so the caller may
+	 *         retry with a larger buffer.
+	 */
+	@Override
+	public synchronized int readMessage(final ByteBuffer destination) throws IOException {
+		final byte[] frame = nextFrame();
+		if (frame == null) {
+			return -1;
+		}
+
+		final int length = payloadLength(frame);
+		if (destination.remaining() < length) {
+			this.pending = frame;
+			throw new BufferOverflowException();
+		}
+
+		if (destination.hasArray()) {
+			decode(frame, length, destination.array(), destination.arrayOffset() + destination.position());
+			destination.position(destination.position() + length);
+		} else {
+			final byte[] message = new byte[length];
+			decode(frame, length, message, 0);
+			destination.put(message);
+		}
+		return length;
+	}
+
+	/**
+	 * @return a snapshot of the decompression done so far
+	 */
+	public CompressionStats stats() {
+		return this.counters.snapshot();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			this.delegate.close();
+		} finally {
+			this.codec.close();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package org.neverfear.util.messaging.compression;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate without the zlib header and checksum, which the framing makes
+ * redundant. The deflater and inflater are reset between frames rather than
+ * recreated.
+ */
+final class DeflateCodec
+	extends Codec {
+
+	static final byte ID = 1;
+
+	private final Deflater deflater;
+	private final Inflater inflater;
+	private final byte[] dictionary;
+
+	DeflateCodec(final int level, final byte[] dictionary) {
+		this.deflater = new Deflater(level, true);
+		this.inflater = new Inflater(true);
+		this.dictionary = dictionary == null ? null : dictionary.clone();
+	}
+
+	@Override
+	public byte id() {
+		return ID;
+	}
+
+	@Override
+	public int compress(final byte[] source,
+			final int sourceOffset,
+			final int sourceLength,
+			final byte[] destination,
+			final int destinationOffset,
+			final int destinationLength) {
+		this.deflater.reset();
+		if (this.dictionary != null) {
+			this.deflater.setDictionary(this.dictionary);
+		}
+		this.deflater.setInput(source, sourceOffset, sourceLength);
+		this.deflater.finish();
+
+		int length = 0;
+		while (!this.deflater.finished()) {
+			if (length == destinationLength) {
+				return -1;
+			}
+			length += this.deflater.deflate(destination, destinationOffset + length, destinationLength - length);
+		}
+		return length;
+	}
+
+	@Override
+	public void decompress(final byte[] source,
+			final int sourceOffset,
+			final int sourceLength,
+			final byte[] destination,
+			final int destinationOffset,
+			final int destinationLength) throws IOException {
+		this.inflater.reset();
+		if (this.dictionary != null) {
+			this.inflater.setDictionary(this.dictionary);
+		}
+		this.inflater.setInput(source, sourceOffset, sourceLength);
+
+		int length = 0;
+		try {
+			while (length < destinationLength && !this.inflater.finished()) {
+				final int count = this.inflater.inflate(destination,
+						destinationOffset + length,
+						destinationLength - length);
+				if (count == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+					break;
+				}
+				length += count;
+			}
+		} catch (final DataFormatException e) {
+			final StreamCorruptedException corrupted = new StreamCorruptedException(e.getMessage());
+			corrupted.initCause(e);
+			throw corrupted;
+		}
+		if (length != destinationLength) {
+			throw new StreamCorruptedException("Expected " + destinationLength + " bytes but inflated " + length);
+		}
+	}
+
+	@Override
+	public void close() {
+		this.deflater.end();
+		this.inflater.end();
+	}
+}
@@ -0,0 +1,216 @@
+package org.neverfear.util.messaging.compression;
+
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+/**
+ * A byte oriented LZ77 codec in the style of LZ4. Matches are found through a
+ * single hash table probe, so compression is much faster than deflate at the
+ * cost of ratio.
+ * <p>
+ * The output is a series of sequences. Each starts with a token whose high
+ * nibble is the number of literals and low nibble the match length less
+ * {@value #MIN_MATCH}; a nibble of 15 is extended by following bytes that are
+ * added to it until one is less than 255. The literals follow, then a 2 byte
+ * little endian offset back to the match and any match length extension. The
+ * last sequence has literals only.
+ */
+final class LzCodec
+	extends Codec {
+
+	static final byte ID = 2;
+
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xFFFF;
+	private static final int HASH_BITS = 12;
+	private static final int NIBBLE = 15;
+
+	/**
+	 * The last position each hashed 4 byte sequence was seen at.
+	 */
+	private final int[] table = new int[1 << HASH_BITS];
+
+	@Override
+	public byte id() {
+		return ID;
+	}
+
+	private static int readInt(final byte[] bytes, final int index) {
+		return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8 | (bytes[index + 2] & 0xFF) << 16
+				| (bytes[index + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(final int sequence) {
+		return (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+	}
+
+	@Override
+	public int compress(final byte[] source,
+			final int sourceOffset,
+			final int sourceLength,
+			final byte[] destination,
+			final int destinationOffset,
+			final int destinationLength) {
+		Arrays.fill(this.table, -1);
+		final int end = sourceOffset + sourceLength;
+		final int destinationEnd = destinationOffset + destinationLength;
+
+		int position = destinationOffset;
+		int anchor = sourceOffset;
+		int index = sourceOffset;
+		while (index <= end - MIN_MATCH) {
+			final int sequence = readInt(source, index);
+			final int hash = hash(sequence);
+			final int reference = this.table[hash];
+			this.table[hash] = index;
+
+			if (reference < 0 || index - reference > MAX_OFFSET || readInt(source, reference) != sequence) {
+				index++;
+				continue;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (index + matchLength < end && source[reference + matchLength] == source[index + matchLength]) {
+				matchLength++;
+			}
+
+			position = writeSequence(source,
+					anchor,
+					index - anchor,
+					index - reference,
+					matchLength,
+					destination,
+					position,
+					destinationEnd);
+			if (position < 0) {
+				return -1;
+			}
+			index += matchLength;
+			anchor = index;
+		}
+
+		position = writeSequence(source, anchor, end - anchor, 0, 0, destination, position, destinationEnd);
+		return position < 0 ? -1 : position - destinationOffset;
+	}
+
+	/**
+	 * @return the position after the sequence or -1 if it did not fit
+	 */
+	private static int writeSequence(final byte[] source,
+			final int literalOffset,
+			final int literalLength,
+			final int matchOffset,
+			final int matchLength,
+			final byte[] destination,
+			final int position,
+			final int destinationEnd) {
+		final int extendedMatch = matchOffset == 0 ? 0 : matchLength - MIN_MATCH;
+		final int required = 1 + extensionSize(literalLength) + literalLength
+				+ (matchOffset == 0 ? 0 : 2 + extensionSize(extendedMatch));
+		if (position + required > destinationEnd) {
+			return -1;
+		}
+
+		int index = position;
+		destination[index++] = (byte) (Math.min(literalLength, NIBBLE) << 4 | Math.min(extendedMatch, NIBBLE));
+		index = writeExtension(literalLength, destination, index);
+		System.arraycopy(source, literalOffset, destination, index, literalLength);
+		index += literalLength;
+		if (matchOffset != 0) {
+			destination[index++] = (byte) matchOffset;
+			destination[index++] = (byte) (matchOffset >>> 8);
+			index = writeExtension(extendedMatch, destination, index);
+		}
+		return index;
+	}
+
+	private static int extensionSize(final int length) {
+		return length < NIBBLE ? 0 : (length - NIBBLE) / 255 + 1;
+	}
+
+	private static int writeExtension(final int length, final byte[] destination, final int position) {
+		if (length < NIBBLE) {
+			return position;
+		}
+		int index = position;
+		int remaining = length - NIBBLE;
+		while (remaining >= 255) {
+			destination[index++] = (byte) 255;
+			remaining -= 255;
+		}
+		destination[index++] = (byte) remaining;
+		return index;
+	}
+
+	@Override
+	public void decompress(final byte[] source,
+			final int sourceOffset,
+			final int sourceLength,
+			final byte[] destination,
+			final int destinationOffset,
+			final int destinationLength) throws StreamCorruptedException {
+		final int end = sourceOffset + sourceLength;
+		final int destinationEnd = destinationOffset + destinationLength;
+
+		int index = sourceOffset;
+		int position = destinationOffset;
+		while (index < end) {
+			final int token = source[index++] & 0xFF;
+
+			int literalLength = token >>> 4;
+			if (literalLength == NIBBLE) {
+				int b;
+				do {
+					if (index == end) {
+						throw new StreamCorruptedException("Truncated literal length");
+					}
+					b = source[index++] & 0xFF;
+					literalLength += b;
+				} while (b == 255);
+			}
+			if (literalLength > end - index || literalLength > destinationEnd - position) {
+				throw new StreamCorruptedException("Literals overrun");
+			}
+			System.arraycopy(source, index, destination, position, literalLength);
+			index += literalLength;
+			position += literalLength;
+
+			if (index == end) {
+				break;
+			}
+
+			if (end - index < 2) {
+				throw new StreamCorruptedException("Truncated match offset");
+			}
+			final int offset = (source[index] & 0xFF) | (source[index + 1] & 0xFF) << 8;
+			index += 2;
+
+			int matchLength = token & NIBBLE;
+			if (matchLength == NIBBLE) {
+				int b;
+				do {
+					if (index == end) {
+						throw new StreamCorruptedException("Truncated match length");
+					}
+					b = source[index++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+
+			final int reference = position - offset;
+			if (offset == 0 || reference < destinationOffset || matchLength > destinationEnd - position) {
+				throw new StreamCorruptedException("Invalid match at " + (index - sourceOffset));
+			}
+			// Byte by byte as the match may overlap the bytes it produces
+			for (int i = 0; i < matchLength; i++) {
+				destination[position++] = destination[reference + i];
+			}
+		}
+
+		if (position != destinationEnd) {
+			throw new StreamCorruptedException("Expected " + destinationLength + " bytes but decompressed "
+					+ (position - destinationOffset));
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.neverfear.util.messaging.ipc;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.neverfear.util.concurrent.IdleStrategy;
+
+/**
+ * Connects two stages within one process: messages written to the
+ * {@link #writer()} by one thread are read from the {@link #reader()} by
+ * another. Unlike a {@link java.io.PipedInputStream} there are no locks,
+ * wait/notify or intermediate copies. Both ends share a preallocated
+ * {@link SharedMemoryRing} in a direct buffer and hand messages off with
+ * ordered stores.
+ * <p>
+ * Each end has a single thread, as per the shared memory reader and writer.
+ */
+public final class MessagePipe
+	implements Closeable {
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final SharedMemoryMessageWriter writer;
+	private final SharedMemoryMessageReader reader;
+
+	private MessagePipe(final SharedMemoryRing ring,
+			final IdleStrategy writerIdleStrategy,
+			final IdleStrategy readerIdleStrategy) {
+		this.writer = new SharedMemoryMessageWriter(ring, writerIdleStrategy);
+		this.reader = new SharedMemoryMessageReader(ring, readerIdleStrategy);
+	}
+
+	public static MessagePipe open() {
+		return open(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the size of the ring, a power of two
+	 * @return the pipe
+	 */
+	public static MessagePipe open(final int capacity) {
+		final IdleStrategy idleStrategy = IdleStrategy.backoff(100, 10, 1000000);
+		return open(capacity, idleStrategy, idleStrategy);
+	}
+
+	/**
+	 * @param capacity the size of the ring, a power of two
+	 * @param writerIdleStrategy how the writer waits while the ring is full
+	 * @param readerIdleStrategy how the reader waits while the ring is empty
+	 * @return the pipe
+	 */
+	public static MessagePipe open(final int capacity,
+			final IdleStrategy writerIdleStrategy,
+			final IdleStrategy readerIdleStrategy) {
+		return new MessagePipe(SharedMemoryRing.allocate(capacity), writerIdleStrategy, readerIdleStrategy);
+	}
+
+	public SharedMemoryMessageWriter writer() {
+		return this.writer;
+	}
+
+	public SharedMemoryMessageReader reader() {
+		return this.reader;
+	}
+
+	/**
+	 * Close both ends. Close only the writer instead to let the reader drain
+	 * the pipe and then see EOF.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.writer.close();
+		} finally {
+			this.reader.close();
+		}
+	}
+}
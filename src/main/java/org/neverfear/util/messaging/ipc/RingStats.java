@@ -0,0 +1,100 @@
+package org.neverfear.util.messaging.ipc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the work done by one side of a {@link SharedMemoryRing},
+ * either the writer or the reader.
+ */
+public final class RingStats {
+
+	/**
+	 * Accumulates the counts a snapshot is taken of. Recording is lock free
+	 * and done once per batch rather than per message.
+	 */
+	static final class Counters {
+
+		private final LongAdder messages = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder batches = new LongAdder();
+		private final LongAdder idles = new LongAdder();
+
+		/**
+		 * @param messages the number of messages in the batch
+		 * @param bytes the total length of their payloads
+		 */
+		void record(final int messages, final long bytes) {
+			this.messages.add(messages);
+			this.bytes.add(bytes);
+			this.batches.increment();
+		}
+
+		/**
+		 * @param idles the number of times the side waited before it could
+		 *            proceed
+		 */
+		void recordIdles(final int idles) {
+			this.idles.add(idles);
+		}
+
+		RingStats snapshot() {
+			return new RingStats(this.messages.sum(), this.bytes.sum(), this.batches.sum(), this.idles.sum());
+		}
+	}
+
+	private final long messages;
+	private final long bytes;
+	private final long batches;
+	private final long idles;
+
+	RingStats(final long messages, final long bytes, final long batches, final long idles) {
+		super();
+		this.messages = messages;
+		this.bytes = bytes;
+		this.batches = batches;
+		this.idles = idles;
+	}
+
+	/**
+	 * @return the number of messages written or read
+	 */
+	public long messages() {
+		return this.messages;
+	}
+
+	/**
+	 * @return the total length of the payloads written or read
+	 */
+	public long bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return the number of times messages were published, for the writer,
+	 *         or consumed, for the reader
+	 */
+	public long batches() {
+		return this.batches;
+	}
+
+	/**
+	 * @return the number of times the idle strategy was called, while the
+	 *         ring was full for the writer or empty for the reader
+	 */
+	public long idles() {
+		return this.idles;
+	}
+
+	/**
+	 * @return the mean number of messages per batch
+	 */
+	public double messagesPerBatch() {
+		return this.batches == 0 ? 0.0 : (double) this.messages / this.batches;
+	}
+
+	@Override
+	public String toString() {
+		return "RingStats [messages=" + this.messages + ", bytes=" + this.bytes + ", batches=" + this.batches
+				+ ", idles=" + this.idles + "]";
+	}
+}
@@ -0,0 +1,286 @@
+package org.neverfear.util.messaging.ipc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Path;
+
+import org.neverfear.util.concurrent.IdleStrategy;
+import org.neverfear.util.messaging.FrameHandler;
+import org.neverfear.util.messaging.MessageReader;
+
+/**
+ * Reads messages written into a {@link SharedMemoryRing} by a
+ * {@link SharedMemoryMessageWriter}, typically in another process on the same
+ * host.
+ * <p>
+ * While no message is available the reader waits using its idle strategy, so
+ * the choice of strategy trades CPU for hand off latency:
+ * {@link IdleStrategy#busySpin()} gives the lowest latency at the cost of a
+ * core, {@link IdleStrategy#backoff(int, int, long)} suits bursty traffic.
+ * <p>
+ * The ring has a single consumer: a reader must only be used by one thread at
+ * a time.
+ */
+public final class SharedMemoryMessageReader
+	implements MessageReader {
+
+	private final SharedMemoryRing ring;
+	private final ByteBuffer data;
+	private final IdleStrategy idleStrategy;
+	private final RingStats.Counters counters = new RingStats.Counters();
+
+	/**
+	 * Exposes messages in place for {@link #readMessageView()}.
+	 */
+	private final ByteBuffer view;
+
+	/**
+	 * The position of the next record to read.
+	 */
+	private long head;
+
+	/**
+	 * The head last published to the ring. Behind {@link #head} while a view
+	 * is outstanding.
+	 */
+	private long published;
+
+	/**
+	 * The last tail read from the ring. The writer can only have moved it on
+	 * since.
+	 */
+	private long tail;
+
+	private boolean closed = false;
+
+	/**
+	 * @param file a ring created by a {@link SharedMemoryMessageWriter}
+	 * @throws IOException
+	 */
+	public SharedMemoryMessageReader(final Path file) throws IOException {
+		this(file,
+				IdleStrategy.backoff(100, 10, 1000000));
+	}
+
+	/**
+	 * @param file a ring created by a {@link SharedMemoryMessageWriter}
+	 * @param idleStrategy how to wait while no message is available
+	 * @throws IOException if the file is not a ring
+	 */
+	public SharedMemoryMessageReader(final Path file, final IdleStrategy idleStrategy) throws IOException {
+		this(SharedMemoryRing.open(file),
+				idleStrategy);
+	}
+
+	SharedMemoryMessageReader(final SharedMemoryRing ring, final IdleStrategy idleStrategy) {
+		this.ring = ring;
+		this.data = ring.data()
+				.duplicate()
+				.order(ring.data()
+						.order());
+		this.view = this.data.asReadOnlyBuffer();
+		this.idleStrategy = idleStrategy;
+		this.head = this.ring.head();
+		this.published = this.head;
+		this.tail = this.head;
+	}
+
+	/**
+	 * Waits for the next record, skipping any padding.
+	 * 
+	 * @return the index of the record in the ring or -1 if EOF was reached
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	private int nextRecord() throws IOException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+
+		// Free any message exposed by a view
+		if (this.published != this.head) {
+			publishHead();
+		}
+
+		int attempt = 0;
+		try {
+			while (true) {
+				// Read closed first so a record published before closing is
+				// not missed
+				final boolean writerClosed = this.ring.isClosed();
+				final int index = peekRecord();
+				if (index >= 0) {
+					return index;
+				}
+				if (writerClosed) {
+					return -1;
+				}
+
+				if (Thread.interrupted()) {
+					throw new InterruptedIOException();
+				}
+				this.idleStrategy.idle(attempt++);
+			}
+		} finally {
+			this.counters.recordIdles(attempt);
+		}
+	}
+
+	/**
+	 * Finds the next record without waiting, skipping any padding.
+	 * 
+	 * @return the index of the record in the ring or -1 if none is available
+	 */
+	private int peekRecord() {
+		while (true) {
+			if (this.head == this.tail) {
+				this.tail = this.ring.tail();
+				if (this.head == this.tail) {
+					return -1;
+				}
+			}
+
+			final int index = this.ring.index(this.head);
+			if (this.data.getInt(index) != SharedMemoryRing.PADDING) {
+				return index;
+			}
+			this.head += this.ring.capacity() - index;
+		}
+	}
+
+	private void publishHead() {
+		this.published = this.head;
+		this.ring.head(this.head);
+	}
+
+	/**
+	 * Frees the space of the record at the head.
+	 */
+	private void consume(final int length) {
+		this.head += SharedMemoryRing.recordSize(length);
+		publishHead();
+		this.counters.record(1, length);
+	}
+
+	@Override
+	public byte[] readMessage() throws IOException {
+		final int index = nextRecord();
+		if (index < 0) {
+			return null;
+		}
+
+		final int length = this.data.getInt(index);
+		final byte[] message = new byte[length];
+		this.data.position(index + Integer.BYTES);
+		this.data.get(message);
+		consume(length);
+		return message;
+	}
+
+	/**
+	 * @throws BufferOverflowException if the destination does not have enough
+	 *         space for the payload. The message is not consumed so the caller
+	 *         may retry with a larger buffer.
+	 * @see MessageReader#readMessage(ByteBuffer)
+	 */
+	@Override
+	public int readMessage(final ByteBuffer destination) throws IOException {
+		final int index = nextRecord();
+		if (index < 0) {
+			return -1;
+		}
+
+		final int length = this.data.getInt(index);
+		if (destination.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+		this.data.limit(index + Integer.BYTES + length);
+		this.data.position(index + Integer.BYTES);
+		destination.put(this.data);
+		this.data.limit(this.data.capacity());
+		consume(length);
+		return length;
+	}
+
+	/**
+	 * Read the next message in place, without copying. The space it occupies
+	 * in the ring is not freed until the next read.
+	 * <p>
+	 * The returned buffer is a read only flyweight: it is only valid until the
+	 * next read from this reader and must not be retained.
+	 * 
+	 * @return a view of the message payload or null if EOF was reached.
+	 * @throws IOException
+	 */
+	public ByteBuffer readMessageView() throws IOException {
+		final int index = nextRecord();
+		if (index < 0) {
+			return null;
+		}
+
+		final int length = this.data.getInt(index);
+		this.view.limit(index + Integer.BYTES + length);
+		this.view.position(index + Integer.BYTES);
+		this.head += SharedMemoryRing.recordSize(length);
+		this.counters.record(1, length);
+		return this.view;
+	}
+
+	/**
+	 * Read every message that is available. Blocks until the first message is
+	 * received, then passes it and every further message already in the ring
+	 * to the handler in place. The space they occupy is freed once, after the
+	 * last, so a burst of messages costs one ordered store.
+	 * 
+	 * @param handler receives each message as per
+	 *            {@link FrameHandler#onFrame(ByteBuffer)}
+	 * @return the number of messages read or -1 if EOF was reached.
+	 * @throws IOException
+	 */
+	public int readMessages(final FrameHandler handler) throws IOException {
+		int index = nextRecord();
+		if (index < 0) {
+			return -1;
+		}
+
+		int count = 0;
+		long bytes = 0;
+		try {
+			do {
+				final int length = this.data.getInt(index);
+				this.view.limit(index + Integer.BYTES + length);
+				this.view.position(index + Integer.BYTES);
+				this.head += SharedMemoryRing.recordSize(length);
+				count++;
+				bytes += length;
+				handler.onFrame(this.view);
+			} while ((index = peekRecord()) >= 0);
+		} finally {
+			publishHead();
+			this.counters.record(count, bytes);
+		}
+		return count;
+	}
+
+	/**
+	 * @return a snapshot of the messages read so far
+	 */
+	public RingStats stats() {
+		return this.counters.snapshot();
+	}
+
+	/**
+	 * Frees any message exposed by a view and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		publishHead();
+		this.ring.close();
+	}
+}
@@ -0,0 +1,245 @@
+package org.neverfear.util.messaging.ipc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Path;
+
+import org.neverfear.util.concurrent.IdleStrategy;
+import org.neverfear.util.messaging.FrameTooLargeException;
+import org.neverfear.util.messaging.MessageWriter;
+
+/**
+ * Writes messages into a {@link SharedMemoryRing} for a
+ * {@link SharedMemoryMessageReader}, typically in another process on the same
+ * host. A message is visible to the reader as soon as {@link #write(ByteBuffer)}
+ * returns, without a system call.
+ * <p>
+ * Messages may also be written in place: {@link #claim(int)} space for each
+ * message, fill it and then {@link #commit()} every claimed message to the
+ * reader at once.
+ * <p>
+ * The ring has a single producer: a writer must only be used by one thread at
+ * a time. When the ring is full the writer waits for the reader using its
+ * idle strategy.
+ */
+public final class SharedMemoryMessageWriter
+	implements MessageWriter {
+
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+	private final SharedMemoryRing ring;
+	private final ByteBuffer data;
+	private final IdleStrategy idleStrategy;
+	private final RingStats.Counters counters = new RingStats.Counters();
+
+	/**
+	 * Exposes claimed space for {@link #claim(int)}.
+	 */
+	private final ByteBuffer claimed;
+
+	/**
+	 * The position after the last record committed, only written by this
+	 * writer.
+	 */
+	private long tail = 0;
+
+	/**
+	 * The position after the last record claimed. Ahead of {@link #tail}
+	 * until the claims are committed.
+	 */
+	private long claimTail = 0;
+
+	private int claimedMessages = 0;
+	private long claimedBytes = 0;
+
+	/**
+	 * The last head read from the ring. The reader can only have moved it on
+	 * since.
+	 */
+	private long head = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * @param file created, or replaced if it exists
+	 * @throws IOException
+	 */
+	public SharedMemoryMessageWriter(final Path file) throws IOException {
+		this(file,
+				DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param file created, or replaced if it exists
+	 * @param capacity the size of the ring, a power of two
+	 * @throws IOException
+	 */
+	public SharedMemoryMessageWriter(final Path file, final int capacity) throws IOException {
+		this(file,
+				capacity,
+				IdleStrategy.backoff(100, 10, 1000000));
+	}
+
+	/**
+	 * @param file created, or replaced if it exists
+	 * @param capacity the size of the ring, a power of two
+	 * @param idleStrategy how to wait while the ring is full
+	 * @throws IOException
+	 */
+	public SharedMemoryMessageWriter(final Path file, final int capacity, final IdleStrategy idleStrategy)
+			throws IOException {
+		this(SharedMemoryRing.create(file, capacity),
+				idleStrategy);
+	}
+
+	SharedMemoryMessageWriter(final SharedMemoryRing ring, final IdleStrategy idleStrategy) {
+		this.ring = ring;
+		this.data = ring.data()
+				.duplicate()
+				.order(ring.data()
+						.order());
+		this.claimed = ring.data()
+				.duplicate();
+		this.idleStrategy = idleStrategy;
+	}
+
+	/**
+	 * @return the largest payload that may be written. Limited to half the
+	 *         ring so that a record and the padding before it always fit.
+	 */
+	public int maxLength() {
+		return this.ring.capacity() / 2 - Integer.BYTES;
+	}
+
+	@Override
+	public void write(final byte[] payload) throws IOException {
+		write(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Copies the remaining bytes of the payload into the ring as one message,
+	 * waiting for space if the ring is full. Commits it along with any
+	 * messages already claimed.
+	 * 
+	 * @throws FrameTooLargeException if the payload is longer than
+	 *         {@link #maxLength()}
+	 * @throws InterruptedIOException if interrupted while waiting for space
+	 */
+	@Override
+	public void write(final ByteBuffer payload) throws IOException {
+		claim(payload.remaining()).put(payload);
+		commit();
+	}
+
+	/**
+	 * Claim space in the ring for a message of exactly the passed length,
+	 * waiting for space if the ring is full. The message is not visible to
+	 * the reader until committed.
+	 * <p>
+	 * The returned buffer is a flyweight: its position is the start of the
+	 * payload and its limit the end. It must be filled before the next claim,
+	 * which reuses it.
+	 * 
+	 * @param length
+	 * @return the space claimed
+	 * @throws FrameTooLargeException if the length is longer than
+	 *         {@link #maxLength()}
+	 * @throws InterruptedIOException if interrupted while waiting for space
+	 * @throws IOException
+	 */
+	public ByteBuffer claim(final int length) throws IOException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+		if (length < 0) {
+			throw new IllegalArgumentException("Negative length " + length);
+		}
+		if (length > maxLength()) {
+			throw new FrameTooLargeException(length, maxLength());
+		}
+
+		final int recordSize = SharedMemoryRing.recordSize(length);
+		int index = this.ring.index(this.claimTail);
+		final int toEnd = this.ring.capacity() - index;
+		final int padding = recordSize > toEnd ? toEnd : 0;
+		awaitSpace(padding + recordSize);
+
+		if (padding > 0) {
+			this.data.putInt(index, SharedMemoryRing.PADDING);
+			this.claimTail += padding;
+			index = 0;
+		}
+
+		this.data.putInt(index, length);
+		this.claimTail += recordSize;
+		this.claimedMessages++;
+		this.claimedBytes += length;
+
+		this.claimed.limit(index + Integer.BYTES + length);
+		this.claimed.position(index + Integer.BYTES);
+		return this.claimed;
+	}
+
+	/**
+	 * Make every claimed message visible to the reader with a single ordered
+	 * store.
+	 */
+	public void commit() {
+		if (this.claimTail == this.tail) {
+			return;
+		}
+		this.tail = this.claimTail;
+		this.ring.tail(this.tail);
+		this.counters.record(this.claimedMessages, this.claimedBytes);
+		this.claimedMessages = 0;
+		this.claimedBytes = 0;
+	}
+
+	/**
+	 * Wait until the reader has freed the passed number of bytes after the
+	 * last claim. Commits any claimed messages before waiting, as the reader
+	 * cannot free space for them otherwise.
+	 */
+	private void awaitSpace(final int required) throws InterruptedIOException {
+		final long wrapPoint = this.claimTail + required - this.ring.capacity();
+		if (this.head >= wrapPoint) {
+			return;
+		}
+
+		int attempt = 0;
+		while ((this.head = this.ring.head()) < wrapPoint) {
+			if (Thread.interrupted()) {
+				this.counters.recordIdles(attempt);
+				throw new InterruptedIOException();
+			}
+			commit();
+			this.idleStrategy.idle(attempt++);
+		}
+		this.counters.recordIdles(attempt);
+	}
+
+	/**
+	 * @return a snapshot of the messages committed so far
+	 */
+	public RingStats stats() {
+		return this.counters.snapshot();
+	}
+
+	/**
+	 * Marks the ring closed. The reader sees EOF once it has read every
+	 * message written before this. The file is left for the reader to finish
+	 * with.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		commit();
+		this.closed = true;
+		this.ring.markClosed();
+		this.ring.close();
+	}
+}
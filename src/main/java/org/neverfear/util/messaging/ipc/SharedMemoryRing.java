@@ -0,0 +1,270 @@
+package org.neverfear.util.messaging.ipc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.neverfear.util.concurrent.DirectMemory;
+
+/**
+ * A single producer, single consumer ring of length prefixed records shared
+ * by a {@link SharedMemoryMessageWriter} and a
+ * {@link SharedMemoryMessageReader}. The ring is either a memory mapped file,
+ * so the two may be in different processes, or a direct buffer for a
+ * {@link MessagePipe} within one process.
+ * <p>
+ * The file starts with a header holding the capacity of the ring and the
+ * producer and consumer positions, each on its own cache line, followed by
+ * the ring itself. Each record is a native order int length followed by the
+ * payload, padded to a multiple of {@link #ALIGNMENT} bytes. Records never
+ * wrap: a record that does not fit before the end of the ring is preceded by
+ * a {@link #PADDING} record that fills the rest of it.
+ * <p>
+ * The producer publishes records by advancing the tail with an ordered store
+ * after writing them, and the consumer frees space by advancing the head the
+ * same way. Plain {@link ByteBuffer} access gives no such ordering between
+ * processes so the positions are accessed through {@link DirectMemory}.
+ */
+public final class SharedMemoryRing
+	implements Closeable {
+
+	/**
+	 * Marks an initialised ring. Written last when the producer creates it.
+	 */
+	static final int MAGIC = 0x52494e47;
+
+	static final int ALIGNMENT = 8;
+
+	/**
+	 * The length of a record that only fills the rest of the ring.
+	 */
+	static final int PADDING = -1;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int TAIL_OFFSET = 64;
+	private static final int HEAD_OFFSET = 128;
+	private static final int CLOSED_OFFSET = 192;
+	static final int HEADER_SIZE = 256;
+
+	/**
+	 * The mapped file or null if the ring is not mapped.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Kept so that the memory, and so {@link #address}, stays valid.
+	 */
+	private final ByteBuffer memory;
+	private final long address;
+	private final int capacity;
+
+	/**
+	 * The ring, without the header, in native order.
+	 */
+	private final ByteBuffer data;
+
+	private SharedMemoryRing(final FileChannel channel, final ByteBuffer memory, final int capacity) {
+		this.channel = channel;
+		this.memory = memory;
+		this.address = DirectMemory.address(memory);
+		this.capacity = capacity;
+		memory.position(HEADER_SIZE);
+		memory.limit(HEADER_SIZE + capacity);
+		this.data = memory.slice()
+				.order(ByteOrder.nativeOrder());
+		memory.clear();
+	}
+
+	private static boolean isValidCapacity(final int capacity) {
+		return capacity >= ALIGNMENT && Integer.bitCount(capacity) == 1;
+	}
+
+	private static void checkCapacity(final int capacity) {
+		if (!isValidCapacity(capacity)) {
+			throw new IllegalArgumentException("Capacity " + capacity + " is not a power of two of at least "
+					+ ALIGNMENT);
+		}
+	}
+
+	/**
+	 * Allocate an empty ring in a direct buffer, for use within one process.
+	 * 
+	 * @param capacity a power of two, at least {@link #ALIGNMENT} bytes
+	 * @return the ring
+	 */
+	static SharedMemoryRing allocate(final int capacity) {
+		checkCapacity(capacity);
+		final SharedMemoryRing ring = new SharedMemoryRing(null,
+				ByteBuffer.allocateDirect(HEADER_SIZE + capacity),
+				capacity);
+		ring.initialise();
+		return ring;
+	}
+
+	/**
+	 * Create an empty ring, replacing any existing file.
+	 * 
+	 * @param file
+	 * @param capacity a power of two, at least {@link #ALIGNMENT} bytes
+	 * @return the ring
+	 * @throws IOException
+	 */
+	static SharedMemoryRing create(final Path file, final int capacity) throws IOException {
+		checkCapacity(capacity);
+
+		final FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			final MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+			final SharedMemoryRing ring = new SharedMemoryRing(channel, mapped, capacity);
+			ring.initialise();
+			return ring;
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the header of a new ring, the magic number last.
+	 */
+	private void initialise() {
+		DirectMemory.putInt(this.address + CAPACITY_OFFSET, this.capacity);
+		DirectMemory.putOrderedInt(this.address + MAGIC_OFFSET, MAGIC);
+	}
+
+	/**
+	 * Open a ring created by {@link #create(Path, int)}.
+	 * 
+	 * @param file
+	 * @return the ring
+	 * @throws IOException if the file is not an initialised ring
+	 */
+	static SharedMemoryRing open(final Path file) throws IOException {
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			final long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException(file + " is not a shared memory ring");
+			}
+
+			final MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+			final long headerAddress = DirectMemory.address(header);
+			if (DirectMemory.getIntVolatile(headerAddress + MAGIC_OFFSET) != MAGIC) {
+				throw new IOException(file + " is not a shared memory ring");
+			}
+			final int capacity = DirectMemory.getInt(headerAddress + CAPACITY_OFFSET);
+			if (!isValidCapacity(capacity)) {
+				// Masking positions by anything else would corrupt reads
+				throw new IOException(file + " is not a shared memory ring");
+			}
+			if (size < HEADER_SIZE + (long) capacity) {
+				throw new IOException(file + " is truncated");
+			}
+
+			return new SharedMemoryRing(channel, channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + capacity), capacity);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return the path of a ring with the passed name under /dev/shm, which is
+	 *         backed by memory rather than disk, or under the temporary
+	 *         directory where there is no /dev/shm
+	 */
+	public static Path path(final String name) {
+		final Path shm = Paths.get("/dev/shm");
+		if (Files.isDirectory(shm)) {
+			return shm.resolve(name);
+		}
+		return Paths.get(System.getProperty("java.io.tmpdir"), name);
+	}
+
+	/**
+	 * @param length
+	 * @return the number of bytes a record with a payload of the passed
+	 *         length occupies in the ring
+	 */
+	static int recordSize(final int length) {
+		return (Integer.BYTES + length + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	int capacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the ring, shared by every caller
+	 */
+	ByteBuffer data() {
+		return this.data;
+	}
+
+	int index(final long position) {
+		return (int) position & (this.capacity - 1);
+	}
+
+	long tail() {
+		return DirectMemory.getLongVolatile(this.address + TAIL_OFFSET);
+	}
+
+	/**
+	 * Publish every record before the passed position to the consumer.
+	 */
+	void tail(final long position) {
+		DirectMemory.putOrderedLong(this.address + TAIL_OFFSET, position);
+	}
+
+	long head() {
+		return DirectMemory.getLongVolatile(this.address + HEAD_OFFSET);
+	}
+
+	/**
+	 * Free the space of every record before the passed position.
+	 */
+	void head(final long position) {
+		DirectMemory.putOrderedLong(this.address + HEAD_OFFSET, position);
+	}
+
+	/**
+	 * @return true once the producer has closed the ring
+	 */
+	boolean isClosed() {
+		return DirectMemory.getIntVolatile(this.address + CLOSED_OFFSET) != 0;
+	}
+
+	void markClosed() {
+		DirectMemory.putOrderedInt(this.address + CLOSED_OFFSET, 1);
+	}
+
+	/**
+	 * Close the file, if mapped. The memory remains until the ring is garbage
+	 * collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SharedMemoryRing [capacity=" + this.capacity + ", memory=" + this.memory + "]";
+	}
+}
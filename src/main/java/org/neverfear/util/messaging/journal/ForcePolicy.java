@@ -0,0 +1,74 @@
+package org.neverfear.util.messaging.journal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a {@link MappedJournalWriter} forces written frames to storage, trading
+ * durability against write latency.
+ */
+public final class ForcePolicy {
+
+	private static final ForcePolicy PER_FRAME = new ForcePolicy(true, true, Long.MAX_VALUE);
+	private static final ForcePolicy PER_BATCH = new ForcePolicy(false, true, Long.MAX_VALUE);
+	private static final ForcePolicy NEVER = new ForcePolicy(false, false, Long.MAX_VALUE);
+
+	/**
+	 * Force after every frame. Most durable and slowest.
+	 */
+	public static ForcePolicy perFrame() {
+		return PER_FRAME;
+	}
+
+	/**
+	 * Force when the writer is flushed, so callers decide the batch.
+	 */
+	public static ForcePolicy perBatch() {
+		return PER_BATCH;
+	}
+
+	/**
+	 * Force on the first write or flush after the interval has elapsed since
+	 * the last force.
+	 * 
+	 * @param interval
+	 * @param timeUnit
+	 */
+	public static ForcePolicy periodic(final long interval, final TimeUnit timeUnit) {
+		return new ForcePolicy(false, false, timeUnit.toNanos(interval));
+	}
+
+	/**
+	 * Leave it to the operating system, other than when segments are rolled
+	 * or the writer is closed.
+	 */
+	public static ForcePolicy never() {
+		return NEVER;
+	}
+
+	private final boolean onWrite;
+	private final boolean onFlush;
+	private final long intervalNanos;
+
+	private ForcePolicy(final boolean onWrite, final boolean onFlush, final long intervalNanos) {
+		super();
+		this.onWrite = onWrite;
+		this.onFlush = onFlush;
+		this.intervalNanos = intervalNanos;
+	}
+
+	/**
+	 * @param sinceLastForceNanos
+	 * @return true if a write should be followed by a force
+	 */
+	boolean forceOnWrite(final long sinceLastForceNanos) {
+		return this.onWrite || sinceLastForceNanos >= this.intervalNanos;
+	}
+
+	/**
+	 * @param sinceLastForceNanos
+	 * @return true if a flush should force
+	 */
+	boolean forceOnFlush(final long sinceLastForceNanos) {
+		return this.onFlush || sinceLastForceNanos >= this.intervalNanos;
+	}
+}
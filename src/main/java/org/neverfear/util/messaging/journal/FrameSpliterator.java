@@ -0,0 +1,87 @@
+package org.neverfear.util.messaging.journal;
+
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Traverses a range of the frames of an {@link IndexedFrameFile}, splitting at
+ * indexed frames so that the offset of each half is known without scanning.
+ */
+final class FrameSpliterator
+	implements Spliterator<ByteBuffer> {
+
+	private final IndexedFrameFile file;
+	private long frameNumber;
+	private long offset;
+	private final long end;
+
+	/**
+	 * @param file
+	 * @param frameNumber the first frame
+	 * @param offset the offset of the first frame
+	 * @param end the frame after the last frame
+	 */
+	FrameSpliterator(final IndexedFrameFile file, final long frameNumber, final long offset, final long end) {
+		super();
+		this.file = file;
+		this.frameNumber = frameNumber;
+		this.offset = offset;
+		this.end = end;
+	}
+
+	@Override
+	public boolean tryAdvance(final Consumer<? super ByteBuffer> action) {
+		if (this.frameNumber >= this.end) {
+			return false;
+		}
+		final ByteBuffer frame = this.file.frameAt(this.offset);
+		this.offset += Integer.BYTES + frame.remaining() + this.file.trailerSize();
+		this.frameNumber++;
+		action.accept(frame);
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(final Consumer<? super ByteBuffer> action) {
+		long next = this.offset;
+		for (long i = this.frameNumber; i < this.end; i++) {
+			final ByteBuffer frame = this.file.frameAt(next);
+			next += Integer.BYTES + frame.remaining() + this.file.trailerSize();
+			action.accept(frame);
+		}
+		this.offset = next;
+		this.frameNumber = this.end;
+	}
+
+	@Override
+	public Spliterator<ByteBuffer> trySplit() {
+		final int interval = this.file.indexInterval();
+		final long middle = this.frameNumber + (this.end - this.frameNumber) / 2;
+		int entry = (int) (middle / interval);
+		if ((long) entry * interval <= this.frameNumber) {
+			// The indexed frame before the middle is not inside the range but
+			// the one after it may be
+			entry++;
+		}
+		final long split = (long) entry * interval;
+		if (split <= this.frameNumber || split >= this.end) {
+			return null;
+		}
+
+		final FrameSpliterator prefix = new FrameSpliterator(this.file, this.frameNumber, this.offset, split);
+		this.frameNumber = split;
+		this.offset = this.file.indexedOffset(entry);
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return this.end - this.frameNumber;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+	}
+}
@@ -0,0 +1,537 @@
+package org.neverfear.util.messaging.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.neverfear.util.messaging.Crc32c;
+import org.neverfear.util.messaging.FrameChecksum;
+
+/**
+ * Random access to the frames of a recorded length prefixed frame file, such
+ * as a {@link MappedJournalWriter} segment.
+ * <p>
+ * The file is memory mapped and a sparse index of the offset of every
+ * {@code indexInterval}th frame is built on open, so seeking to a frame reads
+ * at most {@code indexInterval} length prefixes. If a timestamp extractor is
+ * given the index also records the timestamp of each indexed frame, and
+ * seeking by time is a binary search of the index; timestamps must not
+ * decrease through the file. The index is persisted, where the directory
+ * allows, to a {@code .idx} file next to the data. It is reused while the
+ * data still ends where the index says it does, which is checked by scanning
+ * from the last indexed frame, so frames appended to a preallocated segment
+ * are noticed even though its size is unchanged. Delete it if the timestamp
+ * extractor changes.
+ * <p>
+ * Frames are returned as read only views of the mapped file, without copying.
+ * Scanning stops at the first negative length or at a trailing frame that was
+ * not completely written. If frames carry a {@link FrameChecksum checksum}
+ * trailer, each is verified as the index is built and scanning also stops at
+ * the first frame that does not match. Files larger than 2GB are mapped in
+ * chunks.
+ * <p>
+ * Reading is thread safe, and {@link #frames()} may be traversed in parallel;
+ * it splits at indexed frames so each part starts without a scan.
+ */
+public final class IndexedFrameFile
+	implements Closeable {
+
+	public static final int DEFAULT_INDEX_INTERVAL = 1024;
+	public static final String INDEX_SUFFIX = ".idx";
+
+	private static final int INDEX_MAGIC = 0x4E464958;
+	private static final int INDEX_VERSION = 2;
+	private static final int INDEX_HEADER_SIZE = 5 * Integer.BYTES + 1 + 3 * Long.BYTES;
+
+	/**
+	 * Chunks start at multiples of this but extend as far as a mapping can,
+	 * so any frame smaller than this lies within a single chunk.
+	 */
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final MappedByteBuffer[] chunks;
+	private final int indexInterval;
+	private final ToLongFunction<ByteBuffer> timestampExtractor;
+	private final int trailerSize;
+
+	/**
+	 * Verifies frames while the index is built or checked, on the
+	 * constructing thread only. Null if frames have no trailer.
+	 */
+	private final Crc32c checksum;
+
+	private long frameCount;
+	private long dataEnd;
+	private long[] offsets;
+	private long[] timestamps;
+
+	public IndexedFrameFile(final Path file) throws IOException {
+		this(file, DEFAULT_INDEX_INTERVAL, null);
+	}
+
+	/**
+	 * @param file
+	 * @param indexInterval the number of frames between index entries
+	 * @param timestampExtractor reads the timestamp of a frame, or null to not
+	 *            index by time
+	 * @throws IOException
+	 */
+	public IndexedFrameFile(final Path file,
+			final int indexInterval,
+			final ToLongFunction<ByteBuffer> timestampExtractor) throws IOException {
+		this(file, indexInterval, timestampExtractor, FrameChecksum.none());
+	}
+
+	/**
+	 * @param file
+	 * @param indexInterval the number of frames between index entries
+	 * @param timestampExtractor reads the timestamp of a frame, or null to not
+	 *            index by time
+	 * @param frameChecksum whether frames are followed by a checksum, as
+	 *            written by the journal
+	 * @throws IOException
+	 */
+	public IndexedFrameFile(final Path file,
+			final int indexInterval,
+			final ToLongFunction<ByteBuffer> timestampExtractor,
+			final FrameChecksum frameChecksum) throws IOException {
+		if (indexInterval < 1) {
+			throw new IllegalArgumentException("Index interval must be positive: " + indexInterval);
+		}
+		this.file = file;
+		this.indexInterval = indexInterval;
+		this.timestampExtractor = timestampExtractor;
+		this.trailerSize = frameChecksum.size();
+		this.checksum = frameChecksum.newChecksum();
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			this.fileSize = this.channel.size();
+			this.chunks = new MappedByteBuffer[(int) ((this.fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			if (!loadIndex()) {
+				buildIndex();
+				saveIndex();
+			}
+		} catch (final IOException | RuntimeException e) {
+			this.channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return where the index of the file is persisted
+	 */
+	public static Path indexPath(final Path file) {
+		return file.resolveSibling(file.getFileName() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * @return the number of complete frames in the file
+	 */
+	public long frameCount() {
+		return this.frameCount;
+	}
+
+	/**
+	 * @return the offset following the last complete frame
+	 */
+	public long dataEnd() {
+		return this.dataEnd;
+	}
+
+	/**
+	 * @return true if the file was indexed by time
+	 */
+	public boolean hasTimestamps() {
+		return this.timestamps != null;
+	}
+
+	/**
+	 * @param frameNumber
+	 * @return the offset of the frame's length prefix
+	 * @throws IndexOutOfBoundsException if there is no such frame
+	 */
+	public long offsetOf(final long frameNumber) {
+		if (frameNumber < 0 || frameNumber >= this.frameCount) {
+			throw new IndexOutOfBoundsException("Frame " + frameNumber + " of " + this.frameCount);
+		}
+		long offset = this.offsets[(int) (frameNumber / this.indexInterval)];
+		for (long i = frameNumber % this.indexInterval; i > 0; i--) {
+			offset = nextOffset(offset);
+		}
+		return offset;
+	}
+
+	/**
+	 * @param frameNumber
+	 * @return a read only view of the frame's payload
+	 * @throws IndexOutOfBoundsException if there is no such frame
+	 */
+	public ByteBuffer frame(final long frameNumber) {
+		return frameAt(offsetOf(frameNumber));
+	}
+
+	/**
+	 * @param offset the offset of a frame's length prefix
+	 * @return a read only view of the frame's payload
+	 */
+	public ByteBuffer frameAt(final long offset) {
+		return region(offset + Integer.BYTES, lengthAt(offset));
+	}
+
+	/**
+	 * @param offset the offset of a frame's length prefix
+	 * @return the offset of the following frame's length prefix
+	 */
+	public long nextOffset(final long offset) {
+		return offset + Integer.BYTES + lengthAt(offset) + this.trailerSize;
+	}
+
+	/**
+	 * @return a spliterator over every frame
+	 */
+	public Spliterator<ByteBuffer> spliterator() {
+		return spliterator(0, this.frameCount);
+	}
+
+	/**
+	 * @param from the first frame
+	 * @param to the frame after the last frame
+	 * @return a spliterator over the range of frames
+	 * @throws IndexOutOfBoundsException if the range is not within the file
+	 */
+	public Spliterator<ByteBuffer> spliterator(final long from, final long to) {
+		if (from < 0 || to > this.frameCount || from > to) {
+			throw new IndexOutOfBoundsException("Frames " + from + " to " + to + " of " + this.frameCount);
+		}
+		final long offset = from == this.frameCount ? this.dataEnd : offsetOf(from);
+		return new FrameSpliterator(this, from, offset, to);
+	}
+
+	/**
+	 * @return a sequential stream of every frame, which may be made parallel
+	 */
+	public Stream<ByteBuffer> frames() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * @param from the first frame
+	 * @param to the frame after the last frame
+	 * @return a sequential stream of the range of frames, which may be made
+	 *         parallel
+	 */
+	public Stream<ByteBuffer> frames(final long from, final long to) {
+		return StreamSupport.stream(spliterator(from, to), false);
+	}
+
+	int indexInterval() {
+		return this.indexInterval;
+	}
+
+	int trailerSize() {
+		return this.trailerSize;
+	}
+
+	long indexedOffset(final int entry) {
+		return this.offsets[entry];
+	}
+
+	/**
+	 * @param timestamp
+	 * @return the number of the first frame with a timestamp at or after the
+	 *         given time, or the frame count if there is none
+	 * @throws IllegalStateException if the file was not indexed by time
+	 */
+	public long seekTime(final long timestamp) {
+		if (this.timestamps == null) {
+			throw new IllegalStateException("Not indexed by time");
+		}
+
+		// Find the last entry before the time, the frame must follow it
+		int low = 0;
+		int high = this.timestamps.length - 1;
+		int entry = -1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (this.timestamps[mid] < timestamp) {
+				entry = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (entry < 0) {
+			return 0;
+		}
+
+		long frameNumber = (long) entry * this.indexInterval;
+		long offset = this.offsets[entry];
+		while (frameNumber < this.frameCount
+				&& this.timestampExtractor.applyAsLong(frameAt(offset)) < timestamp) {
+			offset = nextOffset(offset);
+			frameNumber++;
+		}
+		return frameNumber;
+	}
+
+	private int lengthAt(final long offset) {
+		return chunk(offset).getInt((int) (offset % CHUNK_SIZE));
+	}
+
+	private ByteBuffer region(final long offset, final int length) {
+		final MappedByteBuffer chunk = chunk(offset);
+		final int start = (int) (offset % CHUNK_SIZE);
+		if (start + (long) length <= chunk.capacity()) {
+			final ByteBuffer view = chunk.asReadOnlyBuffer();
+			view.limit(start + length);
+			view.position(start);
+			return view.slice();
+		}
+
+		// Too big to share a chunk mapping
+		try {
+			return this.channel.map(MapMode.READ_ONLY, offset, length)
+					.asReadOnlyBuffer();
+		} catch (final IOException e) {
+			throw new IllegalStateException("Unable to map frame at " + offset, e);
+		}
+	}
+
+	private MappedByteBuffer chunk(final long offset) {
+		final int index = (int) (offset / CHUNK_SIZE);
+		synchronized (this.chunks) {
+			MappedByteBuffer chunk = this.chunks[index];
+			if (chunk == null) {
+				final long position = index * CHUNK_SIZE;
+				final long size = Math.min(this.fileSize - position, Integer.MAX_VALUE);
+				try {
+					chunk = this.channel.map(MapMode.READ_ONLY, position, size);
+				} catch (final IOException e) {
+					throw new IllegalStateException("Unable to map " + this.file + " at " + position, e);
+				}
+				this.chunks[index] = chunk;
+			}
+			return chunk;
+		}
+	}
+
+	private void buildIndex() throws IOException {
+		long[] offsets = new long[16];
+		long[] timestamps = this.timestampExtractor == null ? null : new long[offsets.length];
+
+		long frameNumber = 0;
+		long offset = 0;
+		while (true) {
+			final int length = completeLength(offset, this.fileSize);
+			if (length < 0) {
+				break;
+			}
+			if (frameNumber % this.indexInterval == 0) {
+				final int entry = (int) (frameNumber / this.indexInterval);
+				if (entry == offsets.length) {
+					offsets = Arrays.copyOf(offsets, entry * 2);
+					if (timestamps != null) {
+						timestamps = Arrays.copyOf(timestamps, entry * 2);
+					}
+				}
+				offsets[entry] = offset;
+				if (timestamps != null) {
+					timestamps[entry] = this.timestampExtractor.applyAsLong(region(offset + Integer.BYTES, length));
+				}
+			}
+			offset += Integer.BYTES + length + this.trailerSize;
+			frameNumber++;
+		}
+
+		final int entries = (int) ((frameNumber + this.indexInterval - 1) / this.indexInterval);
+		this.frameCount = frameNumber;
+		this.dataEnd = offset;
+		this.offsets = Arrays.copyOf(offsets, entries);
+		this.timestamps = timestamps == null ? null : Arrays.copyOf(timestamps, entries);
+	}
+
+	/**
+	 * @param offset where a frame may start
+	 * @param end the offset the frame must end by
+	 * @return the length of the frame at the offset, or -1 if there is no
+	 *         complete frame there or it does not match its checksum
+	 */
+	private int completeLength(final long offset, final long end) {
+		if (offset + Integer.BYTES > end) {
+			return -1;
+		}
+		final int length = lengthAt(offset);
+		if (length < 0 || offset + Integer.BYTES + length + this.trailerSize > end) {
+			return -1;
+		}
+		if (this.checksum != null) {
+			this.checksum.reset();
+			this.checksum.update(region(offset, Integer.BYTES + length));
+			// The trailer is read as the length is, a big endian int
+			if (lengthAt(offset + Integer.BYTES + length) != this.checksum.intValue()) {
+				return -1;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Checks that a persisted index describes the data as it is now: that its
+	 * offsets ascend within the indexed end of data, each at a complete
+	 * frame, that the frames after the last indexed frame end there, and that
+	 * no complete frame follows it.
+	 * 
+	 * @param count the indexed frame count
+	 * @param end the indexed end of data
+	 * @param offsets the indexed offsets
+	 * @return true if the index is current
+	 */
+	private boolean isCurrent(final long count, final long end, final long[] offsets) {
+		if (count < 0 || end < 0 || end > this.fileSize
+				|| offsets.length != (count + this.indexInterval - 1) / this.indexInterval) {
+			return false;
+		}
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] >= end || (i == 0 ? offsets[i] != 0 : offsets[i] <= offsets[i - 1])
+					|| completeLength(offsets[i], end) < 0) {
+				return false;
+			}
+		}
+
+		long frameNumber = 0;
+		long offset = 0;
+		if (offsets.length > 0) {
+			frameNumber = (long) (offsets.length - 1) * this.indexInterval;
+			offset = offsets[offsets.length - 1];
+		}
+		for (; frameNumber < count; frameNumber++) {
+			if (offset < 0) {
+				return false;
+			}
+			final int length = completeLength(offset, end);
+			if (length < 0) {
+				return false;
+			}
+			offset += Integer.BYTES + length + this.trailerSize;
+		}
+		return offset == end && completeLength(end, this.fileSize) < 0;
+	}
+
+	/**
+	 * @return true if a persisted index matching this file was loaded
+	 */
+	private boolean loadIndex() throws IOException {
+		final Path indexPath = indexPath(this.file);
+		if (!Files.isRegularFile(indexPath)) {
+			return false;
+		}
+
+		try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			final ByteBuffer index = indexChannel.map(MapMode.READ_ONLY, 0, indexChannel.size());
+			if (index.remaining() < INDEX_HEADER_SIZE || index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION) {
+				return false;
+			}
+			final int interval = index.getInt();
+			final int trailer = index.getInt();
+			final boolean timestamped = index.get() != 0;
+			// The file size is recorded but not trusted: a preallocated
+			// segment keeps its size as frames are appended
+			index.getLong();
+			final long count = index.getLong();
+			final long end = index.getLong();
+			final int entries = index.getInt();
+			if (interval != this.indexInterval || trailer != this.trailerSize
+					|| timestamped != (this.timestampExtractor != null)) {
+				return false;
+			}
+			if (entries < 0 || index.remaining() != (long) entries * Long.BYTES * (timestamped ? 2 : 1)) {
+				// Truncated or corrupt, so rebuilt like any other stale index
+				return false;
+			}
+
+			final long[] loadedOffsets = new long[entries];
+			final long[] loadedTimestamps = timestamped ? new long[entries] : null;
+			for (int i = 0; i < entries; i++) {
+				loadedOffsets[i] = index.getLong();
+				if (timestamped) {
+					loadedTimestamps[i] = index.getLong();
+				}
+			}
+			if (!isCurrent(count, end, loadedOffsets)) {
+				return false;
+			}
+			this.frameCount = count;
+			this.dataEnd = end;
+			this.offsets = loadedOffsets;
+			this.timestamps = loadedTimestamps;
+			return true;
+		}
+	}
+
+	/**
+	 * Persists the index if possible. Failing to is not an error, the index
+	 * is rebuilt next time instead, so that files in read only directories
+	 * can still be opened.
+	 */
+	private void saveIndex() {
+		try {
+			writeIndex();
+		} catch (final IOException e) {
+			// Best effort
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		final Path indexPath = indexPath(this.file);
+		final Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+		final int entrySize = Long.BYTES * (this.timestamps == null ? 1 : 2);
+		final ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + this.offsets.length * entrySize);
+		index.putInt(INDEX_MAGIC)
+				.putInt(INDEX_VERSION)
+				.putInt(this.indexInterval)
+				.putInt(this.trailerSize)
+				.put((byte) (this.timestamps == null ? 0 : 1))
+				.putLong(this.fileSize)
+				.putLong(this.frameCount)
+				.putLong(this.dataEnd)
+				.putInt(this.offsets.length);
+		for (int i = 0; i < this.offsets.length; i++) {
+			index.putLong(this.offsets[i]);
+			if (this.timestamps != null) {
+				index.putLong(this.timestamps[i]);
+			}
+		}
+		index.flip();
+
+		try (FileChannel indexChannel = FileChannel.open(temporary,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			while (index.hasRemaining()) {
+				indexChannel.write(index);
+			}
+		}
+		Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
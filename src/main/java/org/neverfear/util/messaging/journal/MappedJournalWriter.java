@@ -0,0 +1,310 @@
+package org.neverfear.util.messaging.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.neverfear.util.TimeDevice;
+import org.neverfear.util.messaging.Crc32c;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.MessageWriter;
+
+/**
+ * Appends length prefixed frames to memory mapped segment files, so that
+ * journalling a frame is a memory copy rather than a system call.
+ * <p>
+ * Segments are named {@code <name>.<sequence>.journal} and are preallocated
+ * to the segment size. A negative length is written after the last frame to
+ * mark the end of the data in the current segment. When a segment is full, or
+ * the writer is closed, it is forced and truncated to its data so that closed
+ * segments hold nothing but length prefixed frames. Only the most recent
+ * segments are retained; older ones are deleted as new ones are created.
+ * <p>
+ * Frames may be followed by a {@link FrameChecksum checksum} trailer, which
+ * {@link IndexedFrameFile} verifies, so that a frame torn or corrupted on
+ * disk ends the data rather than being read.
+ * <p>
+ * A new writer always starts a new segment after any existing ones.
+ */
+public final class MappedJournalWriter
+	implements MessageWriter {
+
+	public static final String SUFFIX = ".journal";
+
+	/**
+	 * Written after the last frame in a segment. Never a valid length.
+	 */
+	public static final int END_OF_DATA = -1;
+
+	private final Path directory;
+	private final String name;
+	private final int segmentSize;
+	private final int retainedSegments;
+	private final ForcePolicy forcePolicy;
+	private final TimeDevice timeDevice;
+
+	/**
+	 * The checksum of the frame being written, or null if frames have no
+	 * trailer.
+	 */
+	private final Crc32c checksum;
+	private final int trailerSize;
+
+	private long sequence;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+	private long lastForce;
+	private boolean closed = false;
+
+	public MappedJournalWriter(final Path directory,
+			final String name,
+			final int segmentSize,
+			final int retainedSegments,
+			final ForcePolicy forcePolicy) throws IOException {
+		this(directory,
+				name,
+				segmentSize,
+				retainedSegments,
+				forcePolicy,
+				TimeDevice.ticker());
+	}
+
+	/**
+	 * @param directory where segments are created
+	 * @param name the prefix of each segment's file name
+	 * @param segmentSize the size of each segment. Bounds the largest frame
+	 *            that may be written.
+	 * @param retainedSegments the number of segments to keep, including the
+	 *            current one
+	 * @param forcePolicy
+	 * @param timeDevice used by periodic force policies
+	 * @throws IOException
+	 */
+	public MappedJournalWriter(final Path directory,
+			final String name,
+			final int segmentSize,
+			final int retainedSegments,
+			final ForcePolicy forcePolicy,
+			final TimeDevice timeDevice) throws IOException {
+		this(directory,
+				name,
+				segmentSize,
+				retainedSegments,
+				forcePolicy,
+				timeDevice,
+				FrameChecksum.none());
+	}
+
+	/**
+	 * @param directory where segments are created
+	 * @param name the prefix of each segment's file name
+	 * @param segmentSize the size of each segment. Bounds the largest frame
+	 *            that may be written.
+	 * @param retainedSegments the number of segments to keep, including the
+	 *            current one
+	 * @param forcePolicy
+	 * @param timeDevice used by periodic force policies
+	 * @param frameChecksum whether frames are followed by a checksum
+	 * @throws IOException
+	 */
+	public MappedJournalWriter(final Path directory,
+			final String name,
+			final int segmentSize,
+			final int retainedSegments,
+			final ForcePolicy forcePolicy,
+			final TimeDevice timeDevice,
+			final FrameChecksum frameChecksum) throws IOException {
+		if (segmentSize < 2 * Integer.BYTES) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+		if (retainedSegments < 1) {
+			throw new IllegalArgumentException("Must retain at least one segment");
+		}
+		this.directory = directory;
+		this.name = name;
+		this.segmentSize = segmentSize;
+		this.retainedSegments = retainedSegments;
+		this.forcePolicy = forcePolicy;
+		this.timeDevice = timeDevice;
+		this.checksum = frameChecksum.newChecksum();
+		this.trailerSize = frameChecksum.size();
+
+		final List<Path> existing = segments(directory, name);
+		this.sequence = existing.isEmpty() ? 0 : sequenceOf(existing.get(existing.size() - 1), name) + 1;
+		openSegment();
+	}
+
+	/**
+	 * @param directory
+	 * @param name
+	 * @return the segments of the named journal, oldest first
+	 * @throws IOException
+	 */
+	public static List<Path> segments(final Path directory, final String name) throws IOException {
+		final List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + ".*" + SUFFIX)) {
+			for (final Path path : stream) {
+				if (sequenceOf(path, name) >= 0) {
+					segments.add(path);
+				}
+			}
+		}
+		Collections.sort(segments, (a, b) -> Long.compare(sequenceOf(a, name), sequenceOf(b, name)));
+		return segments;
+	}
+
+	/**
+	 * @param path
+	 * @param name
+	 * @return the sequence number of the segment or -1 if not a segment of
+	 *         the named journal
+	 */
+	private static long sequenceOf(final Path path, final String name) {
+		final String fileName = path.getFileName()
+				.toString();
+		final String sequence = fileName.substring(name.length() + 1, fileName.length() - SUFFIX.length());
+		try {
+			return Long.parseLong(sequence);
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private Path segmentPath(final long segmentSequence) {
+		return this.directory.resolve(String.format("%s.%019d%s", this.name, segmentSequence, SUFFIX));
+	}
+
+	private void openSegment() throws IOException {
+		this.channel = FileChannel.open(segmentPath(this.sequence),
+				StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.mapped = this.channel.map(MapMode.READ_WRITE, 0, this.segmentSize);
+		this.mapped.putInt(0, END_OF_DATA);
+		this.lastForce = this.timeDevice.read(TimeUnit.NANOSECONDS);
+
+		final List<Path> segments = segments(this.directory, this.name);
+		for (int i = 0; i < segments.size() - this.retainedSegments; i++) {
+			Files.deleteIfExists(segments.get(i));
+		}
+	}
+
+	/**
+	 * Forces and truncates the current segment to the end of its data.
+	 */
+	private void closeSegment() throws IOException {
+		try {
+			this.mapped.force();
+			this.channel.truncate(this.mapped.position());
+		} finally {
+			this.channel.close();
+		}
+	}
+
+	@Override
+	public void write(final byte[] payload) throws IOException {
+		write(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the frame can never fit in a
+	 *         segment
+	 */
+	@Override
+	public synchronized void write(final ByteBuffer payload) throws IOException {
+		if (this.closed) {
+			throw new IOException("Journal is closed");
+		}
+
+		final int length = payload.remaining();
+		final int required = Integer.BYTES + length + this.trailerSize + Integer.BYTES;
+		if (required > this.segmentSize) {
+			throw new IllegalArgumentException("Frame of " + length + " bytes does not fit in a segment of "
+					+ this.segmentSize + " bytes");
+		}
+
+		if (this.mapped.remaining() < required) {
+			closeSegment();
+			this.sequence++;
+			openSegment();
+		}
+
+		/*
+		 * Write the payload, any trailer and the new end marker before the
+		 * length so the segment never holds a length without its payload.
+		 */
+		final int start = this.mapped.position();
+		this.mapped.position(start + Integer.BYTES);
+		this.mapped.put(payload);
+		if (this.checksum != null) {
+			putTrailer(start, length);
+		}
+		this.mapped.putInt(this.mapped.position(), END_OF_DATA);
+		this.mapped.putInt(start, length);
+
+		final long now = this.timeDevice.read(TimeUnit.NANOSECONDS);
+		if (this.forcePolicy.forceOnWrite(now - this.lastForce)) {
+			force(now);
+		}
+	}
+
+	/**
+	 * Puts the checksum of the frame, the length that is yet to be written
+	 * included, after its payload.
+	 * 
+	 * @param start the offset of the frame
+	 * @param length
+	 */
+	private void putTrailer(final int start, final int length) {
+		final int end = this.mapped.position();
+		this.checksum.reset();
+		this.checksum.update(length >>> 24);
+		this.checksum.update(length >>> 16);
+		this.checksum.update(length >>> 8);
+		this.checksum.update(length);
+		this.mapped.position(start + Integer.BYTES);
+		this.mapped.limit(end);
+		this.checksum.update(this.mapped);
+		this.mapped.limit(this.mapped.capacity());
+		this.mapped.putInt(this.checksum.intValue());
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		final long now = this.timeDevice.read(TimeUnit.NANOSECONDS);
+		if (!this.closed && this.forcePolicy.forceOnFlush(now - this.lastForce)) {
+			force(now);
+		}
+	}
+
+	private void force(final long now) {
+		this.mapped.force();
+		this.lastForce = now;
+	}
+
+	/**
+	 * @return the segment currently being written
+	 */
+	public synchronized Path currentSegment() {
+		return segmentPath(this.sequence);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		closeSegment();
+	}
+}
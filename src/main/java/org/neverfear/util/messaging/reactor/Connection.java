@@ -0,0 +1,191 @@
+package org.neverfear.util.messaging.reactor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.FrameDecoder;
+import org.neverfear.util.messaging.FrameHandler;
+
+/**
+ * A non-blocking connection served by a {@link Reactor}. Each connection owns
+ * its own {@link FrameDecoder} and outbound queue.
+ * <p>
+ * Frames are written immediately where the socket buffer has room. Only when
+ * it is full are the unwritten bytes queued and OP_WRITE interest registered,
+ * which is removed again once the queue has drained.
+ * <p>
+ * Sending is thread safe. Everything else happens on the reactor thread.
+ */
+public final class Connection
+	implements Closeable {
+
+	private final SelectionKey key;
+	private final SocketChannel channel;
+	private final Set<Connection> connections;
+	private final ConnectionHandler handler;
+	private final FrameDecoder decoder;
+	private final FrameHandler frameHandler;
+	private final ByteBufferAllocator allocator;
+
+	private final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+	private final ByteBuffer[] frame = new ByteBuffer[] {
+			this.header, null
+	};
+	private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+
+	private boolean closed = false;
+
+	/**
+	 * @param key
+	 * @param connections the open connections of the reactor, which this
+	 *            connection is added to until closed
+	 * @param handler
+	 * @param size
+	 * @param allocator source of the buffers frames are queued in while the
+	 *            socket buffer is full. The read buffer lives as long as the
+	 *            connection so is not pooled.
+	 */
+	Connection(final SelectionKey key,
+			final Set<Connection> connections,
+			final ConnectionHandler handler,
+			final int size,
+			final ByteBufferAllocator allocator) {
+		this.key = key;
+		this.channel = (SocketChannel) key.channel();
+		this.connections = connections;
+		this.connections.add(this);
+		this.handler = handler;
+		this.allocator = allocator;
+		this.decoder = new FrameDecoder(size, allocator.unpooled());
+		this.frameHandler = frame -> this.handler.onFrame(this, frame);
+	}
+
+	public SocketChannel channel() {
+		return this.channel;
+	}
+
+	public void send(final byte[] payload) throws IOException {
+		send(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Send the remaining bytes of the payload as one frame. If the frame cannot
+	 * be written immediately the unwritten bytes are copied so the payload may
+	 * be reused as soon as this returns.
+	 * 
+	 * @param payload
+	 * @throws IOException
+	 */
+	public synchronized void send(final ByteBuffer payload) throws IOException {
+		if (this.closed) {
+			throw new ClosedChannelException();
+		}
+
+		this.header.clear();
+		this.header.putInt(payload.remaining());
+		this.header.flip();
+
+		if (this.outbound.isEmpty()) {
+			this.frame[1] = payload;
+			try {
+				this.channel.write(this.frame);
+			} finally {
+				this.frame[1] = null;
+			}
+
+			if (!this.header.hasRemaining() && !payload.hasRemaining()) {
+				return;
+			}
+		}
+
+		final ByteBuffer pending = this.allocator.allocate(this.header.remaining() + payload.remaining());
+		pending.put(this.header);
+		pending.put(payload);
+		pending.flip();
+
+		final boolean wasEmpty = this.outbound.isEmpty();
+		this.outbound.add(pending);
+		if (wasEmpty) {
+			this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+			this.key.selector()
+					.wakeup();
+		}
+	}
+
+	/**
+	 * @return the number of bytes queued waiting for the socket buffer to
+	 *         drain
+	 */
+	public synchronized long pending() {
+		long pending = 0;
+		for (final ByteBuffer buffer : this.outbound) {
+			pending += buffer.remaining();
+		}
+		return pending;
+	}
+
+	void onReadable() throws IOException {
+		if (this.decoder.read(this.channel, this.frameHandler) < 0) {
+			close(null);
+		}
+	}
+
+	synchronized void onWritable() throws IOException {
+		while (!this.outbound.isEmpty()) {
+			final ByteBuffer buffer = this.outbound.peek();
+			this.channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				return;
+			}
+			this.allocator.release(this.outbound.remove());
+		}
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Close the connection, discarding anything not yet sent. The handler is
+	 * notified on the calling thread.
+	 */
+	@Override
+	public void close() {
+		close(null);
+	}
+
+	void close(final IOException cause) {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			ByteBuffer buffer;
+			while ((buffer = this.outbound.poll()) != null) {
+				this.allocator.release(buffer);
+			}
+		}
+
+		this.connections.remove(this);
+		this.key.cancel();
+		IOException failure = cause;
+		try {
+			this.channel.close();
+		} catch (final IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		this.handler.onClose(this, failure);
+	}
+
+	@Override
+	public String toString() {
+		return "Connection [" + this.channel + "]";
+	}
+}
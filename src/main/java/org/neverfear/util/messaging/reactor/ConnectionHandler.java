@@ -0,0 +1,49 @@
+package org.neverfear.util.messaging.reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.neverfear.util.messaging.FrameHandler;
+
+/**
+ * Receives the events of every {@link Connection} served by a {@link Reactor}.
+ * Methods are called on the reactor thread and should not block, except
+ * {@link #onClose(Connection, IOException)} which is called on whichever
+ * thread closes the connection.
+ * <p>
+ * A runtime exception thrown from any method other than
+ * {@link #onClose(Connection, IOException)} closes the connection, with an
+ * {@link IOException} caused by it, without affecting any other connection.
+ */
+public interface ConnectionHandler {
+
+	/**
+	 * Called when a connection has been accepted or registered, before any
+	 * frames are received from it.
+	 * 
+	 * @param connection
+	 * @throws IOException
+	 */
+	default void onOpen(final Connection connection) throws IOException {}
+
+	/**
+	 * Called with each complete frame received from the connection.
+	 * 
+	 * @param connection
+	 * @param frame only valid for the duration of the call, as per
+	 *            {@link FrameHandler#onFrame(ByteBuffer)}
+	 * @throws IOException
+	 */
+	void onFrame(Connection connection, ByteBuffer frame) throws IOException;
+
+	/**
+	 * Called once when the connection is closed, on the thread that closed
+	 * it: the reactor thread, or the caller of {@link Connection#close()} or
+	 * {@link Reactor#close()}.
+	 * 
+	 * @param connection
+	 * @param cause the failure that closed the connection or null if it was
+	 *            closed normally
+	 */
+	default void onClose(final Connection connection, final IOException cause) {}
+}
@@ -0,0 +1,219 @@
+package org.neverfear.util.messaging.reactor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neverfear.util.SelectorQueue;
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.FrameDecoder;
+
+/**
+ * Serves many length prefixed connections from a single thread using a
+ * {@link SelectorQueue}. Each connection gets its own {@link Connection} with
+ * a frame decoder and outbound queue, and every complete frame is passed to
+ * the {@link ConnectionHandler}.
+ * <p>
+ * Channels are registered through {@link #listen(SocketAddress)} and
+ * {@link #register(SocketChannel)}, which must be called either before
+ * {@link #run()} or on the reactor thread, e.g. from within a handler.
+ * {@link Connection#send(java.nio.ByteBuffer)} and {@link #close()} may be
+ * called from any thread.
+ * <p>
+ * A failure serving one connection, including a runtime exception thrown by
+ * the handler, closes only that connection. The reactor carries on serving
+ * the others.
+ */
+public final class Reactor
+	implements Closeable {
+
+	private final Selector selector;
+	private final SelectorQueue queue;
+	private final ConnectionHandler handler;
+	private final int size;
+	private final ByteBufferAllocator allocator;
+	private final Set<ServerSocketChannel> serverChannels = ConcurrentHashMap.newKeySet();
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean closed = false;
+
+	public Reactor(final ConnectionHandler handler) throws IOException {
+		this(handler,
+				FrameDecoder.DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param handler
+	 * @param size the size of each connection's read buffer
+	 * @throws IOException
+	 */
+	public Reactor(final ConnectionHandler handler, final int size) throws IOException {
+		this(handler,
+				size,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param handler
+	 * @param size the size of each connection's read buffer
+	 * @param allocator source of connection buffers, e.g. a shared
+	 *            {@link org.neverfear.util.messaging.PooledByteBufferAllocator}
+	 * @throws IOException
+	 */
+	public Reactor(final ConnectionHandler handler, final int size, final ByteBufferAllocator allocator)
+			throws IOException {
+		super();
+		this.selector = Selector.open();
+		this.queue = new SelectorQueue(this.selector);
+		this.handler = handler;
+		this.size = size;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Accept connections on the passed address.
+	 * 
+	 * @param address
+	 * @return the address actually bound, useful when binding to an ephemeral
+	 *         port
+	 * @throws IOException
+	 */
+	public SocketAddress listen(final SocketAddress address) throws IOException {
+		final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+			this.serverChannels.add(serverChannel);
+		} catch (final IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		return serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Serve an already connected channel.
+	 * 
+	 * @param channel
+	 * @return the connection
+	 * @throws IOException if the channel cannot be registered, or the handler
+	 *         fails to open the connection, in which case the connection is
+	 *         closed
+	 */
+	public Connection register(final SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		final SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+		final Connection connection = new Connection(key,
+				this.connections,
+				this.handler,
+				this.size,
+				this.allocator);
+		key.attach(connection);
+		try {
+			this.handler.onOpen(connection);
+		} catch (final IOException e) {
+			connection.close(e);
+			throw e;
+		} catch (final RuntimeException e) {
+			connection.close(new IOException("Failed to open connection", e));
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Serve connections until closed.
+	 * 
+	 * @throws IOException if the selector fails
+	 * @throws InterruptedException
+	 */
+	public void run() throws IOException, InterruptedException {
+		try {
+			while (!this.closed) {
+				final SelectionKey key = this.queue.take();
+				if (!key.isValid()) {
+					continue;
+				}
+
+				if (key.isAcceptable()) {
+					accept((ServerSocketChannel) key.channel());
+				} else {
+					service(key, (Connection) key.attachment());
+				}
+			}
+		} catch (final ClosedSelectorException e) {
+			if (!this.closed) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Accepts a pending connection. A failure to accept or open it is
+	 * confined to that connection, the server channel keeps listening.
+	 */
+	private void accept(final ServerSocketChannel serverChannel) {
+		final SocketChannel channel;
+		try {
+			channel = serverChannel.accept();
+		} catch (final IOException e) {
+			return;
+		}
+		if (channel == null) {
+			return;
+		}
+		try {
+			register(channel);
+		} catch (final IOException | RuntimeException e) {
+			// The connection, if it got that far, is already closed
+			try {
+				channel.close();
+			} catch (final IOException ignored) {
+				// Nothing more can be done
+			}
+		}
+	}
+
+	private static void service(final SelectionKey key, final Connection connection) {
+		try {
+			if (key.isWritable()) {
+				connection.onWritable();
+			}
+			if (key.isValid() && key.isReadable()) {
+				connection.onReadable();
+			}
+		} catch (final IOException e) {
+			connection.close(e);
+		} catch (final RuntimeException e) {
+			// Only this connection is affected, the reactor carries on
+			connection.close(new IOException("Connection failed", e));
+		}
+	}
+
+	/**
+	 * Stop serving and close all connections and listening channels. Any
+	 * thread blocked in {@link #run()} returns.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		this.selector.close();
+
+		for (final ServerSocketChannel serverChannel : this.serverChannels) {
+			serverChannel.close();
+		}
+		this.serverChannels.clear();
+
+		for (final Connection connection : this.connections) {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.neverfear.util.messaging.session;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageWriter;
+
+/**
+ * Serves one connection of a {@link SessionServer} in the blocking style,
+ * typically by reading messages until EOF. Each connection is served on its
+ * own thread, so blocking reads and writes only hold up that connection.
+ */
+public interface Session {
+
+	/**
+	 * Serve the connection. The connection is closed when this returns.
+	 * 
+	 * @param reader
+	 * @param writer
+	 * @throws IOException
+	 */
+	void serve(SocketChannelLengthPrefixedMessageReader reader, SocketChannelLengthPrefixedMessageWriter writer)
+			throws IOException;
+
+	/**
+	 * Called once the connection has been closed, on the thread that served
+	 * it.
+	 * 
+	 * @param channel
+	 * @param cause the failure that ended the session or null if it ended
+	 *            normally
+	 */
+	default void onClose(final SocketChannel channel, final IOException cause) {}
+}
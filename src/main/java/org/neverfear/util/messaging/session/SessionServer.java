@@ -0,0 +1,211 @@
+package org.neverfear.util.messaging.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import org.neverfear.util.concurrent.VirtualThreads;
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.reactor.Reactor;
+
+/**
+ * Serves each accepted connection on its own thread with the blocking
+ * {@link SocketChannelLengthPrefixedMessageReader} and
+ * {@link SocketChannelLengthPrefixedMessageWriter}, so that a {@link Session}
+ * can be written as a plain read loop.
+ * <p>
+ * By default sessions run on virtual threads where the JVM supports them,
+ * which lets one server hold tens of thousands of blocking sessions. The
+ * readers and writers guard their state with locks rather than monitors so a
+ * session blocked on I/O does not pin its carrier thread. On older JVMs
+ * sessions fall back to platform threads, where a {@link Reactor} scales
+ * further.
+ * <p>
+ * Closing the server interrupts every session thread and closes its channel,
+ * cancelling whatever read or write it is blocked in.
+ */
+public final class SessionServer
+	implements Closeable {
+
+	public static final int DEFAULT_SIZE = SocketChannelLengthPrefixedMessageReader.DEFAULT_SIZE;
+
+	private final Session session;
+	private final ThreadFactory threadFactory;
+	private final int size;
+	private final ByteBufferAllocator allocator;
+	private final Map<SocketChannel, Thread> sessions = new ConcurrentHashMap<>();
+
+	private volatile ServerSocketChannel serverChannel;
+	private volatile boolean closed = false;
+
+	/**
+	 * Serve sessions on virtual threads where available.
+	 * 
+	 * @param session
+	 */
+	public SessionServer(final Session session) {
+		this(session,
+				VirtualThreads.factory("session-"));
+	}
+
+	/**
+	 * @param session
+	 * @param threadFactory creates the thread each session is served on
+	 */
+	public SessionServer(final Session session, final ThreadFactory threadFactory) {
+		this(session,
+				threadFactory,
+				DEFAULT_SIZE,
+				ByteBufferAllocator.heap());
+	}
+
+	/**
+	 * @param session
+	 * @param threadFactory creates the thread each session is served on
+	 * @param size the size of each session's read buffer
+	 * @param allocator source of each session's read buffer
+	 */
+	public SessionServer(final Session session,
+			final ThreadFactory threadFactory,
+			final int size,
+			final ByteBufferAllocator allocator) {
+		super();
+		this.session = session;
+		this.threadFactory = threadFactory;
+		this.size = size;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Bind to the passed address. Connections are accepted by {@link #run()}.
+	 * 
+	 * @param address
+	 * @return the address actually bound, useful when binding to an ephemeral
+	 *         port
+	 * @throws IOException
+	 * @throws IllegalStateException if already listening
+	 */
+	public synchronized SocketAddress listen(final SocketAddress address) throws IOException {
+		if (this.serverChannel != null) {
+			throw new IllegalStateException("Already listening on " + this.serverChannel.getLocalAddress());
+		}
+
+		final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address);
+		} catch (final IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		this.serverChannel = serverChannel;
+		return serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Accept connections, starting a session thread for each, until closed.
+	 * 
+	 * @throws IOException if accepting fails
+	 * @throws IllegalStateException if not listening
+	 */
+	public void run() throws IOException {
+		final ServerSocketChannel serverChannel = this.serverChannel;
+		if (serverChannel == null) {
+			throw new IllegalStateException("Not listening");
+		}
+
+		try {
+			while (!this.closed) {
+				start(serverChannel.accept());
+			}
+		} catch (final ClosedChannelException e) {
+			if (!this.closed) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sessions being served
+	 */
+	public int sessions() {
+		return this.sessions.size();
+	}
+
+	private void start(final SocketChannel channel) {
+		final Thread thread = this.threadFactory.newThread(() -> serve(channel));
+		this.sessions.put(channel, thread);
+		if (this.closed) {
+			this.sessions.remove(channel);
+			closeQuietly(channel);
+			return;
+		}
+		thread.start();
+	}
+
+	/**
+	 * Serves the session and always tells it that it closed, whatever ended
+	 * it. Failures other than {@link IOException} are passed to
+	 * {@link Session#onClose(SocketChannel, IOException)} wrapped, and errors
+	 * are rethrown afterwards to the thread.
+	 */
+	private void serve(final SocketChannel channel) {
+		IOException failure = null;
+		Error error = null;
+		try (SocketChannelLengthPrefixedMessageReader reader = new SocketChannelLengthPrefixedMessageReader(channel,
+				this.size,
+				this.allocator);
+				SocketChannelLengthPrefixedMessageWriter writer = new SocketChannelLengthPrefixedMessageWriter(channel)) {
+			this.session.serve(reader, writer);
+		} catch (final IOException e) {
+			failure = e;
+		} catch (final Throwable e) {
+			failure = new IOException("Session failed", e);
+			if (e instanceof Error) {
+				error = (Error) e;
+			}
+		} finally {
+			this.sessions.remove(channel);
+		}
+		this.session.onClose(channel, failure);
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private static void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// Nothing to be done
+		}
+	}
+
+	/**
+	 * Stop accepting and interrupt every session. Any thread blocked in
+	 * {@link #run()} returns. Sessions end asynchronously, see
+	 * {@link Session#onClose(SocketChannel, IOException)}.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this.closed = true;
+		if (this.serverChannel != null) {
+			this.serverChannel.close();
+		}
+
+		for (final Map.Entry<SocketChannel, Thread> entry : this.sessions.entrySet()) {
+			entry.getValue()
+					.interrupt();
+			// In case the thread has yet to start, when interrupting it has no
+			// effect
+			closeQuietly(entry.getKey());
+		}
+	}
+}
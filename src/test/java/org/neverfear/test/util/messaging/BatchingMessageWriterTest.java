@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neverfear.test.util.TestTimeDevice;
+import org.neverfear.util.messaging.BatchingMessageWriter;
+import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.PooledByteBufferAllocator;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class BatchingMessageWriterTest {
+
+	/**
+	 * Counts the number of writes made to it.
+	 */
+	private static final class CountingOutputStream
+		extends ByteArrayOutputStream {
+
+		private int writeCount = 0;
+
+		@Override
+		public synchronized void write(final byte[] b, final int off, final int len) {
+			this.writeCount++;
+			super.write(b, off, len);
+		}
+	}
+
+	private CountingOutputStream outputStream;
+	private TestTimeDevice timeDevice;
+	private BatchingMessageWriter subject;
+
+	@Before
+	public void before() throws Exception {
+		this.outputStream = new CountingOutputStream();
+		this.timeDevice = new TestTimeDevice(TimeUnit.NANOSECONDS);
+		this.subject = new BatchingMessageWriter(new OutputStreamLengthPrefixedMessageWriter(this.outputStream),
+				16,
+				10,
+				TimeUnit.NANOSECONDS,
+				this.timeDevice);
+	}
+
+	@Test
+	public void givenSmallFrames_whenWrite_expectNothingWritten() throws Exception {
+		// When
+		this.subject.write(new byte[] {
+				1
+		});
+		this.subject.write(new byte[] {
+				2
+		});
+
+		// Then
+		assertEquals(0, this.outputStream.size());
+		assertEquals(10, this.subject.pending());
+	}
+
+	@Test
+	public void givenSmallFrames_whenFlush_expectSingleWriteOfAllFrames() throws Exception {
+		// Given
+		this.subject.write(new byte[] {
+				1
+		});
+		this.subject.write(new byte[] {
+				2
+		});
+
+		// When
+		this.subject.flush();
+
+		// Then
+		assertEquals(1, this.outputStream.writeCount);
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 1, 1, 0, 0, 0, 1, 2
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenBatchNearlyFull_whenWriteFrameThatDoesNotFit_expectPreviousBatchWritten() throws Exception {
+		// Given
+		this.subject.write(new byte[] {
+				1, 2, 3, 4, 5, 6, 7, 8
+		});
+
+		// When
+		this.subject.write(new byte[] {
+				9
+		});
+
+		// Then
+		assertEquals(12, this.outputStream.size());
+		assertEquals(5, this.subject.pending());
+	}
+
+	@Test
+	public void givenFrameLargerThanBatch_whenWrite_expectWrittenThrough() throws Exception {
+		// When
+		this.subject.write(new byte[20]);
+
+		// Then
+		assertEquals(24, this.outputStream.size());
+		assertEquals(0, this.subject.pending());
+	}
+
+	@Test
+	public void givenMaxLingerNotReached_whenFlushIfExpired_expectNothingWritten() throws Exception {
+		// Given
+		this.subject.write(new byte[] {
+				1
+		});
+		this.timeDevice.setValue(9);
+
+		// When
+		final boolean flushed = this.subject.flushIfExpired();
+
+		// Then
+		assertFalse(flushed);
+		assertEquals(0, this.outputStream.size());
+	}
+
+	@Test
+	public void givenMaxLingerReached_whenFlushIfExpired_expectBatchWritten() throws Exception {
+		// Given
+		this.subject.write(new byte[] {
+				1
+		});
+		this.timeDevice.setValue(10);
+
+		// When
+		final boolean flushed = this.subject.flushIfExpired();
+
+		// Then
+		assertTrue(flushed);
+		assertEquals(5, this.outputStream.size());
+	}
+
+	@Test
+	public void givenMaxLingerReached_whenWrite_expectBatchIncludingFrameWritten() throws Exception {
+		// Given
+		this.subject.write(new byte[] {
+				1
+		});
+		this.timeDevice.setValue(10);
+
+		// When
+		this.subject.write(new byte[] {
+				2
+		});
+
+		// Then
+		assertEquals(1, this.outputStream.writeCount);
+		assertEquals(10, this.outputStream.size());
+	}
+
+	@Test
+	public void givenPooledBatch_whenClosedTwice_expectFlushed_andBatchReleasedOnce() throws Exception {
+		// Given
+		final PooledByteBufferAllocator allocator = new PooledByteBufferAllocator(false);
+		this.subject = new BatchingMessageWriter(new OutputStreamLengthPrefixedMessageWriter(this.outputStream),
+				16,
+				10,
+				TimeUnit.NANOSECONDS,
+				this.timeDevice,
+				allocator);
+		this.subject.write(new byte[] {
+				1
+		});
+
+		// When
+		this.subject.close();
+		this.subject.close();
+
+		// Then
+		assertEquals(5, this.outputStream.size());
+		assertEquals(0, allocator.stats()
+				.outstanding());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+import org.neverfear.util.messaging.Crc32c;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class Crc32cTest {
+
+	private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+	@Test
+	public void givenCheckString_whenPortable_expectStandardCheckValue() {
+		// Given
+		final Crc32c subject = Crc32c.portable();
+
+		// When
+		subject.update(CHECK, 0, CHECK.length);
+
+		// Then
+		assertEquals(0xE3069283L, subject.getValue());
+	}
+
+	@Test
+	public void givenCheckString_whenCreated_expectStandardCheckValue() {
+		// Given
+		final Crc32c subject = Crc32c.create();
+
+		// When
+		subject.update(ByteBuffer.wrap(CHECK));
+
+		// Then
+		assertEquals(0xE3069283L, subject.getValue());
+	}
+
+	@Test
+	public void givenRandomBuffers_whenPortable_expectSameValueAsCreated() {
+		// Given
+		final Random random = new Random(42);
+		final Crc32c created = Crc32c.create();
+		final Crc32c portable = Crc32c.portable();
+
+		for (int length = 0; length < 300; length += 7) {
+			final byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			final ByteBuffer direct = ByteBuffer.allocateDirect(length + 3)
+					.order(length % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			direct.position(3);
+			direct.put(bytes);
+			direct.position(3);
+
+			// When
+			created.reset();
+			created.update(bytes, 0, length);
+			portable.reset();
+			portable.update(direct);
+
+			// Then
+			assertEquals(created.getValue(), portable.getValue());
+			assertEquals(direct.limit(), direct.position());
+		}
+	}
+
+	@Test
+	public void givenUpdatesInPieces_whenPortable_expectSameValueAsWhole() {
+		// Given
+		final Crc32c whole = Crc32c.portable();
+		final Crc32c pieces = Crc32c.portable();
+
+		// When
+		whole.update(CHECK, 0, CHECK.length);
+		pieces.update(CHECK[0]);
+		pieces.update(CHECK, 1, 5);
+		pieces.update(ByteBuffer.wrap(CHECK, 6, 3));
+
+		// Then
+		assertEquals(whole.getValue(), pieces.getValue());
+	}
+}
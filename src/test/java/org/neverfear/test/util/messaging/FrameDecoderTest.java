@@ -0,0 +1,380 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.ChecksumMismatchException;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.FrameDecoder;
+import org.neverfear.util.messaging.FrameHandler;
+import org.neverfear.util.messaging.FrameTooLargeException;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.LengthPrefixedMessageReader;
+import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.PooledByteBufferAllocator;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class FrameDecoderTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(2));
+
+	private static final byte[] TWO_FRAMES = new byte[] {
+			0, 0, 0, 3, 1, 2, 3, 0, 0, 0, 2, 4, 5
+	};
+
+	private final List<byte[]> frames = new ArrayList<>();
+	private final FrameHandler handler = frame -> {
+		final byte[] payload = new byte[frame.remaining()];
+		frame.get(payload);
+		this.frames.add(payload);
+	};
+
+	private Pipe pipe;
+	private FrameDecoder subject;
+
+	@Before
+	public void before() throws Exception {
+		this.pipe = Pipe.open();
+		this.pipe.source()
+				.configureBlocking(false);
+		this.subject = new FrameDecoder(4);
+	}
+
+	@After
+	public void after() throws Exception {
+		this.pipe.source()
+				.close();
+		this.pipe.sink()
+				.close();
+	}
+
+	@Test
+	public void givenTwoWholeFrames_whenDecode_expectBothFrames() throws Exception {
+		// When
+		final int count = this.subject.decode(ByteBuffer.wrap(TWO_FRAMES), this.handler);
+
+		// Then
+		assertEquals(2, count);
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, this.frames.get(0));
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, this.frames.get(1));
+		assertFalse(this.subject.isPartial());
+	}
+
+	@Test
+	public void givenOneByteAtATime_whenDecode_expectBothFrames() throws Exception {
+		// When
+		for (final byte b : TWO_FRAMES) {
+			this.subject.decode(ByteBuffer.wrap(new byte[] {
+					b
+			}), this.handler);
+		}
+
+		// Then
+		assertEquals(2, this.frames.size());
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, this.frames.get(0));
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, this.frames.get(1));
+	}
+
+	@Test
+	public void givenPartialPrefix_whenDecode_expectNoFrames_andPartial() throws Exception {
+		// When
+		final int count = this.subject.decode(ByteBuffer.wrap(new byte[] {
+				0, 0
+		}), this.handler);
+
+		// Then
+		assertEquals(0, count);
+		assertTrue(this.subject.isPartial());
+	}
+
+	@Test
+	public void givenEmptyFrame_whenDecode_expectEmptyPayload() throws Exception {
+		// When
+		this.subject.decode(ByteBuffer.wrap(new byte[] {
+				0, 0, 0, 0
+		}), this.handler);
+
+		// Then
+		assertEquals(1, this.frames.size());
+		assertEquals(0, this.frames.get(0).length);
+	}
+
+	@Test
+	public void givenNonBlockingChannelWithNothingAvailable_whenRead_expectNoFrames() throws Exception {
+		// When
+		final int count = this.subject.read(this.pipe.source(), this.handler);
+
+		// Then
+		assertEquals(0, count);
+	}
+
+	@Test
+	public void givenFramesLargerThanBuffer_whenReadUntilDrained_expectBothFrames() throws Exception {
+		// Given
+		this.pipe.sink()
+				.write(ByteBuffer.wrap(TWO_FRAMES));
+
+		// When
+		while (this.frames.size() < 2) {
+			this.subject.read(this.pipe.source(), this.handler);
+		}
+
+		// Then
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, this.frames.get(0));
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, this.frames.get(1));
+	}
+
+	@Test
+	public void givenClosedChannel_whenRead_expectEOF() throws Exception {
+		// Given
+		this.pipe.sink()
+				.close();
+
+		// When
+		final int count = this.subject.read(this.pipe.source(), this.handler);
+
+		// Then
+		assertEquals(-1, count);
+	}
+
+	@Test(expected = EOFException.class)
+	public void givenPartialFrame_andClosedChannel_whenRead_expectEOFException() throws Exception {
+		// Given
+		this.pipe.sink()
+				.write(ByteBuffer.wrap(new byte[] {
+						0, 0, 0, 3, 1
+				}));
+		this.pipe.sink()
+				.close();
+
+		// When
+		while (true) {
+			this.subject.read(this.pipe.source(), this.handler);
+		}
+	}
+
+	@Test
+	public void givenVarintPrefix_andOneByteAtATime_whenDecode_expectFrames() throws Exception {
+		// Given
+		this.subject = new FrameDecoder(4, ByteBufferAllocator.heap(), LengthPrefix.varint());
+		final byte[] large = new byte[130];
+		large[129] = 9;
+		final ByteBuffer stream = ByteBuffer.allocate(4 + large.length);
+		stream.put(new byte[] {
+				1, 7, (byte) 0x82, 0x01
+		});
+		stream.put(large);
+
+		// When
+		for (final byte b : stream.array()) {
+			this.subject.decode(ByteBuffer.wrap(new byte[] {
+					b
+			}), this.handler);
+		}
+
+		// Then
+		assertEquals(2, this.frames.size());
+		assertArrayEquals(new byte[] {
+				7
+		}, this.frames.get(0));
+		assertArrayEquals(large, this.frames.get(1));
+		assertFalse(this.subject.isPartial());
+	}
+
+	@Test
+	public void givenHeaderFieldPrefix_whenDecodeInPieces_expectHeaderAndBody() throws Exception {
+		// Given
+		this.subject = new FrameDecoder(4,
+				ByteBufferAllocator.heap(),
+				LengthPrefix.headerField(3, 2, 1, ByteOrder.BIG_ENDIAN));
+		final byte[] stream = new byte[] {
+				5, 6, 2, 1, 2, 8, 9, 0
+		};
+
+		// When
+		this.subject.decode(ByteBuffer.wrap(stream, 0, 2), this.handler);
+		this.subject.decode(ByteBuffer.wrap(stream, 2, 6), this.handler);
+
+		// Then
+		assertEquals(2, this.frames.size());
+		assertArrayEquals(new byte[] {
+				5, 6, 2, 1, 2
+		}, this.frames.get(0));
+		assertArrayEquals(new byte[] {
+				8, 9, 0
+		}, this.frames.get(1));
+	}
+
+	@Test(expected = FrameTooLargeException.class)
+	public void givenFrameLongerThanMax_whenDecode_expectFrameTooLargeException() throws Exception {
+		// Given
+		this.subject = new FrameDecoder(4, ByteBufferAllocator.heap(), LengthPrefix.standard(), 2);
+
+		// When
+		this.subject.decode(ByteBuffer.wrap(new byte[] {
+				0, 0, 0, 3, 1, 2, 3
+		}), this.handler);
+	}
+
+	@Test(expected = ClosedChannelException.class)
+	public void givenScratchGrownFromPool_whenClosedTwice_expectEveryBufferReleasedOnce_andDecodeRejected()
+			throws Exception {
+		// Given
+		final PooledByteBufferAllocator allocator = new PooledByteBufferAllocator(false);
+		this.subject = new FrameDecoder(4, allocator);
+		this.subject.decode(ByteBuffer.wrap(new byte[] {
+				0, 0, 0, 100, 1
+		}), this.handler);
+		final ByteBuffer rest = ByteBuffer.allocate(104);
+		rest.position(99);
+		rest.put(new byte[] {
+				0, 0, 3, (byte) 232, 2
+		});
+		rest.flip();
+		this.subject.decode(rest, this.handler);
+
+		// When
+		this.subject.close();
+		this.subject.close();
+
+		// Then
+		assertEquals(1, this.frames.size());
+		assertEquals(0, allocator.stats()
+				.outstanding());
+		this.subject.decode(ByteBuffer.wrap(TWO_FRAMES), this.handler);
+	}
+
+	private static byte[] checksummedFrames(final byte[]... payloads) throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStreamLengthPrefixedMessageWriter writer = new OutputStreamLengthPrefixedMessageWriter(outputStream,
+				64,
+				LengthPrefix.standard(),
+				FrameChecksum.crc32c())) {
+			for (final byte[] payload : payloads) {
+				writer.write(payload);
+			}
+		}
+		return outputStream.toByteArray();
+	}
+
+	private void checksummed() {
+		this.subject = new FrameDecoder(4,
+				ByteBufferAllocator.heap(),
+				LengthPrefix.standard(),
+				LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH,
+				FrameChecksum.crc32c());
+	}
+
+	@Test
+	public void givenChecksummedFrames_whenDecodeWholeAndOneByteAtATime_expectPayloadsWithoutTrailers()
+			throws Exception {
+		// Given
+		checksummed();
+		final byte[] stream = checksummedFrames(new byte[] {
+				1, 2, 3
+		}, new byte[0], new byte[] {
+				4, 5
+		});
+
+		// When
+		this.subject.decode(ByteBuffer.wrap(stream), this.handler);
+		for (final byte b : stream) {
+			this.subject.decode(ByteBuffer.wrap(new byte[] {
+					b
+			}), this.handler);
+		}
+
+		// Then
+		assertEquals(6, this.frames.size());
+		for (int i = 0; i < 6; i += 3) {
+			assertArrayEquals(new byte[] {
+					1, 2, 3
+			}, this.frames.get(i));
+			assertEquals(0, this.frames.get(i + 1).length);
+			assertArrayEquals(new byte[] {
+					4, 5
+			}, this.frames.get(i + 2));
+		}
+		assertFalse(this.subject.isPartial());
+	}
+
+	@Test
+	public void givenCorruptChecksummedFrame_whenDecode_expectChecksumMismatch_andNextFrameDecoded() throws Exception {
+		// Given
+		checksummed();
+		final byte[] stream = checksummedFrames(new byte[] {
+				1, 2, 3
+		}, new byte[] {
+				4, 5
+		});
+		stream[5] ^= 1;
+		final ByteBuffer source = ByteBuffer.wrap(stream);
+
+		// When
+		try {
+			this.subject.decode(source, this.handler);
+			fail("Expected ChecksumMismatchException");
+		} catch (final ChecksumMismatchException e) {
+			// Expected
+		}
+		this.subject.decode(source, this.handler);
+
+		// Then
+		assertEquals(1, this.frames.size());
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, this.frames.get(0));
+	}
+}
@@ -16,10 +16,28 @@
 package org.neverfear.test.util.messaging;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -27,8 +45,15 @@ import org.junit.Test;
 import org.junit.rules.DisableOnDebug;
 import org.junit.rules.TestRule;
 import org.junit.rules.Timeout;
+import org.neverfear.util.messaging.ChecksumMismatchException;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.FrameTooLargeException;
 import org.neverfear.util.messaging.InputStreamLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.LengthPrefixedMessageReader;
+import org.neverfear.util.messaging.LengthPrefixedMessageWriter.PayloadStream;
 import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.ReaderStats;
 
 /**
  * @author doug@neverfear.org
@@ -130,4 +155,520 @@ public class InputStreamLengthPrefixedMessageReaderTest {
 				10, 9, 8, 0, 16, -67, -73, -74, -107, -77, 41
 		}, message2);
 	}
+
+	@Test
+	public void givenTwoMessages_whenReadIntoBuffer_expectBothPayloadsAppended() throws Exception {
+		// Given
+		this.writer.write(new byte[] {
+				1, 2, 3
+		});
+		this.writer.write(new byte[] {
+				4, 5
+		});
+		final ByteBuffer destination = ByteBuffer.allocate(10);
+
+		// When
+		final int length1 = this.subject.readMessage(destination);
+		final int length2 = this.subject.readMessage(destination);
+
+		// Then
+		assertEquals(3, length1);
+		assertEquals(2, length2);
+		destination.flip();
+		final byte[] actual = new byte[destination.remaining()];
+		destination.get(actual);
+		assertArrayEquals(new byte[] {
+				1, 2, 3, 4, 5
+		}, actual);
+	}
+
+	@Test
+	public void givenDestinationTooSmall_whenReadIntoBuffer_expectOverflow_andMessageCanBeReadAgain() throws Exception {
+		// Given
+		final byte[] payload = new byte[] {
+				1, 2, 3
+		};
+		this.writer.write(payload);
+		try {
+			this.subject.readMessage(ByteBuffer.allocate(2));
+		} catch (final BufferOverflowException e) {
+			// Expected
+		}
+
+		// When
+		final byte[] message = this.subject.readMessage();
+
+		// Then
+		assertArrayEquals(payload, message);
+	}
+
+	@Test
+	public void givenSmallMessages_whenReadView_expectSameFlyweightWithEachPayload() throws Exception {
+		// Given
+		this.writer.write(new byte[] {
+				1, 2, 3
+		});
+		this.writer.write(new byte[] {
+				4, 5
+		});
+
+		// When
+		final ByteBuffer view1 = this.subject.readMessageView();
+		final byte[] actual1 = new byte[view1.remaining()];
+		view1.get(actual1);
+		final ByteBuffer view2 = this.subject.readMessageView();
+		final byte[] actual2 = new byte[view2.remaining()];
+		view2.get(actual2);
+
+		// Then
+		assertSame(view1, view2);
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, actual1);
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, actual2);
+	}
+
+	@Test
+	public void givenMessageLargerThanBuffer_whenReadView_expectPayload() throws Exception {
+		// Given
+		final byte[] payload = new byte[100];
+		for (int i = 0; i < 100; i++) {
+			payload[i] = (byte) i;
+		}
+		this.writer.write(payload);
+
+		// When
+		final ByteBuffer view = this.subject.readMessageView();
+
+		// Then
+		final byte[] actual = new byte[view.remaining()];
+		view.get(actual);
+		assertArrayEquals(payload, actual);
+	}
+
+	@Test
+	public void givenClosedStream_whenReadView_expectNull() throws Exception {
+		// Given
+		this.writeToInputStream.close();
+
+		// When
+		final ByteBuffer view = this.subject.readMessageView();
+
+		// Then
+		assertNull(view);
+	}
+
+	@Test
+	public void givenVarintPrefix_whenWriteAndRead_expectPayloads_andMessageCanBeReadAgain() throws Exception {
+		// Given
+		final LengthPrefix prefix = LengthPrefix.varint();
+		this.subject = new InputStreamLengthPrefixedMessageReader(this.inputStream, 50, prefix);
+		this.writer = new OutputStreamLengthPrefixedMessageWriter(this.writeToInputStream, 1024, prefix);
+		final byte[] large = new byte[300];
+		large[299] = 42;
+		this.writer.write(new byte[] {
+				1, 2, 3
+		});
+		this.writer.write(large);
+		try {
+			this.subject.readMessage(ByteBuffer.allocate(2));
+		} catch (final BufferOverflowException e) {
+			// Expected
+		}
+
+		// When
+		final byte[] message1 = this.subject.readMessage();
+		final byte[] message2 = this.subject.readMessage();
+
+		// Then
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, message1);
+		assertArrayEquals(large, message2);
+	}
+
+	@Test
+	public void givenHeaderFieldPrefix_whenWriteAndRead_expectHeaderAndBody() throws Exception {
+		// Given
+		final LengthPrefix prefix = LengthPrefix.headerField(3, 1, 2, ByteOrder.BIG_ENDIAN);
+		this.subject = new InputStreamLengthPrefixedMessageReader(this.inputStream, 50, prefix);
+		this.writer = new OutputStreamLengthPrefixedMessageWriter(this.writeToInputStream, 1024, prefix);
+		this.writer.write(new byte[] {
+				7, 0, 0, 1, 2
+		});
+
+		// When
+		final byte[] message = this.subject.readMessage();
+
+		// Then
+		assertArrayEquals(new byte[] {
+				7, 0, 2, 1, 2
+		}, message);
+	}
+
+	private static InputStreamLengthPrefixedMessageReader readerOf(final int maxFrameLength, final byte[]... payloads)
+			throws Exception {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final OutputStreamLengthPrefixedMessageWriter writer = new OutputStreamLengthPrefixedMessageWriter(outputStream);
+		for (final byte[] payload : payloads) {
+			writer.write(payload);
+		}
+		return new InputStreamLengthPrefixedMessageReader(new ByteArrayInputStream(outputStream.toByteArray()),
+				16,
+				LengthPrefix.standard(),
+				maxFrameLength);
+	}
+
+	@Test(expected = FrameTooLargeException.class)
+	public void givenChecksummedFrameWithLengthNearIntegerMax_whenReadView_expectFrameTooLargeException()
+			throws Exception {
+		// Given
+		final InputStreamLengthPrefixedMessageReader reader = new InputStreamLengthPrefixedMessageReader(new ByteArrayInputStream(new byte[] {
+				0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFE, 1, 2, 3
+		}), 64, LengthPrefix.standard(), LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH, FrameChecksum.crc32c());
+
+		// When
+		reader.readMessageView();
+	}
+
+	@Test
+	public void givenFrameLargerThanMax_whenRead_expectFrameTooLarge_andFrameCanBeStreamed() throws Exception {
+		// Given
+		final byte[] large = new byte[100];
+		large[99] = 5;
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(50, large, new byte[] {
+				1
+		});
+
+		// When
+		try {
+			reader.readMessage();
+			fail("Expected FrameTooLargeException");
+		} catch (final FrameTooLargeException e) {
+			assertEquals(100, e.length());
+			assertEquals(50, e.maxLength());
+		}
+		final LengthPrefixedMessageReader.PayloadStream stream = reader.readMessageStream();
+
+		// Then
+		final byte[] actual = new byte[100];
+		int offset = 0;
+		int count;
+		while ((count = stream.read(actual, offset, actual.length - offset)) > 0) {
+			offset += count;
+		}
+		assertEquals(100, offset);
+		assertArrayEquals(large, actual);
+		assertEquals(-1, stream.read());
+		assertArrayEquals(new byte[] {
+				1
+		}, reader.readMessage());
+	}
+
+	@Test
+	public void givenPartlyReadStream_whenNextMessageRead_expectRestOfPayloadSkipped() throws Exception {
+		// Given
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(50, new byte[40], new byte[] {
+				2, 3
+		});
+		final LengthPrefixedMessageReader.PayloadStream stream = reader.readMessageStream();
+		assertEquals(0, stream.read());
+		assertEquals(39, stream.remaining());
+
+		// When
+		final byte[] next = reader.readMessage();
+
+		// Then
+		assertArrayEquals(new byte[] {
+				2, 3
+		}, next);
+		assertFalse(stream.isOpen());
+		assertNull(reader.readMessageStream());
+	}
+
+	@Test
+	public void givenStream_whenReadAsChannel_expectBoundedToPayload() throws Exception {
+		// Given
+		final byte[] payload = new byte[30];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(50, payload, new byte[] {
+				9
+		});
+		final ReadableByteChannel channel = reader.readMessageStream();
+
+		// When
+		final ByteBuffer destination = ByteBuffer.allocate(100);
+		while (channel.read(destination) >= 0) {
+			// Drain
+		}
+
+		// Then
+		destination.flip();
+		assertEquals(30, destination.remaining());
+		final byte[] actual = new byte[30];
+		destination.get(actual);
+		assertArrayEquals(payload, actual);
+		channel.close();
+		assertArrayEquals(new byte[] {
+				9
+		}, reader.readMessage());
+	}
+
+	@Test
+	public void givenBufferedMessages_whenReadMessages_expectAllDeliveredFromOneFill() throws Exception {
+		// Given
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(50, new byte[] {
+				1
+		}, new byte[] {
+				2, 2
+		}, new byte[] {
+				3
+		});
+		final List<byte[]> messages = new ArrayList<>();
+
+		// When
+		final int count = reader.readMessages(messages);
+
+		// Then
+		assertEquals(3, count);
+		assertArrayEquals(new byte[] {
+				1
+		}, messages.get(0));
+		assertArrayEquals(new byte[] {
+				2, 2
+		}, messages.get(1));
+		assertArrayEquals(new byte[] {
+				3
+		}, messages.get(2));
+		assertEquals(-1, reader.readMessages(messages));
+	}
+
+	@Test
+	public void givenPartialMessageBuffered_whenReadMessages_expectItLeftForNextRead() throws Exception {
+		// Given
+		final byte[] large = new byte[12];
+		large[11] = 7;
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(50, new byte[] {
+				1
+		}, large);
+		final List<byte[]> messages = new ArrayList<>();
+
+		// When
+		final int first = reader.readMessages(messages);
+		final int second = reader.readMessages(messages);
+
+		// Then
+		assertEquals(1, first);
+		assertEquals(1, second);
+		assertArrayEquals(large, messages.get(1));
+	}
+
+	@Test
+	public void givenFrameLargerThanBuffer_whenReadIntoDirectBuffer_expectPayload_andFollowingFrameIntact() throws Exception {
+		// Given
+		final byte[] large = new byte[100];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) i;
+		}
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(200, large, new byte[] {
+				3, 4
+		});
+		final ByteBuffer destination = ByteBuffer.allocateDirect(large.length);
+
+		// When
+		final int length = reader.readMessage(destination);
+
+		// Then
+		assertEquals(large.length, length);
+		destination.flip();
+		final byte[] actual = new byte[large.length];
+		destination.get(actual);
+		assertArrayEquals(large, actual);
+		assertArrayEquals(new byte[] {
+				3, 4
+		}, reader.readMessage());
+	}
+
+	private static byte[] checksummedFrames(final byte[]... payloads) throws Exception {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final OutputStreamLengthPrefixedMessageWriter writer = new OutputStreamLengthPrefixedMessageWriter(outputStream,
+				OutputStreamLengthPrefixedMessageWriter.DEFAULT_SIZE,
+				LengthPrefix.standard(),
+				FrameChecksum.crc32c());
+		for (final byte[] payload : payloads) {
+			writer.write(payload);
+		}
+		return outputStream.toByteArray();
+	}
+
+	private static InputStreamLengthPrefixedMessageReader checksummedReaderOf(final int size, final byte[] frames) {
+		return new InputStreamLengthPrefixedMessageReader(new ByteArrayInputStream(frames),
+				size,
+				LengthPrefix.standard(),
+				LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH,
+				FrameChecksum.crc32c());
+	}
+
+	@Test
+	public void givenChecksummedFrames_whenRead_expectPayloadsWithoutTrailers() throws Exception {
+		// Given
+		final byte[] large = new byte[100];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) i;
+		}
+		final InputStreamLengthPrefixedMessageReader reader = checksummedReaderOf(16, checksummedFrames(new byte[] {
+				1, 2, 3
+		}, large, new byte[] {
+				4
+		}));
+
+		// When/Then
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, reader.readMessage());
+		assertArrayEquals(large, reader.readMessage());
+		final ByteBuffer view = reader.readMessageView();
+		assertEquals(1, view.remaining());
+		assertEquals(4, view.get());
+		assertNull(reader.readMessage());
+	}
+
+	@Test
+	public void givenCorruptPayload_whenRead_expectChecksumMismatch_andNextFrameReadable() throws Exception {
+		// Given
+		final byte[] frames = checksummedFrames(new byte[] {
+				1, 2, 3
+		}, new byte[] {
+				5
+		});
+		frames[5] ^= 1;
+		final InputStreamLengthPrefixedMessageReader reader = checksummedReaderOf(16, frames);
+
+		// When
+		try {
+			reader.readMessage();
+			fail("Expected ChecksumMismatchException");
+		} catch (final ChecksumMismatchException e) {
+			// Expected
+		}
+
+		// Then
+		assertArrayEquals(new byte[] {
+				5
+		}, reader.readMessage());
+	}
+
+	@Test
+	public void givenCorruptFrameBuffered_whenReadMessages_expectItLeftForNextRead() throws Exception {
+		// Given
+		final byte[] frames = checksummedFrames(new byte[] {
+				1
+		}, new byte[] {
+				2
+		}, new byte[] {
+				3
+		});
+		frames[13] ^= 1;
+		final InputStreamLengthPrefixedMessageReader reader = checksummedReaderOf(64, frames);
+		final List<byte[]> messages = new ArrayList<>();
+
+		// When
+		final int first = reader.readMessages(messages);
+		try {
+			reader.readMessages(messages);
+			fail("Expected ChecksumMismatchException");
+		} catch (final ChecksumMismatchException e) {
+			// Expected
+		}
+		final int third = reader.readMessages(messages);
+
+		// Then
+		assertEquals(1, first);
+		assertEquals(1, third);
+		assertArrayEquals(new byte[] {
+				1
+		}, messages.get(0));
+		assertArrayEquals(new byte[] {
+				3
+		}, messages.get(1));
+	}
+
+	@Test
+	public void givenChecksummedFrameWrittenAsStream_whenStreamedToEnd_expectVerified() throws Exception {
+		// Given
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final OutputStreamLengthPrefixedMessageWriter writer = new OutputStreamLengthPrefixedMessageWriter(outputStream,
+				OutputStreamLengthPrefixedMessageWriter.DEFAULT_SIZE,
+				LengthPrefix.standard(),
+				FrameChecksum.crc32c());
+		try (PayloadStream stream = writer.writeMessageStream(40)) {
+			for (int i = 0; i < 4; i++) {
+				stream.write(new byte[10]);
+			}
+		}
+		final byte[] frames = outputStream.toByteArray();
+		final byte[] corrupt = frames.clone();
+		corrupt[30] ^= 1;
+
+		// When
+		final InputStream stream = checksummedReaderOf(16, frames).readMessageStream();
+		final InputStream corruptStream = checksummedReaderOf(16, corrupt).readMessageStream();
+
+		// Then
+		new DataInputStream(stream).readFully(new byte[40]);
+		assertEquals(-1, stream.read());
+		assertEquals(40, corruptStream.skip(40));
+		try {
+			corruptStream.read();
+			fail("Expected ChecksumMismatchException");
+		} catch (final ChecksumMismatchException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void givenFramesReadToEOF_whenStats_expectFramesBytesAndSizesCounted() throws Exception {
+		// Given
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(200, new byte[3], new byte[100]);
+		reader.readMessage();
+		reader.readMessage();
+		assertNull(reader.readMessage());
+
+		// When
+		final ReaderStats stats = reader.stats();
+
+		// Then
+		assertEquals(2, stats.frames());
+		assertEquals(103, stats.bytes());
+		assertEquals(1, stats.partialFrames());
+		assertEquals(1, stats.eofs());
+		final long[] frameSizes = stats.frameSizes();
+		assertEquals(1, frameSizes[ReaderStats.bucket(3)]);
+		assertEquals(1, frameSizes[ReaderStats.bucket(100)]);
+		assertEquals(3, stats.frameSizePercentile(50));
+		assertEquals(127, stats.frameSizePercentile(100));
+	}
+
+	@Test
+	public void givenStatsMXBeanRegistered_whenFrameRead_expectAttributesReflectIt() throws Exception {
+		// Given
+		final InputStreamLengthPrefixedMessageReader reader = readerOf(200, new byte[5]);
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName("org.neverfear.util.messaging:type=Reader,name=test");
+		server.registerMBean(reader.statsMXBean(), name);
+		try {
+			// When
+			reader.readMessage();
+
+			// Then
+			assertEquals(1L, server.getAttribute(name, "Frames"));
+			assertEquals(5L, server.getAttribute(name, "Bytes"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.neverfear.util.messaging.LengthPrefix;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class LengthPrefixTest {
+
+	private static byte[] encode(final LengthPrefix prefix, final byte[] payload) {
+		final ByteBuffer buffer = ByteBuffer.wrap(payload);
+		final ByteBuffer header = ByteBuffer.allocate(prefix.maxSize());
+		prefix.encode(buffer, header);
+		header.flip();
+		final byte[] frame = new byte[header.remaining() + buffer.remaining()];
+		header.get(frame, 0, header.remaining());
+		buffer.get(frame, frame.length - buffer.remaining(), buffer.remaining());
+		return frame;
+	}
+
+	@Test
+	public void givenStandard_whenEncode_expectBigEndianInt() {
+		assertArrayEquals(new byte[] {
+				0, 0, 1, 2
+		}, Arrays.copyOf(encode(LengthPrefix.standard(), new byte[258]), 4));
+	}
+
+	@Test
+	public void givenVarint_whenEncode_expectSevenBitGroups() {
+		assertArrayEquals(new byte[] {
+				5
+		}, Arrays.copyOf(encode(LengthPrefix.varint(), new byte[5]), 1));
+		assertArrayEquals(new byte[] {
+				(byte) 0x80, 0x01
+		}, Arrays.copyOf(encode(LengthPrefix.varint(), new byte[128]), 2));
+		assertArrayEquals(new byte[] {
+				(byte) 0xAC, 0x02
+		}, Arrays.copyOf(encode(LengthPrefix.varint(), new byte[300]), 2));
+	}
+
+	@Test
+	public void givenVarint_whenDecode_expectLengthAndPrefixConsumed() throws Exception {
+		final ByteBuffer source = ByteBuffer.wrap(new byte[] {
+				(byte) 0xAC, 0x02, 7
+		});
+		assertEquals(300, LengthPrefix.varint()
+				.decode(source));
+		assertEquals(2, source.position());
+	}
+
+	@Test
+	public void givenMaxVarint_whenDecode_expectMaxLength() throws Exception {
+		assertEquals(Integer.MAX_VALUE, LengthPrefix.varint()
+				.decode(ByteBuffer.wrap(new byte[] {
+						(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07
+				})));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void givenVarintTooLarge_whenDecode_expectStreamCorruptedException() throws Exception {
+		LengthPrefix.varint()
+				.decode(ByteBuffer.wrap(new byte[] {
+						(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x08
+				}));
+	}
+
+	@Test
+	public void givenPartialPrefix_whenDecode_expectIncomplete_andPositionUnchanged() throws Exception {
+		final ByteBuffer source = ByteBuffer.wrap(new byte[] {
+				(byte) 0x80, (byte) 0x80
+		});
+		assertEquals(LengthPrefix.INCOMPLETE, LengthPrefix.varint()
+				.decode(source));
+		assertEquals(0, source.position());
+		assertEquals(LengthPrefix.INCOMPLETE, LengthPrefix.fixed(4, ByteOrder.LITTLE_ENDIAN)
+				.decode(source));
+	}
+
+	@Test
+	public void givenLittleEndian_whenEncodeAndDecode_expectRoundTrip() throws Exception {
+		for (final int width : new int[] { 1, 2, 4, 8 }) {
+			final LengthPrefix prefix = LengthPrefix.fixed(width, ByteOrder.LITTLE_ENDIAN);
+			final byte[] frame = encode(prefix, new byte[200]);
+			assertEquals(width + 200, frame.length);
+			assertEquals((byte) 200, frame[0]);
+			assertEquals(200, prefix.decode(ByteBuffer.wrap(frame)));
+		}
+	}
+
+	@Test
+	public void givenTwoByteBigEndian_whenEncode_expectUnsignedShort() {
+		assertArrayEquals(new byte[] {
+				(byte) 0xFF, (byte) 0xFF
+		}, Arrays.copyOf(encode(LengthPrefix.fixed(2, ByteOrder.BIG_ENDIAN), new byte[0xFFFF]), 2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenOneByte_whenEncodeTooLarge_expectIllegalArgumentException() {
+		encode(LengthPrefix.fixed(1, ByteOrder.BIG_ENDIAN), new byte[256]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenUnsupportedWidth_whenFixed_expectIllegalArgumentException() {
+		LengthPrefix.fixed(3, ByteOrder.BIG_ENDIAN);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void givenNegativeLength_whenDecode_expectStreamCorruptedException() throws Exception {
+		LengthPrefix.standard()
+				.decode(ByteBuffer.wrap(new byte[] {
+						-1, -1, -1, -1
+				}));
+	}
+
+	@Test
+	public void givenHeaderField_whenEncode_expectHeaderKeptWithLengthSet() {
+		final LengthPrefix prefix = LengthPrefix.headerField(4, 1, 2, ByteOrder.LITTLE_ENDIAN);
+		assertArrayEquals(new byte[] {
+				9, 3, 0, 8, 1, 2, 3
+		}, encode(prefix, new byte[] {
+				9, 0, 0, 8, 1, 2, 3
+		}));
+	}
+
+	@Test
+	public void givenHeaderField_whenDecode_expectHeaderIncludedInLength() throws Exception {
+		final LengthPrefix prefix = LengthPrefix.headerField(4, 1, 2, ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer source = ByteBuffer.wrap(new byte[] {
+				9, 3, 0, 8, 1, 2, 3
+		});
+		assertEquals(7, prefix.decode(source));
+		assertEquals(0, source.position());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenHeaderField_whenPayloadShorterThanHeader_expectIllegalArgumentException() {
+		encode(LengthPrefix.headerField(4, 0, 2, ByteOrder.BIG_ENDIAN), new byte[3]);
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.LengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class OutputStreamLengthPrefixedMessageWriterTest {
+
+	private ByteArrayOutputStream outputStream;
+	private OutputStreamLengthPrefixedMessageWriter subject;
+
+	@Before
+	public void before() throws Exception {
+		this.outputStream = new ByteArrayOutputStream();
+		this.subject = new OutputStreamLengthPrefixedMessageWriter(this.outputStream, 8);
+	}
+
+	@Test
+	public void givenSmallPayload_whenWrite_expectPrefixedFrame() throws Exception {
+		// When
+		this.subject.write(new byte[] {
+				1, 2, 3
+		});
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 3, 1, 2, 3
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenCrc32c_whenWrite_expectFrameFollowedByChecksumOfPrefixAndPayload() throws Exception {
+		// Given
+		this.subject = new OutputStreamLengthPrefixedMessageWriter(this.outputStream,
+				8,
+				LengthPrefix.standard(),
+				FrameChecksum.crc32c());
+
+		// When
+		this.subject.write(new byte[] {
+				1, 2, 3
+		});
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 3, 1, 2, 3, 72, 72, -78, 48
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenCrc32c_whenWrittenAsStream_expectSameFrameAsSingleWrite() throws Exception {
+		// Given
+		this.subject = new OutputStreamLengthPrefixedMessageWriter(this.outputStream,
+				8,
+				LengthPrefix.standard(),
+				FrameChecksum.crc32c());
+
+		// When
+		try (LengthPrefixedMessageWriter.PayloadStream stream = this.subject.writeMessageStream(3)) {
+			stream.write(1);
+			stream.write(new byte[] {
+					2, 3
+			});
+		}
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 3, 1, 2, 3, 72, 72, -78, 48
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenPayloadLargerThanSize_whenWrite_expectPrefixedFrame() throws Exception {
+		// When
+		this.subject.write(new byte[] {
+				1, 2, 3, 4, 5, 6, 7, 8, 9, 10
+		});
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 10, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenDirectBufferPayload_whenWrite_expectPrefixedFrame_andBufferConsumed() throws Exception {
+		// Given
+		final ByteBuffer payload = ByteBuffer.allocateDirect(10);
+		for (int i = 1; i <= 10; i++) {
+			payload.put((byte) i);
+		}
+		payload.flip();
+
+		// When
+		this.subject.write(payload);
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 10, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10
+		}, this.outputStream.toByteArray());
+		assertFalse(payload.hasRemaining());
+	}
+
+	@Test
+	public void givenEmptyPayload_whenWrite_expectOnlyPrefix() throws Exception {
+		// When
+		this.subject.write(new byte[0]);
+
+		// Then
+		assertEquals(4, this.outputStream.size());
+	}
+
+	@Test
+	public void givenPayloadStream_whenWrittenInChunks_expectSingleFrame() throws Exception {
+		// When
+		try (LengthPrefixedMessageWriter.PayloadStream stream = this.subject.writeMessageStream(20)) {
+			for (int i = 0; i < 4; i++) {
+				stream.write(new byte[] {
+						(byte) i, (byte) i, (byte) i, (byte) i
+				});
+			}
+			stream.write(ByteBuffer.wrap(new byte[] {
+					9, 9, 9, 9
+			}));
+			assertEquals(0, stream.remaining());
+		}
+		this.subject.write(new byte[] {
+				7
+		});
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 20, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 9, 9, 9, 9, 0, 0, 0, 1, 7
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenEmptyPayloadStream_whenClosed_expectEmptyFrame() throws Exception {
+		// When
+		this.subject.writeMessageStream(0)
+				.close();
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 0
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void givenPayloadStream_whenChunkExceedsLength_expectIOException() throws Exception {
+		this.subject.writeMessageStream(2)
+				.write(new byte[3]);
+	}
+
+	@Test(expected = IOException.class)
+	public void givenPayloadStream_whenClosedEarly_expectIOException() throws Exception {
+		final LengthPrefixedMessageWriter.PayloadStream stream = this.subject.writeMessageStream(2);
+		stream.write(1);
+		stream.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenOpenPayloadStream_whenWrite_expectIllegalStateException() throws Exception {
+		this.subject.writeMessageStream(2);
+		this.subject.write(new byte[] {
+				1
+		});
+	}
+
+	@Test
+	public void givenSubclassOverridingDeprecatedDoWrite_whenWrite_expectWholeFramePassedToIt() throws Exception {
+		// Given
+		@SuppressWarnings("deprecation")
+		final LengthPrefixedMessageWriter legacy = new LengthPrefixedMessageWriter(1024) {
+
+			@Override
+			protected void doWrite(final byte[] bytes) throws IOException {
+				OutputStreamLengthPrefixedMessageWriterTest.this.outputStream.write(bytes);
+			}
+
+			@Override
+			public void close() {}
+		};
+
+		// When
+		legacy.write(ByteBuffer.wrap(new byte[] {
+				1, 2, 3
+		}));
+
+		// Then
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 3, 1, 2, 3
+		}, this.outputStream.toByteArray());
+	}
+}
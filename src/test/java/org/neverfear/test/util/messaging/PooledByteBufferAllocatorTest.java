@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neverfear.util.messaging.PooledByteBufferAllocator;
+import org.neverfear.util.messaging.PooledByteBufferAllocator.Stats;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class PooledByteBufferAllocatorTest {
+
+	private PooledByteBufferAllocator subject;
+
+	@Before
+	public void before() {
+		this.subject = new PooledByteBufferAllocator(false, 16, 1024, 1, 1);
+	}
+
+	@Test
+	public void givenCapacityBetweenSizeClasses_whenAllocate_expectRoundedUpCapacity_andLimitAsRequested() {
+		// When
+		final ByteBuffer buffer = this.subject.allocate(100);
+
+		// Then
+		assertEquals(128, buffer.capacity());
+		assertEquals(100, buffer.limit());
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void givenReleasedBuffer_whenAllocateSameSizeClass_expectSameBuffer_andHit() {
+		// Given
+		final ByteBuffer released = this.subject.allocate(100);
+		released.put((byte) 1);
+		this.subject.release(released);
+
+		// When
+		final ByteBuffer buffer = this.subject.allocate(65);
+
+		// Then
+		assertSame(released, buffer);
+		assertEquals(0, buffer.position());
+		assertEquals(65, buffer.limit());
+		final Stats stats = this.subject.stats();
+		assertEquals(1, stats.hits());
+		assertEquals(1, stats.misses());
+		assertEquals(1, stats.outstanding());
+	}
+
+	@Test
+	public void givenCapacityAboveMaximum_whenAllocateAndRelease_expectNotPooled() {
+		// Given
+		final ByteBuffer released = this.subject.allocate(2048);
+		this.subject.release(released);
+
+		// When
+		final ByteBuffer buffer = this.subject.allocate(2048);
+
+		// Then
+		assertNotSame(released, buffer);
+		assertEquals(2, this.subject.stats()
+				.misses());
+	}
+
+	@Test
+	public void givenBufferReleasedOnAnotherThread_whenAllocate_expectTakenFromSharedPool() throws Exception {
+		// Given
+		final AtomicReference<ByteBuffer> released = new AtomicReference<>();
+		final Thread thread = new Thread(() -> {
+			// First fills the thread cache, the second goes to the shared pool
+			final ByteBuffer cached = this.subject.allocate(16);
+			final ByteBuffer shared = this.subject.allocate(16);
+			this.subject.release(cached);
+			this.subject.release(shared);
+			released.set(shared);
+		});
+		thread.start();
+		thread.join();
+
+		// When
+		final ByteBuffer buffer = this.subject.allocate(16);
+
+		// Then
+		assertSame(released.get(), buffer);
+	}
+
+	@Test
+	public void givenDirectPool_whenAllocate_expectDirectBuffer() {
+		// Given
+		this.subject = new PooledByteBufferAllocator(true);
+
+		// When
+		final ByteBuffer buffer = this.subject.allocate(10);
+
+		// Then
+		assertTrue(buffer.isDirect());
+	}
+
+	@Test
+	public void givenAllocatedAndNotReleased_whenStats_expectOutstanding() {
+		// Given
+		this.subject.allocate(10);
+		this.subject.release(this.subject.allocate(10));
+
+		// When
+		final Stats stats = this.subject.stats();
+
+		// Then
+		assertEquals(1, stats.outstanding());
+	}
+
+	@Test
+	public void givenReleasedBuffer_whenReleasedAgain_expectRejected_andNotPooledTwice() {
+		// Given
+		final ByteBuffer buffer = this.subject.allocate(10);
+		this.subject.release(buffer);
+
+		// When
+		try {
+			this.subject.release(buffer);
+			fail("Expected IllegalStateException");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+
+		// Then
+		assertSame(buffer, this.subject.allocate(10));
+		assertNotSame(buffer, this.subject.allocate(10));
+		assertEquals(2, this.subject.stats()
+				.outstanding());
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.concurrent.IdleStrategy;
+import org.neverfear.util.messaging.InputStreamLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.RingBufferMessageWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class RingBufferMessageWriterTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(10));
+
+	private ByteArrayOutputStream outputStream;
+
+	@Before
+	public void before() {
+		this.outputStream = new ByteArrayOutputStream();
+	}
+
+	private RingBufferMessageWriter writer(final int capacity) {
+		return new RingBufferMessageWriter(Channels.newChannel(this.outputStream),
+				capacity,
+				LengthPrefix.standard(),
+				IdleStrategy.yielding(),
+				IdleStrategy.yielding());
+	}
+
+	private List<byte[]> readAll() throws Exception {
+		final List<byte[]> messages = new ArrayList<>();
+		try (InputStreamLengthPrefixedMessageReader reader = new InputStreamLengthPrefixedMessageReader(new ByteArrayInputStream(this.outputStream.toByteArray()))) {
+			byte[] message;
+			while ((message = reader.readMessage()) != null) {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+
+	@Test
+	public void givenFrames_whenDrained_expectFramesWrittenInOrder() throws Exception {
+		// Given
+		final RingBufferMessageWriter subject = writer(64);
+		subject.write(new byte[] {
+				1, 2, 3
+		});
+		subject.write(ByteBuffer.wrap(new byte[] {
+				4, 5
+		}));
+		// Each frame has a 4 byte header and is padded to a multiple of 4
+		assertEquals(12 + 12, subject.pending());
+
+		// When
+		final int drained = subject.drain();
+
+		// Then
+		assertEquals(13, drained);
+		assertEquals(0, subject.pending());
+		assertArrayEquals(new byte[] {
+				0, 0, 0, 3, 1, 2, 3, 0, 0, 0, 2, 4, 5
+		}, this.outputStream.toByteArray());
+	}
+
+	@Test
+	public void givenFrameWrappingRingEnd_whenDrained_expectFrameIntact() throws Exception {
+		// Given
+		final RingBufferMessageWriter subject = writer(32);
+		subject.write(new byte[8]);
+		subject.drain();
+		this.outputStream.reset();
+
+		// When
+		subject.write(new byte[] {
+				1, 2, 3, 4, 5, 6, 7, 8, 9, 10
+		});
+		subject.close();
+
+		// Then
+		final List<byte[]> messages = readAll();
+		assertEquals(1, messages.size());
+		assertArrayEquals(new byte[] {
+				1, 2, 3, 4, 5, 6, 7, 8, 9, 10
+		}, messages.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenFrameLargerThanRing_whenWrite_expectIllegalArgumentException() throws Exception {
+		writer(16).write(new byte[13]);
+	}
+
+	@Test
+	public void givenManyProducers_andDrainerThread_whenClosed_expectEveryFrameInProducerOrder() throws Exception {
+		// Given
+		final int producerCount = 4;
+		final int frameCount = 5000;
+		final RingBufferMessageWriter subject = writer(256);
+		final Thread drainer = new Thread(subject, "drainer");
+		drainer.start();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < producerCount; p++) {
+			final byte producer = (byte) p;
+			final Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < frameCount; i++) {
+						final ByteBuffer frame = ByteBuffer.allocate(1 + Integer.BYTES + i % 17);
+						frame.put(producer)
+								.putInt(i);
+						frame.clear();
+						subject.write(frame);
+					}
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			thread.start();
+			producers.add(thread);
+		}
+
+		// When
+		start.countDown();
+		for (final Thread thread : producers) {
+			thread.join();
+		}
+		subject.close();
+		drainer.join();
+
+		// Then
+		final int[] next = new int[producerCount];
+		final List<byte[]> messages = readAll();
+		assertEquals(producerCount * frameCount, messages.size());
+		for (final byte[] message : messages) {
+			final ByteBuffer frame = ByteBuffer.wrap(message);
+			final int producer = frame.get();
+			final int sequence = frame.getInt();
+			assertEquals(next[producer]++, sequence);
+			assertEquals(1 + Integer.BYTES + sequence % 17, message.length);
+		}
+	}
+
+	@Test
+	public void givenNoDrainerThread_whenFlush_expectDrainedOnCaller() throws Exception {
+		// Given
+		final RingBufferMessageWriter subject = writer(64);
+		subject.write(new byte[] {
+				9
+		});
+
+		// When
+		subject.flush();
+
+		// Then
+		assertEquals(0, subject.pending());
+		final List<byte[]> messages = readAll();
+		assertEquals(1, messages.size());
+		assertArrayEquals(new byte[] {
+				9
+		}, messages.get(0));
+	}
+
+	@Test
+	public void givenProducersFlushingConcurrently_whenClosed_expectEveryFrameWrittenOnce() throws Exception {
+		// Given
+		final int producerCount = 4;
+		final int frameCount = 2000;
+		final RingBufferMessageWriter subject = writer(128);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < producerCount; p++) {
+			final byte producer = (byte) p;
+			final Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < frameCount; i++) {
+						final ByteBuffer frame = ByteBuffer.allocate(1 + Integer.BYTES);
+						frame.put(producer)
+								.putInt(i);
+						frame.clear();
+						subject.write(frame);
+						subject.flush();
+					}
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			thread.start();
+			producers.add(thread);
+		}
+
+		// When
+		final Thread drainer = new Thread(subject, "drainer");
+		start.countDown();
+		drainer.start();
+		for (final Thread thread : producers) {
+			thread.join();
+		}
+		subject.close();
+		drainer.join();
+
+		// Then
+		final int[] next = new int[producerCount];
+		final List<byte[]> messages = readAll();
+		assertEquals(producerCount * frameCount, messages.size());
+		for (final byte[] message : messages) {
+			final ByteBuffer frame = ByteBuffer.wrap(message);
+			assertEquals(next[frame.get()]++, frame.getInt());
+		}
+	}
+
+	@Test
+	public void givenProducersRacingClose_whenClosed_expectEverySuccessfulWriteWritten() throws Exception {
+		// Given
+		final RingBufferMessageWriter subject = writer(64);
+		final Thread drainer = new Thread(subject, "drainer");
+		drainer.start();
+		final AtomicInteger written = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(4);
+		final List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < 4; p++) {
+			final Thread thread = new Thread(() -> {
+				started.countDown();
+				try {
+					while (true) {
+						subject.write(new byte[] {
+								7
+						});
+						written.incrementAndGet();
+					}
+				} catch (final ClosedChannelException e) {
+					// Expected
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			thread.start();
+			producers.add(thread);
+		}
+		started.await();
+
+		// When
+		subject.close();
+		for (final Thread thread : producers) {
+			thread.join();
+		}
+		drainer.join();
+
+		// Then
+		assertEquals(written.get(), readAll().size());
+	}
+}
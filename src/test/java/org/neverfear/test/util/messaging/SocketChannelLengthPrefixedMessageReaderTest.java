@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.PooledByteBufferAllocator;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class SocketChannelLengthPrefixedMessageReaderTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(2));
+
+	private ServerSocketChannel serverChannel;
+	private SocketChannel client;
+	private SocketChannel server;
+	private SocketChannelLengthPrefixedMessageWriter writer;
+	private SocketChannelLengthPrefixedMessageReader subject;
+
+	@Before
+	public void before() throws Exception {
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.bind(new InetSocketAddress("localhost", 0));
+		this.client = SocketChannel.open(this.serverChannel.getLocalAddress());
+		this.server = this.serverChannel.accept();
+		this.writer = new SocketChannelLengthPrefixedMessageWriter(this.client);
+		this.subject = new SocketChannelLengthPrefixedMessageReader(this.server, 6, ByteBufferAllocator.direct());
+	}
+
+	@After
+	public void after() throws Exception {
+		this.writer.close();
+		this.subject.close();
+		this.serverChannel.close();
+	}
+
+	@Test
+	public void givenDirectBuffer_andMessagesAcrossBufferBoundaries_whenRead_expectAllPayloads() throws Exception {
+		// Given
+		final String[] payloads = new String[] {
+				"Hello", "World", "Pickles!", ":-D", ":-("
+		};
+		for (final String payload : payloads) {
+			this.writer.write(payload.getBytes());
+		}
+
+		// When/Then
+		for (final String payload : payloads) {
+			assertArrayEquals(payload.getBytes(), this.subject.readMessage());
+		}
+	}
+
+	@Test
+	public void givenDirectBuffer_whenReadView_expectDirectView() throws Exception {
+		// Given
+		this.writer.write(new byte[] {
+				1
+		});
+
+		// When
+		final ByteBuffer view = this.subject.readMessageView();
+
+		// Then
+		assertTrue(view.isDirect());
+	}
+
+	@Test
+	public void givenFramesLargerThanBuffer_whenRead_expectPayloads_andFollowingFrameIntact() throws Exception {
+		// Given
+		final byte[] large = new byte[1000];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) i;
+		}
+		this.writer.write(large);
+		this.writer.write(large);
+		this.writer.write(new byte[] {
+				7
+		});
+
+		// When
+		final byte[] first = this.subject.readMessage();
+		final ByteBuffer second = ByteBuffer.allocateDirect(large.length);
+		final int secondLength = this.subject.readMessage(second);
+		final byte[] third = this.subject.readMessage();
+
+		// Then
+		assertArrayEquals(large, first);
+		assertEquals(large.length, secondLength);
+		second.flip();
+		final byte[] actual = new byte[large.length];
+		second.get(actual);
+		assertArrayEquals(large, actual);
+		assertArrayEquals(new byte[] {
+				7
+		}, third);
+	}
+
+	@Test(expected = ClosedChannelException.class)
+	public void givenPooledBuffers_whenClosedTwice_expectReleasedOnce_andReadRejected() throws Exception {
+		// Given
+		final PooledByteBufferAllocator allocator = new PooledByteBufferAllocator(true);
+		this.subject = new SocketChannelLengthPrefixedMessageReader(this.server, 6, allocator);
+		this.writer.write(new byte[100]);
+		this.subject.readMessageView();
+
+		// When
+		this.subject.close();
+		this.subject.close();
+
+		// Then
+		assertEquals(0, allocator.stats()
+				.outstanding());
+		this.subject.readMessageView();
+	}
+}
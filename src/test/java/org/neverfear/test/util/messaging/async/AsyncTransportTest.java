@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.async;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.messaging.ByteBufferAllocator;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.LengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.async.AsyncConnection;
+import org.neverfear.util.messaging.async.AsyncConnectionHandler;
+import org.neverfear.util.messaging.async.AsyncTransport;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class AsyncTransportTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(10));
+
+	/**
+	 * A frame the handler fails on.
+	 */
+	private static final byte POISON = -1;
+
+	/**
+	 * Echoes every frame back to the sender, failing on {@link #POISON}.
+	 */
+	private final class EchoHandler
+		implements AsyncConnectionHandler {
+
+		@Override
+		public void onFrame(final AsyncConnection connection, final ByteBuffer frame) throws IOException {
+			if (frame.remaining() == 1 && frame.get(frame.position()) == POISON) {
+				throw new IllegalStateException("Poisoned");
+			}
+			connection.send(frame);
+		}
+
+		@Override
+		public void onClose(final AsyncConnection connection, final IOException cause) {
+			AsyncTransportTest.this.closed.add(connection);
+			AsyncTransportTest.this.causes.add(Optional.ofNullable(cause));
+		}
+	}
+
+	private final BlockingQueue<AsyncConnection> closed = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Optional<IOException>> causes = new LinkedBlockingQueue<>();
+
+	private AsynchronousChannelGroup group;
+	private AsyncTransport subject;
+	private SocketAddress address;
+	private SocketChannel client;
+	private SocketChannelLengthPrefixedMessageReader reader;
+	private SocketChannelLengthPrefixedMessageWriter writer;
+
+	@Before
+	public void before() throws Exception {
+		this.group = AsynchronousChannelGroup.withFixedThreadPool(2, Executors.defaultThreadFactory());
+		this.subject = new AsyncTransport(new EchoHandler(), this.group, 16);
+		this.address = this.subject.listen(new InetSocketAddress("localhost", 0));
+
+		this.client = SocketChannel.open(this.address);
+		this.reader = new SocketChannelLengthPrefixedMessageReader(this.client);
+		this.writer = new SocketChannelLengthPrefixedMessageWriter(this.client);
+	}
+
+	@After
+	public void after() throws Exception {
+		this.client.close();
+		this.subject.close();
+		this.group.shutdownNow();
+		this.group.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void givenSmallFrames_whenSent_expectEchoed() throws Exception {
+		// When
+		this.writer.write(new byte[] {
+				1, 2, 3
+		});
+		this.writer.write(new byte[] {
+				4, 5
+		});
+
+		// Then
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, this.reader.readMessage());
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, this.reader.readMessage());
+	}
+
+	@Test
+	public void givenFrameLargerThanSocketBuffers_whenSent_expectEchoed() throws Exception {
+		// Given
+		final byte[] payload = new byte[8 * 1024 * 1024];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+
+		// When
+		this.writer.write(payload);
+
+		// Then
+		assertArrayEquals(payload, this.reader.readMessage());
+	}
+
+	@Test
+	public void givenManyFramesSentWhileWriteOutstanding_whenEchoed_expectAllInOrder() throws Exception {
+		// Given
+		final int count = 1000;
+		for (int i = 0; i < count; i++) {
+			this.writer.write(ByteBuffer.allocate(Integer.BYTES)
+					.putInt(0, i));
+		}
+
+		// Then
+		for (int i = 0; i < count; i++) {
+			assertEquals(i,
+					ByteBuffer.wrap(this.reader.readMessage())
+							.getInt());
+		}
+	}
+
+	@Test
+	public void givenClientCloses_whenEOFRead_expectConnectionClosedWithoutCause() throws Exception {
+		// When
+		this.client.close();
+
+		// Then
+		final AsyncConnection connection = this.closed.poll(5, TimeUnit.SECONDS);
+		assertFalse(connection.channel()
+				.isOpen());
+		assertFalse(this.causes.take()
+				.isPresent());
+	}
+
+	@Test
+	public void givenHandlerThrowsRuntimeException_whenFrameRead_expectConnectionClosedWithCause() throws Exception {
+		// When
+		this.writer.write(new byte[] {
+				POISON
+		});
+
+		// Then
+		final AsyncConnection connection = this.closed.poll(5, TimeUnit.SECONDS);
+		assertFalse(connection.channel()
+				.isOpen());
+		assertTrue(this.causes.take()
+				.get()
+				.getCause() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void givenConnect_whenSend_expectFrameEchoedToConnectingSide() throws Exception {
+		// Given
+		final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+		try (AsyncTransport other = new AsyncTransport((connection, frame) -> {
+			final byte[] payload = new byte[frame.remaining()];
+			frame.get(payload);
+			received.add(payload);
+		}, this.group)) {
+			final AsyncConnection connection = other.connect(this.address)
+					.get(5, TimeUnit.SECONDS);
+
+			// When
+			connection.send(new byte[] {
+					6, 7
+			});
+
+			// Then
+			assertArrayEquals(new byte[] {
+					6, 7
+			}, received.poll(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void givenTransportClosed_whenRegister_expectChannelClosed_andHandlerNotTold() throws Exception {
+		// Given
+		final BlockingQueue<AsyncConnection> otherClosed = new LinkedBlockingQueue<>();
+		final AsyncTransport other = new AsyncTransport(new AsyncConnectionHandler() {
+
+			@Override
+			public void onFrame(final AsyncConnection connection, final ByteBuffer frame) {}
+
+			@Override
+			public void onClose(final AsyncConnection connection, final IOException cause) {
+				otherClosed.add(connection);
+			}
+		}, this.group);
+		other.close();
+		final AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(this.group);
+
+		// When
+		try {
+			other.register(channel);
+			fail("Expected ClosedChannelException");
+		} catch (final ClosedChannelException e) {
+			// Expected
+		}
+
+		// Then
+		assertFalse(channel.isOpen());
+		assertTrue(otherClosed.isEmpty());
+	}
+
+	@Test
+	public void givenChecksummedFrames_whenSent_expectVerifiedAndEchoedWithChecksums() throws Exception {
+		// Given
+		try (AsyncTransport checksummed = new AsyncTransport(new EchoHandler(),
+				this.group,
+				16,
+				ByteBufferAllocator.heap(),
+				LengthPrefix.standard(),
+				LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH,
+				FrameChecksum.crc32c());
+				SocketChannel client = SocketChannel.open(checksummed.listen(new InetSocketAddress("localhost", 0)))) {
+			final SocketChannelLengthPrefixedMessageWriter writer = new SocketChannelLengthPrefixedMessageWriter(client,
+					LengthPrefix.standard(),
+					FrameChecksum.crc32c());
+			final SocketChannelLengthPrefixedMessageReader reader = new SocketChannelLengthPrefixedMessageReader(client,
+					16,
+					ByteBufferAllocator.heap(),
+					LengthPrefix.standard(),
+					LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH,
+					FrameChecksum.crc32c());
+
+			// When
+			writer.write(new byte[] {
+					1, 2, 3
+			});
+			writer.write(new byte[40]);
+
+			// Then
+			assertArrayEquals(new byte[] {
+					1, 2, 3
+			}, reader.readMessage());
+			assertArrayEquals(new byte[40], reader.readMessage());
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.neverfear.util.messaging.compression.Codec;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+@RunWith(Parameterized.class)
+public class CodecTest {
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> codecs() {
+		final Supplier<Codec> deflate = Codec::deflate;
+		final Supplier<Codec> lz = Codec::lz;
+		return Arrays.asList(new Object[][] {
+				{
+						"deflate", deflate
+				}, {
+						"lz", lz
+				}
+		});
+	}
+
+	private final Supplier<Codec> factory;
+	private Codec subject;
+
+	public CodecTest(final String name, final Supplier<Codec> factory) {
+		this.factory = factory;
+	}
+
+	@Before
+	public void before() {
+		this.subject = this.factory.get();
+	}
+
+	@After
+	public void after() {
+		this.subject.close();
+	}
+
+	private void assertRoundTrip(final byte[] payload) throws Exception {
+		final byte[] compressed = new byte[payload.length * 2 + 64];
+		final int length = this.subject.compress(payload, 0, payload.length, compressed, 3, compressed.length - 3);
+		assertTrue(length >= 0);
+
+		final byte[] decompressed = new byte[payload.length + 2];
+		this.subject.decompress(compressed, 3, length, decompressed, 2, payload.length);
+		assertArrayEquals(payload, Arrays.copyOfRange(decompressed, 2, decompressed.length));
+	}
+
+	private static byte[] repetitive(final int length) {
+		final byte[] text = "{\"symbol\":\"VOD.L\",\"bid\":101.25,\"ask\":101.50}".getBytes(StandardCharsets.US_ASCII);
+		final byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = text[i % text.length];
+		}
+		return payload;
+	}
+
+	@Test
+	public void givenRepetitivePayload_whenCompress_expectSmaller_andRoundTrip() throws Exception {
+		final byte[] payload = repetitive(10000);
+		final byte[] compressed = new byte[payload.length];
+		final int length = this.subject.compress(payload, 0, payload.length, compressed, 0, compressed.length);
+
+		assertTrue("Compressed to " + length, length > 0 && length < payload.length / 10);
+		assertRoundTrip(payload);
+	}
+
+	@Test
+	public void givenRandomPayload_whenCompress_expectRoundTrip() throws Exception {
+		final byte[] payload = new byte[5000];
+		new Random(42).nextBytes(payload);
+		assertRoundTrip(payload);
+	}
+
+	@Test
+	public void givenShortAndLongRuns_whenCompress_expectRoundTrip() throws Exception {
+		assertRoundTrip(new byte[0]);
+		assertRoundTrip(new byte[] {
+				1, 2, 3
+		});
+		assertRoundTrip(new byte[100000]);
+		final byte[] mixed = repetitive(70000);
+		final byte[] noise = new byte[300];
+		new Random(7).nextBytes(noise);
+		System.arraycopy(noise, 0, mixed, 0, noise.length);
+		System.arraycopy(new byte[300], 0, mixed, 30000, 300);
+		assertRoundTrip(mixed);
+	}
+
+	@Test
+	public void givenRandomPayload_whenDestinationTooSmall_expectMinusOne() {
+		final byte[] payload = new byte[1000];
+		new Random(42).nextBytes(payload);
+		assertEquals(-1, this.subject.compress(payload, 0, payload.length, new byte[1000], 0, 900));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void givenWrongLength_whenDecompress_expectStreamCorruptedException() throws Exception {
+		final byte[] payload = repetitive(1000);
+		final byte[] compressed = new byte[payload.length];
+		final int length = this.subject.compress(payload, 0, payload.length, compressed, 0, compressed.length);
+		this.subject.decompress(compressed, 0, length, new byte[2000], 0, 1001);
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neverfear.util.TimeDevice;
+import org.neverfear.util.messaging.FrameTooLargeException;
+import org.neverfear.util.messaging.InputStreamLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.OutputStreamLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.compression.Codec;
+import org.neverfear.util.messaging.compression.CompressingMessageWriter;
+import org.neverfear.util.messaging.compression.CompressionStats;
+import org.neverfear.util.messaging.compression.DecompressingMessageReader;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class CompressingMessageWriterTest {
+
+	private static final byte[] SNAPSHOT = snapshot(2000);
+
+	private ByteArrayOutputStream outputStream;
+
+	private static byte[] snapshot(final int length) {
+		final StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < length; i++) {
+			builder.append("{\"symbol\":\"VOD.L\",\"level\":")
+					.append(i)
+					.append(",\"bid\":101.25,\"ask\":101.50},");
+		}
+		return builder.substring(0, length)
+				.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Before
+	public void before() {
+		this.outputStream = new ByteArrayOutputStream();
+	}
+
+	private CompressingMessageWriter writer(final Codec codec, final int threshold) {
+		return new CompressingMessageWriter(new OutputStreamLengthPrefixedMessageWriter(this.outputStream),
+				codec,
+				threshold);
+	}
+
+	private DecompressingMessageReader reader(final Codec codec) {
+		return new DecompressingMessageReader(new InputStreamLengthPrefixedMessageReader(new ByteArrayInputStream(this.outputStream.toByteArray())),
+				codec);
+	}
+
+	@Test
+	public void givenLargeFrame_whenWritten_expectCompressed_andReadBack() throws Exception {
+		// Given
+		final CompressingMessageWriter writer = writer(Codec.deflate(), 512);
+
+		// When
+		writer.write(SNAPSHOT);
+		writer.close();
+
+		// Then
+		final CompressionStats stats = writer.stats();
+		assertEquals(1, stats.compressedFrames());
+		assertTrue(stats.ratio() > 4);
+		assertTrue(this.outputStream.size() < SNAPSHOT.length / 4);
+
+		final DecompressingMessageReader reader = reader(Codec.deflate());
+		assertArrayEquals(SNAPSHOT, reader.readMessage());
+		assertNull(reader.readMessage());
+		assertEquals(1, reader.stats()
+				.compressedFrames());
+	}
+
+	@Test
+	public void givenFramesEitherSideOfThreshold_whenWritten_expectOnlyLargeCompressed() throws Exception {
+		// Given
+		final CompressingMessageWriter writer = writer(Codec.lz(), 512);
+		final byte[] small = snapshot(100);
+
+		// When
+		writer.write(small);
+		writer.write(ByteBuffer.wrap(SNAPSHOT)
+				.asReadOnlyBuffer());
+		writer.close();
+
+		// Then
+		final CompressionStats stats = writer.stats();
+		assertEquals(2, stats.frames());
+		assertEquals(1, stats.compressedFrames());
+		assertEquals(small.length + SNAPSHOT.length, stats.uncompressedBytes());
+
+		final DecompressingMessageReader reader = reader(Codec.lz());
+		assertArrayEquals(small, reader.readMessage());
+		assertArrayEquals(SNAPSHOT, reader.readMessage());
+	}
+
+	@Test
+	public void givenIncompressibleFrame_whenWritten_expectStored() throws Exception {
+		// Given
+		final CompressingMessageWriter writer = writer(Codec.deflate(), 0);
+		final byte[] noise = new byte[1000];
+		new Random(3).nextBytes(noise);
+
+		// When
+		writer.write(noise);
+		writer.close();
+
+		// Then
+		assertEquals(0, writer.stats()
+				.compressedFrames());
+		assertEquals(4 + 1 + noise.length, this.outputStream.size());
+		assertArrayEquals(noise, reader(Codec.deflate()).readMessage());
+	}
+
+	@Test
+	public void givenPresetDictionary_whenSmallFrameWritten_expectSmallerThanWithout() throws Exception {
+		// Given
+		final byte[] dictionary = snapshot(300);
+		final byte[] payload = "{\"symbol\":\"VOD.L\",\"level\":7,\"bid\":101.25,\"ask\":101.50}"
+				.getBytes(StandardCharsets.US_ASCII);
+		final CompressingMessageWriter plain = writer(Codec.deflate(), 0);
+		plain.write(payload);
+		final int plainSize = this.outputStream.size();
+		this.outputStream.reset();
+
+		// When
+		final CompressingMessageWriter writer = writer(Codec.deflate(Deflater.BEST_COMPRESSION, dictionary), 0);
+		writer.write(payload);
+		writer.close();
+
+		// Then
+		assertTrue(this.outputStream.size() < plainSize);
+		assertEquals(1, writer.stats()
+				.compressedFrames());
+		assertArrayEquals(payload, reader(Codec.deflate(Deflater.BEST_COMPRESSION, dictionary)).readMessage());
+	}
+
+	@Test
+	public void givenDestinationTooSmall_whenReadIntoBuffer_expectOverflow_andMessageCanBeReadAgain() throws Exception {
+		// Given
+		final CompressingMessageWriter writer = writer(Codec.lz(), 0);
+		writer.write(SNAPSHOT);
+		writer.close();
+		final DecompressingMessageReader reader = reader(Codec.lz());
+		try {
+			reader.readMessage(ByteBuffer.allocate(10));
+		} catch (final BufferOverflowException e) {
+			// Expected
+		}
+
+		// When
+		final ByteBuffer destination = ByteBuffer.allocateDirect(SNAPSHOT.length);
+		final int length = reader.readMessage(destination);
+
+		// Then
+		assertEquals(SNAPSHOT.length, length);
+		destination.flip();
+		final byte[] actual = new byte[length];
+		destination.get(actual);
+		assertArrayEquals(SNAPSHOT, actual);
+	}
+
+	@Test(expected = FrameTooLargeException.class)
+	public void givenFrameDecompressingBeyondMaximum_whenRead_expectFrameTooLargeException() throws Exception {
+		// Given
+		final CompressingMessageWriter writer = writer(Codec.deflate(), 0);
+		writer.write(SNAPSHOT);
+		writer.close();
+
+		// When
+		new DecompressingMessageReader(new InputStreamLengthPrefixedMessageReader(new ByteArrayInputStream(this.outputStream.toByteArray())),
+				Codec.deflate(),
+				TimeDevice.ticker(),
+				SNAPSHOT.length - 1).readMessage();
+	}
+
+	@Test(expected = FrameTooLargeException.class)
+	public void givenHeaderClaimingHugePayload_whenRead_expectFrameTooLargeException() throws Exception {
+		// Given
+		final OutputStreamLengthPrefixedMessageWriter writer = new OutputStreamLengthPrefixedMessageWriter(this.outputStream);
+		writer.write(new byte[] {
+				Codec.deflate()
+						.id(), 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0
+		});
+		writer.close();
+
+		// When
+		reader(Codec.deflate()).readMessage();
+	}
+}
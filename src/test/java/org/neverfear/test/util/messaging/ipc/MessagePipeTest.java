@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.ipc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.concurrent.IdleStrategy;
+import org.neverfear.util.messaging.ipc.MessagePipe;
+import org.neverfear.util.messaging.ipc.RingStats;
+import org.neverfear.util.messaging.ipc.SharedMemoryMessageReader;
+import org.neverfear.util.messaging.ipc.SharedMemoryMessageWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class MessagePipeTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(10));
+
+	private MessagePipe subject;
+	private SharedMemoryMessageWriter writer;
+	private SharedMemoryMessageReader reader;
+
+	@Before
+	public void before() throws Exception {
+		this.subject = MessagePipe.open(64, IdleStrategy.yielding(), IdleStrategy.yielding());
+		this.writer = this.subject.writer();
+		this.reader = this.subject.reader();
+	}
+
+	@After
+	public void after() throws Exception {
+		this.subject.close();
+	}
+
+	@Test
+	public void givenMessagesClaimed_whenCommitted_expectPublishedAndReadAsOneBatch() throws Exception {
+		// Given
+		this.writer.claim(2)
+				.put(new byte[] {
+						1, 2
+				});
+		this.writer.claim(1)
+				.put((byte) 3);
+		assertEquals(0,
+				this.writer.stats()
+						.messages());
+
+		// When
+		this.writer.commit();
+		final List<byte[]> messages = new ArrayList<>();
+		final int count = this.reader.readMessages(frame -> {
+			final byte[] message = new byte[frame.remaining()];
+			frame.get(message);
+			messages.add(message);
+		});
+
+		// Then
+		assertEquals(2, count);
+		assertArrayEquals(new byte[] {
+				1, 2
+		}, messages.get(0));
+		assertArrayEquals(new byte[] {
+				3
+		}, messages.get(1));
+		final RingStats written = this.writer.stats();
+		assertEquals(2, written.messages());
+		assertEquals(3, written.bytes());
+		assertEquals(1, written.batches());
+		final RingStats read = this.reader.stats();
+		assertEquals(2, read.messages());
+		assertEquals(1, read.batches());
+	}
+
+	@Test
+	public void givenWriterClosed_whenRead_expectEOF() throws Exception {
+		// Given
+		this.writer.write(new byte[] {
+				4
+		});
+		this.writer.close();
+
+		// When/Then
+		assertArrayEquals(new byte[] {
+				4
+		}, this.reader.readMessage());
+		assertNull(this.reader.readMessage());
+	}
+
+	@Test
+	public void givenClaimsBeyondCapacity_andConcurrentReader_whenClaimed_expectEarlierClaimsCommitted() throws Exception {
+		// Given
+		final List<Integer> received = new ArrayList<>();
+		final Thread consumer = new Thread(() -> {
+			try {
+				byte[] message;
+				while ((message = this.reader.readMessage()) != null) {
+					received.add(ByteBuffer.wrap(message)
+							.getInt());
+				}
+			} catch (final Exception e) {
+				throw new RuntimeException(e);
+			}
+		}, "consumer");
+		consumer.start();
+
+		// When
+		for (int i = 0; i < 10; i++) {
+			this.writer.claim(20)
+					.putInt(i);
+		}
+		this.writer.close();
+		consumer.join();
+
+		// Then
+		assertEquals(10, received.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, received.get(i)
+					.intValue());
+		}
+	}
+
+	@Test
+	public void givenProducerThreadWritingInBatches_whenReadInBatches_expectEveryMessageInOrder() throws Exception {
+		// Given
+		this.subject = MessagePipe.open(4096, IdleStrategy.yielding(), IdleStrategy.yielding());
+		final SharedMemoryMessageWriter writer = this.subject.writer();
+		final int count = 200000;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread producer = new Thread(() -> {
+			try {
+				for (int i = 0; i < count; i++) {
+					writer.claim(Long.BYTES)
+							.putLong(i);
+					if (i % 10 == 9) {
+						writer.commit();
+					}
+				}
+				writer.close();
+			} catch (final Throwable e) {
+				failure.set(e);
+			}
+		}, "producer");
+
+		// When
+		producer.start();
+		final long[] expected = new long[1];
+		while (this.subject.reader()
+				.readMessages(frame -> assertEquals(expected[0]++, frame.getLong())) >= 0) {
+			// Drain
+		}
+
+		// Then
+		producer.join();
+		assertNull(failure.get());
+		assertEquals(count, expected[0]);
+		assertEquals(count,
+				this.subject.reader()
+						.stats()
+						.messages());
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.ipc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.concurrent.IdleStrategy;
+import org.neverfear.util.messaging.FrameTooLargeException;
+import org.neverfear.util.messaging.ipc.SharedMemoryMessageReader;
+import org.neverfear.util.messaging.ipc.SharedMemoryMessageWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class SharedMemoryMessageReaderTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(10));
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path file;
+	private SharedMemoryMessageWriter writer;
+	private SharedMemoryMessageReader subject;
+
+	@Before
+	public void before() throws Exception {
+		this.file = this.temporaryFolder.getRoot()
+				.toPath()
+				.resolve("ring");
+		this.writer = new SharedMemoryMessageWriter(this.file, 64);
+		this.subject = new SharedMemoryMessageReader(this.file, IdleStrategy.yielding());
+	}
+
+	@After
+	public void after() throws Exception {
+		this.writer.close();
+		this.subject.close();
+	}
+
+	private static byte[] message(final int length, final int seed) {
+		final byte[] message = new byte[length];
+		for (int i = 0; i < length; i++) {
+			message[i] = (byte) (seed + i);
+		}
+		return message;
+	}
+
+	@Test
+	public void givenMessagesWritten_whenReadEachWay_expectPayloads() throws Exception {
+		// Given
+		this.writer.write(message(3, 1));
+		this.writer.write(message(5, 2));
+		this.writer.write(message(1, 3));
+
+		// When
+		final byte[] first = this.subject.readMessage();
+		final ByteBuffer second = ByteBuffer.allocate(8);
+		final int secondLength = this.subject.readMessage(second);
+		final ByteBuffer third = this.subject.readMessageView();
+
+		// Then
+		assertArrayEquals(message(3, 1), first);
+		assertEquals(5, secondLength);
+		assertArrayEquals(message(5, 2), Arrays.copyOf(second.array(), 5));
+		assertEquals(1, third.remaining());
+		assertEquals(3, third.get());
+	}
+
+	@Test
+	public void givenMessagesOfVaryingLength_whenWrittenAndReadPastEndOfRing_expectPayloadsIntact() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			// When
+			final byte[] message = message(i % 29, i);
+			this.writer.write(message);
+
+			// Then
+			assertArrayEquals(message, this.subject.readMessage());
+		}
+	}
+
+	@Test
+	public void givenWriterClosed_whenRead_expectRemainingMessagesThenEOF() throws Exception {
+		// Given
+		this.writer.write(message(2, 7));
+		this.writer.close();
+
+		// When/Then
+		assertArrayEquals(message(2, 7), this.subject.readMessage());
+		assertNull(this.subject.readMessage());
+		assertNull(this.subject.readMessageView());
+	}
+
+	@Test
+	public void givenSmallDestination_whenRead_expectOverflow_andMessageNotConsumed() throws Exception {
+		// Given
+		this.writer.write(message(10, 0));
+
+		// When
+		try {
+			this.subject.readMessage(ByteBuffer.allocate(4));
+			fail("Expected BufferOverflowException");
+		} catch (final BufferOverflowException e) {
+			// Expected
+		}
+
+		// Then
+		assertArrayEquals(message(10, 0), this.subject.readMessage());
+	}
+
+	@Test(expected = FrameTooLargeException.class)
+	public void givenMessageLargerThanHalfTheRing_whenWrite_expectFrameTooLargeException() throws Exception {
+		this.writer.write(new byte[29]);
+	}
+
+	@Test(expected = IOException.class)
+	public void givenFileThatIsNotARing_whenOpen_expectIOException() throws Exception {
+		final Path other = this.temporaryFolder.newFile()
+				.toPath();
+		Files.write(other, new byte[512]);
+		new SharedMemoryMessageReader(other);
+	}
+
+	@Test
+	public void givenRingWithInvalidCapacity_whenOpen_expectIOException() throws Exception {
+		for (final int capacity : new int[] { 48, -64 }) {
+			// Given
+			final Path other = this.temporaryFolder.newFile()
+					.toPath();
+			final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(this.file))
+					.order(ByteOrder.nativeOrder());
+			contents.putInt(Integer.BYTES, capacity);
+			Files.write(other, contents.array());
+
+			// When
+			try {
+				new SharedMemoryMessageReader(other).close();
+				fail("Expected IOException for capacity " + capacity);
+			} catch (final IOException e) {
+				// Then
+			}
+		}
+	}
+
+	@Test
+	public void givenProducerThread_andRingSmallerThanStream_whenRead_expectEveryMessageInOrder() throws Exception {
+		// Given
+		final int count = 100000;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread producer = new Thread(() -> {
+			try {
+				final ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES);
+				for (int i = 0; i < count; i++) {
+					payload.clear();
+					payload.putInt(i);
+					payload.flip();
+					this.writer.write(payload);
+				}
+				this.writer.close();
+			} catch (final Throwable e) {
+				failure.set(e);
+			}
+		}, "producer");
+
+		// When
+		producer.start();
+
+		// Then
+		int expected = 0;
+		ByteBuffer view;
+		while ((view = this.subject.readMessageView()) != null) {
+			assertEquals(expected++, view.getInt());
+		}
+		producer.join();
+		assertNull(failure.get());
+		assertEquals(count, expected);
+		assertFalse(producer.isAlive());
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neverfear.util.TimeDevice;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.journal.ForcePolicy;
+import org.neverfear.util.messaging.journal.IndexedFrameFile;
+import org.neverfear.util.messaging.journal.MappedJournalWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class IndexedFrameFileTest {
+
+	private static final int FRAME_COUNT = 100;
+	private static final int INTERVAL = 8;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path file;
+
+	@Before
+	public void before() throws Exception {
+		this.file = this.temporaryFolder.getRoot()
+				.toPath()
+				.resolve("frames");
+		write(this.file, FRAME_COUNT, 0);
+	}
+
+	/**
+	 * Writes frames whose payload is a timestamp of ten times the frame
+	 * number followed by frame number bytes of padding.
+	 */
+	private static void write(final Path path, final int count, final int trailer) throws IOException {
+		int size = trailer;
+		for (int i = 0; i < count; i++) {
+			size += Integer.BYTES + Long.BYTES + i;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (int i = 0; i < count; i++) {
+			buffer.putInt(Long.BYTES + i);
+			buffer.putLong(i * 10L);
+			buffer.position(buffer.position() + i);
+		}
+		Files.write(path, buffer.array());
+	}
+
+	private static long timestamp(final ByteBuffer frame) {
+		return frame.getLong(0);
+	}
+
+	@Test
+	public void givenFrames_whenFrame_expectFrameReturned() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertEquals(FRAME_COUNT, subject.frameCount());
+			for (final int frameNumber : new int[] { 0, 1, 7, 8, 9, 63, 64, 99 }) {
+				final ByteBuffer frame = subject.frame(frameNumber);
+				assertEquals(Long.BYTES + frameNumber, frame.remaining());
+				assertEquals(frameNumber * 10L, frame.getLong(0));
+				assertTrue(frame.isReadOnly());
+			}
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void givenFrames_whenFramePastEnd_expectIndexOutOfBoundsException() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			subject.frame(FRAME_COUNT);
+		}
+	}
+
+	@Test
+	public void givenTimestamps_whenSeekTime_expectFirstFrameAtOrAfterTime() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, IndexedFrameFileTest::timestamp)) {
+			assertEquals(0, subject.seekTime(-5));
+			assertEquals(0, subject.seekTime(0));
+			assertEquals(1, subject.seekTime(1));
+			assertEquals(8, subject.seekTime(80));
+			assertEquals(9, subject.seekTime(81));
+			assertEquals(99, subject.seekTime(990));
+			assertEquals(FRAME_COUNT, subject.seekTime(991));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void givenNoTimestamps_whenSeekTime_expectIllegalStateException() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			subject.seekTime(0);
+		}
+	}
+
+	@Test
+	public void givenIndexPersisted_whenReopened_expectIndexReused() throws Exception {
+		new IndexedFrameFile(this.file, INTERVAL, IndexedFrameFileTest::timestamp).close();
+		final Path index = IndexedFrameFile.indexPath(this.file);
+		assertTrue(Files.isRegularFile(index));
+
+		// Prove the persisted index is used by planting a bogus timestamp for
+		// the second entry, which the data is not checked against
+		final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(index));
+		contents.putLong(5 * Integer.BYTES + 1 + 3 * Long.BYTES + 3 * Long.BYTES, -5);
+		Files.write(index, contents.array());
+
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, IndexedFrameFileTest::timestamp)) {
+			assertEquals(FRAME_COUNT, subject.frameCount());
+			assertEquals(INTERVAL, subject.seekTime(5));
+		}
+	}
+
+	@Test
+	public void givenIndexTruncated_whenReopened_expectIndexRebuilt() throws Exception {
+		// Given
+		new IndexedFrameFile(this.file, INTERVAL, IndexedFrameFileTest::timestamp).close();
+		final Path index = IndexedFrameFile.indexPath(this.file);
+		final byte[] contents = Files.readAllBytes(index);
+		Files.write(index, Arrays.copyOf(contents, contents.length - 3));
+
+		// When
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, IndexedFrameFileTest::timestamp)) {
+			// Then
+			assertEquals(FRAME_COUNT, subject.frameCount());
+			assertEquals(INTERVAL, subject.seekTime(80));
+			assertEquals(contents.length, Files.size(index));
+		}
+	}
+
+	@Test
+	public void givenIndexOffsetsCorrupt_whenReopened_expectIndexRebuilt() throws Exception {
+		// Given
+		new IndexedFrameFile(this.file, INTERVAL, null).close();
+		final Path index = IndexedFrameFile.indexPath(this.file);
+		final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(index));
+		contents.putLong(5 * Integer.BYTES + 1 + 3 * Long.BYTES + Long.BYTES, 3);
+		Files.write(index, contents.array());
+
+		// When
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			// Then
+			assertEquals(INTERVAL * 10L, subject.frame(INTERVAL)
+					.getLong(0));
+		}
+	}
+
+	@Test
+	public void givenDataChanged_whenReopened_expectIndexRebuilt() throws Exception {
+		new IndexedFrameFile(this.file, INTERVAL, null).close();
+		write(this.file, FRAME_COUNT / 2, 0);
+
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertEquals(FRAME_COUNT / 2, subject.frameCount());
+		}
+	}
+
+	@Test
+	public void givenFramesAppendedToPreallocatedFile_whenReopened_expectIndexRebuilt() throws Exception {
+		// Given
+		write(this.file, 10, Integer.BYTES + 64);
+		final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(this.file));
+		final int end = contents.capacity() - Integer.BYTES - 64;
+		contents.putInt(end, -1);
+		Files.write(this.file, contents.array());
+		new IndexedFrameFile(this.file, INTERVAL, null).close();
+
+		// When
+		contents.putInt(end, 4);
+		contents.putInt(end + 2 * Integer.BYTES, -1);
+		Files.write(this.file, contents.array());
+
+		// Then
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertEquals(11, subject.frameCount());
+			assertEquals(end + 2 * Integer.BYTES, subject.dataEnd());
+		}
+	}
+
+	@Test
+	public void givenIndexCannotBeWritten_whenOpened_expectFramesReadable() throws Exception {
+		// Given
+		final Path index = IndexedFrameFile.indexPath(this.file);
+		Files.createDirectory(index.resolveSibling(index.getFileName() + ".tmp"));
+
+		// When
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			// Then
+			assertEquals(FRAME_COUNT, subject.frameCount());
+			assertFalse(Files.exists(index));
+		}
+	}
+
+	@Test
+	public void givenIncompleteTrailingFrame_whenOpened_expectIgnored() throws Exception {
+		write(this.file, 10, 0);
+		Files.write(this.file, new byte[] { 0, 0, 0, 100, 1, 2 }, StandardOpenOption.APPEND);
+
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertEquals(10, subject.frameCount());
+			assertEquals(Files.size(this.file) - 6, subject.dataEnd());
+		}
+	}
+
+	@Test
+	public void givenEndOfDataMarker_whenOpened_expectFramesBeforeIt() throws Exception {
+		write(this.file, 10, Integer.BYTES + 64);
+		final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(this.file));
+		contents.putInt(contents.capacity() - Integer.BYTES - 64, -1);
+		Files.write(this.file, contents.array());
+
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertEquals(10, subject.frameCount());
+			assertFalse(subject.hasTimestamps());
+		}
+	}
+
+	@Test
+	public void givenFrames_whenStreamed_expectEveryFrameInOrder() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			final List<Long> timestamps = subject.frames()
+					.map(IndexedFrameFileTest::timestamp)
+					.collect(Collectors.toList());
+			assertEquals(FRAME_COUNT, timestamps.size());
+			for (int i = 0; i < FRAME_COUNT; i++) {
+				assertEquals(i * 10L, timestamps.get(i)
+						.longValue());
+			}
+		}
+	}
+
+	@Test
+	public void givenFrames_whenStreamedInParallel_expectSameResultAsSequential() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			final List<Long> sequential = subject.frames()
+					.map(IndexedFrameFileTest::timestamp)
+					.collect(Collectors.toList());
+			final List<Long> parallel = subject.frames()
+					.parallel()
+					.map(IndexedFrameFileTest::timestamp)
+					.collect(Collectors.toList());
+			assertEquals(sequential, parallel);
+		}
+	}
+
+	@Test
+	public void givenRange_whenStreamed_expectFramesInRange() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertEquals(10 + 20 + 30, subject.frames(1, 4)
+					.mapToLong(IndexedFrameFileTest::timestamp)
+					.sum());
+			assertEquals(0, subject.frames(FRAME_COUNT, FRAME_COUNT)
+					.count());
+		}
+	}
+
+	@Test
+	public void givenSpliterator_whenSplit_expectSplitAtIndexedFrame() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			final Spliterator<ByteBuffer> suffix = subject.spliterator(3, FRAME_COUNT);
+			final Spliterator<ByteBuffer> prefix = suffix.trySplit();
+
+			assertEquals(48 - 3, prefix.estimateSize());
+			assertEquals(FRAME_COUNT - 48, suffix.estimateSize());
+			assertTrue(prefix.tryAdvance(frame -> assertEquals(30, timestamp(frame))));
+			assertTrue(suffix.tryAdvance(frame -> assertEquals(480, timestamp(frame))));
+		}
+	}
+
+	@Test
+	public void givenSpliteratorWhoseMiddleIsInItsFirstInterval_whenSplit_expectSplitAtNextIndexedFrame()
+			throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			final Spliterator<ByteBuffer> suffix = subject.spliterator(1, 12);
+			final Spliterator<ByteBuffer> prefix = suffix.trySplit();
+
+			assertEquals(INTERVAL - 1, prefix.estimateSize());
+			assertEquals(12 - INTERVAL, suffix.estimateSize());
+			assertTrue(suffix.tryAdvance(frame -> assertEquals(INTERVAL * 10, timestamp(frame))));
+		}
+	}
+
+	@Test
+	public void givenSpliteratorWithinOneInterval_whenSplit_expectNull() throws Exception {
+		try (IndexedFrameFile subject = new IndexedFrameFile(this.file, INTERVAL, null)) {
+			assertNull(subject.spliterator(9, 15)
+					.trySplit());
+		}
+	}
+
+	@Test
+	public void givenChecksummedJournal_andCorruptFrame_whenOpened_expectFramesBeforeIt() throws Exception {
+		// Given
+		final Path segment;
+		try (MappedJournalWriter writer = new MappedJournalWriter(this.temporaryFolder.getRoot()
+				.toPath(), "journal", 4096, 1, ForcePolicy.never(), TimeDevice.ticker(), FrameChecksum.crc32c())) {
+			for (int i = 0; i < 20; i++) {
+				writer.write(ByteBuffer.allocate(Long.BYTES)
+						.putLong(0, i * 10L));
+			}
+			segment = writer.currentSegment();
+		}
+		try (IndexedFrameFile subject = new IndexedFrameFile(segment,
+				INTERVAL,
+				IndexedFrameFileTest::timestamp,
+				FrameChecksum.crc32c())) {
+			assertEquals(20, subject.frameCount());
+			assertEquals(150, timestamp(subject.frame(15)));
+			assertEquals(20, subject.frames()
+					.parallel()
+					.count());
+		}
+		Files.delete(IndexedFrameFile.indexPath(segment));
+
+		// When
+		final byte[] contents = Files.readAllBytes(segment);
+		contents[12 * (Integer.BYTES + Long.BYTES + Integer.BYTES) + Integer.BYTES] ^= 1;
+		Files.write(segment, contents);
+
+		// Then
+		try (IndexedFrameFile subject = new IndexedFrameFile(segment,
+				INTERVAL,
+				IndexedFrameFileTest::timestamp,
+				FrameChecksum.crc32c())) {
+			assertEquals(12, subject.frameCount());
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.journal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neverfear.test.util.TestTimeDevice;
+import org.neverfear.util.messaging.FrameChecksum;
+import org.neverfear.util.messaging.InputStreamLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.LengthPrefix;
+import org.neverfear.util.messaging.LengthPrefixedMessageReader;
+import org.neverfear.util.messaging.journal.ForcePolicy;
+import org.neverfear.util.messaging.journal.MappedJournalWriter;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class MappedJournalWriterTest {
+
+	private static final String NAME = "test";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void before() throws Exception {
+		this.directory = this.temporaryFolder.getRoot()
+				.toPath();
+	}
+
+	private static byte[] frame(final int length, final int seed) {
+		final byte[] frame = new byte[length];
+		for (int i = 0; i < length; i++) {
+			frame[i] = (byte) (seed + i);
+		}
+		return frame;
+	}
+
+	private static void assertFrames(final Path segment, final byte[]... expected) throws IOException {
+		try (InputStream input = Files.newInputStream(segment);
+				InputStreamLengthPrefixedMessageReader reader = new InputStreamLengthPrefixedMessageReader(input)) {
+			for (final byte[] frame : expected) {
+				assertArrayEquals(frame, reader.readMessage());
+			}
+			assertNull(reader.readMessage());
+		}
+	}
+
+	@Test
+	public void givenFramesWritten_whenClosed_expectSegmentTruncatedToFrames() throws Exception {
+		final MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				1024,
+				4,
+				ForcePolicy.perFrame());
+		subject.write(frame(10, 1));
+		subject.write(ByteBuffer.wrap(frame(20, 2)));
+		final Path segment = subject.currentSegment();
+		subject.close();
+
+		assertEquals(4 + 10 + 4 + 20, Files.size(segment));
+		assertFrames(segment, frame(10, 1), frame(20, 2));
+	}
+
+	@Test
+	public void givenOpenSegment_whenRead_expectEndMarkerAfterLastFrame() throws Exception {
+		try (MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				1024,
+				4,
+				ForcePolicy.perBatch())) {
+			subject.write(frame(10, 1));
+			subject.flush();
+
+			final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(subject.currentSegment()));
+			assertEquals(1024, contents.capacity());
+			assertEquals(10, contents.getInt(0));
+			assertEquals(MappedJournalWriter.END_OF_DATA, contents.getInt(14));
+		}
+	}
+
+	@Test
+	public void givenSegmentFull_whenWrite_expectRolledToNewSegment() throws Exception {
+		try (MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				32,
+				4,
+				ForcePolicy.never())) {
+			subject.write(frame(10, 1));
+			subject.write(frame(10, 2));
+			subject.write(frame(10, 3));
+		}
+
+		final List<Path> segments = MappedJournalWriter.segments(this.directory, NAME);
+		assertEquals(2, segments.size());
+		assertFrames(segments.get(0), frame(10, 1), frame(10, 2));
+		assertFrames(segments.get(1), frame(10, 3));
+	}
+
+	@Test
+	public void givenRetentionLimit_whenRolled_expectOldestSegmentsDeleted() throws Exception {
+		try (MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				32,
+				2,
+				ForcePolicy.never())) {
+			for (int i = 0; i < 5; i++) {
+				subject.write(frame(20, i));
+			}
+		}
+
+		final List<Path> segments = MappedJournalWriter.segments(this.directory, NAME);
+		assertEquals(2, segments.size());
+		assertFrames(segments.get(0), frame(20, 3));
+		assertFrames(segments.get(1), frame(20, 4));
+	}
+
+	@Test
+	public void givenExistingSegments_whenReopened_expectNewSegmentAfterThem() throws Exception {
+		try (MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				1024,
+				4,
+				ForcePolicy.never())) {
+			subject.write(frame(10, 1));
+		}
+		try (MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				1024,
+				4,
+				ForcePolicy.never())) {
+			subject.write(frame(10, 2));
+		}
+
+		final List<Path> segments = MappedJournalWriter.segments(this.directory, NAME);
+		assertEquals(2, segments.size());
+		assertFrames(segments.get(0), frame(10, 1));
+		assertFrames(segments.get(1), frame(10, 2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenFrameLargerThanSegment_whenWrite_expectIllegalArgumentException() throws Exception {
+		try (MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				32,
+				4,
+				ForcePolicy.never())) {
+			subject.write(frame(25, 1));
+		}
+	}
+
+	@Test
+	public void givenChecksummedFrames_whenClosed_expectReadableWithChecksums() throws Exception {
+		// Given
+		final MappedJournalWriter subject = new MappedJournalWriter(this.directory,
+				NAME,
+				1024,
+				4,
+				ForcePolicy.never(),
+				new TestTimeDevice(TimeUnit.NANOSECONDS),
+				FrameChecksum.crc32c());
+		subject.write(frame(10, 1));
+		subject.write(frame(300, 2));
+
+		// When
+		subject.close();
+
+		// Then
+		try (InputStream input = Files.newInputStream(subject.currentSegment());
+				InputStreamLengthPrefixedMessageReader reader = new InputStreamLengthPrefixedMessageReader(input,
+						64,
+						LengthPrefix.standard(),
+						LengthPrefixedMessageReader.DEFAULT_MAX_FRAME_LENGTH,
+						FrameChecksum.crc32c())) {
+			assertArrayEquals(frame(10, 1), reader.readMessage());
+			assertArrayEquals(frame(300, 2), reader.readMessage());
+			assertNull(reader.readMessage());
+		}
+	}
+}
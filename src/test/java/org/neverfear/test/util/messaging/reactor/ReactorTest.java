@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.reactor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.reactor.Connection;
+import org.neverfear.util.messaging.reactor.ConnectionHandler;
+import org.neverfear.util.messaging.reactor.Reactor;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class ReactorTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(10));
+
+	/**
+	 * A frame the handler fails on.
+	 */
+	private static final byte POISON = -1;
+
+	/**
+	 * Echoes every frame back to the sender, failing on {@link #POISON}.
+	 */
+	private final class EchoHandler
+		implements ConnectionHandler {
+
+		@Override
+		public void onFrame(final Connection connection, final ByteBuffer frame) throws IOException {
+			if (frame.remaining() == 1 && frame.get(frame.position()) == POISON) {
+				throw new IllegalStateException("Poisoned");
+			}
+			connection.send(frame);
+		}
+
+		@Override
+		public void onClose(final Connection connection, final IOException cause) {
+			ReactorTest.this.closed.add(connection);
+			ReactorTest.this.causes.add(Optional.ofNullable(cause));
+		}
+	}
+
+	private final BlockingQueue<Connection> closed = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Optional<IOException>> causes = new LinkedBlockingQueue<>();
+
+	private Reactor subject;
+	private Thread thread;
+	private SocketAddress address;
+	private SocketChannel client;
+	private SocketChannelLengthPrefixedMessageReader reader;
+	private SocketChannelLengthPrefixedMessageWriter writer;
+
+	@Before
+	public void before() throws Exception {
+		this.subject = new Reactor(new EchoHandler(), 16);
+		this.address = this.subject.listen(new InetSocketAddress("localhost", 0));
+		this.thread = new Thread(() -> {
+			try {
+				this.subject.run();
+			} catch (final Exception e) {
+				throw new RuntimeException(e);
+			}
+		}, "reactor");
+		this.thread.start();
+
+		this.client = SocketChannel.open(this.address);
+		this.reader = new SocketChannelLengthPrefixedMessageReader(this.client);
+		this.writer = new SocketChannelLengthPrefixedMessageWriter(this.client);
+	}
+
+	@After
+	public void after() throws Exception {
+		this.client.close();
+		this.subject.close();
+		this.thread.join();
+	}
+
+	@Test
+	public void givenSmallFrames_whenSent_expectEchoed() throws Exception {
+		// When
+		this.writer.write(new byte[] {
+				1, 2, 3
+		});
+		this.writer.write(new byte[] {
+				4, 5
+		});
+
+		// Then
+		assertArrayEquals(new byte[] {
+				1, 2, 3
+		}, this.reader.readMessage());
+		assertArrayEquals(new byte[] {
+				4, 5
+		}, this.reader.readMessage());
+	}
+
+	@Test
+	public void givenFrameLargerThanSocketBuffers_whenSent_expectEchoed() throws Exception {
+		// Given
+		final byte[] payload = new byte[8 * 1024 * 1024];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+
+		// When
+		this.writer.write(payload);
+
+		// Then
+		assertArrayEquals(payload, this.reader.readMessage());
+	}
+
+	@Test
+	public void givenClientCloses_whenReactorReadsEOF_expectConnectionClosedWithoutCause() throws Exception {
+		// When
+		this.client.close();
+
+		// Then
+		final Connection connection = this.closed.poll(5, TimeUnit.SECONDS);
+		assertFalse(connection.channel()
+				.isOpen());
+		assertFalse(this.causes.take()
+				.isPresent());
+	}
+
+	@Test
+	public void givenHandlerThrowsRuntimeException_whenFrameReceived_expectOnlyThatConnectionClosed() throws Exception {
+		// Given
+		try (SocketChannel other = SocketChannel.open(this.address)) {
+			final SocketChannelLengthPrefixedMessageReader otherReader = new SocketChannelLengthPrefixedMessageReader(other);
+			final SocketChannelLengthPrefixedMessageWriter otherWriter = new SocketChannelLengthPrefixedMessageWriter(other);
+
+			// When
+			this.writer.write(new byte[] {
+					POISON
+			});
+
+			// Then
+			this.closed.poll(5, TimeUnit.SECONDS);
+			assertTrue(this.causes.take()
+					.get()
+					.getCause() instanceof IllegalStateException);
+			otherWriter.write(new byte[] {
+					6
+			});
+			assertArrayEquals(new byte[] {
+					6
+			}, otherReader.readMessage());
+		}
+	}
+}
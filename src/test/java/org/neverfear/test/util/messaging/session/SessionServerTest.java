@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 doug@neverfear.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.neverfear.test.util.messaging.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageReader;
+import org.neverfear.util.messaging.SocketChannelLengthPrefixedMessageWriter;
+import org.neverfear.util.messaging.session.Session;
+import org.neverfear.util.messaging.session.SessionServer;
+
+/**
+ * @author doug@neverfear.org
+ * 
+ */
+public class SessionServerTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(10));
+
+	/**
+	 * Echoes every message back to the sender until EOF, failing on a
+	 * message of {@link #POISON}.
+	 */
+	private final class EchoSession
+		implements Session {
+
+		@Override
+		public void serve(final SocketChannelLengthPrefixedMessageReader reader,
+				final SocketChannelLengthPrefixedMessageWriter writer) throws IOException {
+			byte[] message;
+			while ((message = reader.readMessage()) != null) {
+				if (message.length == 1 && message[0] == POISON) {
+					throw new IllegalStateException("Poisoned");
+				}
+				writer.write(message);
+			}
+		}
+
+		@Override
+		public void onClose(final SocketChannel channel, final IOException cause) {
+			SessionServerTest.this.causes.add(Optional.ofNullable(cause));
+		}
+	}
+
+	private static final byte POISON = -1;
+
+	private final BlockingQueue<Optional<IOException>> causes = new LinkedBlockingQueue<>();
+	private final List<SocketChannel> clients = new ArrayList<>();
+
+	private SessionServer subject;
+	private SocketAddress address;
+	private Thread thread;
+
+	@Before
+	public void before() throws Exception {
+		this.subject = new SessionServer(new EchoSession());
+		this.address = this.subject.listen(new InetSocketAddress("localhost", 0));
+		this.thread = new Thread(() -> {
+			try {
+				this.subject.run();
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, "acceptor");
+		this.thread.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		for (final SocketChannel client : this.clients) {
+			client.close();
+		}
+		this.subject.close();
+		this.thread.join();
+	}
+
+	private SocketChannel connect() throws IOException {
+		final SocketChannel client = SocketChannel.open(this.address);
+		this.clients.add(client);
+		return client;
+	}
+
+	@Test
+	public void givenManyClients_whenEachSends_expectEachEchoed() throws Exception {
+		// Given
+		final int count = 50;
+		final List<SocketChannelLengthPrefixedMessageReader> readers = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final SocketChannel client = connect();
+			new SocketChannelLengthPrefixedMessageWriter(client).write(new byte[] {
+					(byte) i
+			});
+			readers.add(new SocketChannelLengthPrefixedMessageReader(client));
+		}
+
+		// Then
+		for (int i = 0; i < count; i++) {
+			assertArrayEquals(new byte[] {
+					(byte) i
+			}, readers.get(i)
+					.readMessage());
+		}
+		assertEquals(count, this.subject.sessions());
+	}
+
+	@Test
+	public void givenClientCloses_whenSessionReadsEOF_expectSessionEndedWithoutCause() throws Exception {
+		// Given
+		final SocketChannel client = connect();
+		new SocketChannelLengthPrefixedMessageWriter(client).write(new byte[] {
+				1
+		});
+		new SocketChannelLengthPrefixedMessageReader(client).readMessage();
+
+		// When
+		client.close();
+
+		// Then
+		assertFalse(this.causes.poll(5, TimeUnit.SECONDS)
+				.isPresent());
+	}
+
+	@Test
+	public void givenSessionBlockedReading_whenServerClosed_expectSessionCancelled() throws Exception {
+		// Given
+		final SocketChannel client = connect();
+		new SocketChannelLengthPrefixedMessageWriter(client).write(new byte[] {
+				1
+		});
+		new SocketChannelLengthPrefixedMessageReader(client).readMessage();
+
+		// When
+		this.subject.close();
+
+		// Then
+		final Optional<IOException> cause = this.causes.poll(5, TimeUnit.SECONDS);
+		assertNotNull(cause);
+		assertTrue(cause.isPresent());
+		assertEquals(0, this.subject.sessions());
+	}
+
+	@Test
+	public void givenSessionThrowsRuntimeException_whenServed_expectSessionClosedWithWrappedCause() throws Exception {
+		// Given
+		final SocketChannel client = connect();
+
+		// When
+		new SocketChannelLengthPrefixedMessageWriter(client).write(new byte[] {
+				POISON
+		});
+
+		// Then
+		final Optional<IOException> cause = this.causes.poll(5, TimeUnit.SECONDS);
+		assertNotNull(cause);
+		assertTrue(cause.get()
+				.getCause() instanceof IllegalStateException);
+		assertEquals(0, this.subject.sessions());
+	}
+}
@@ -0,0 +1,216 @@
+package org.neverfear.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.DisableOnDebug;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.neverfear.util.SelectorQueueGroup.Assignment;
+
+public class SelectorQueueGroupTest {
+
+	@Rule
+	public TestRule timeout = new DisableOnDebug(Timeout.seconds(5));
+
+	/**
+	 * Records the thread that serviced each read.
+	 */
+	private final BlockingQueue<String> servicedBy = new LinkedBlockingQueue<>();
+	private final SelectionKeyHandler handler = key -> {
+		final ByteBuffer buffer = ByteBuffer.allocate(16);
+		if (((Pipe.SourceChannel) key.channel()).read(buffer) < 0) {
+			throw new IOException("EOF");
+		}
+		this.servicedBy.add(Thread.currentThread()
+				.getName());
+	};
+
+	private final List<Pipe> pipes = new ArrayList<>();
+	private SelectorQueueGroup subject;
+
+	@Before
+	public void before() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			final Pipe pipe = Pipe.open();
+			pipe.source()
+					.configureBlocking(false);
+			this.pipes.add(pipe);
+		}
+	}
+
+	@After
+	public void after() throws Exception {
+		this.subject.close();
+		for (final Pipe pipe : this.pipes) {
+			pipe.sink()
+					.close();
+		}
+	}
+
+	private void createSubject(final Assignment assignment) throws IOException {
+		final AtomicInteger counter = new AtomicInteger();
+		this.subject = new SelectorQueueGroup(2,
+				this.handler,
+				runnable -> new Thread(runnable, "worker-" + counter.getAndIncrement()),
+				assignment,
+				SelectorWaitStrategy.blocking());
+		this.subject.start();
+	}
+
+	private void write(final Pipe pipe) throws IOException {
+		pipe.sink()
+				.write(ByteBuffer.wrap(new byte[] {
+						1
+				}));
+	}
+
+	@Test
+	public void givenRoundRobin_whenRegisterTwoChannels_expectServicedByDifferentWorkers() throws Exception {
+		// Given
+		createSubject(Assignment.ROUND_ROBIN);
+		for (final Pipe pipe : this.pipes) {
+			this.subject.register(pipe.source(), SelectionKey.OP_READ, null)
+					.get();
+		}
+
+		// When
+		write(this.pipes.get(0));
+		final String first = this.servicedBy.poll(2, TimeUnit.SECONDS);
+		write(this.pipes.get(1));
+		final String second = this.servicedBy.poll(2, TimeUnit.SECONDS);
+
+		// Then
+		assertNotEquals(first, second);
+	}
+
+	@Test
+	public void givenLeastLoaded_whenRegisterTwoChannels_expectServicedByDifferentWorkers() throws Exception {
+		// Given
+		createSubject(Assignment.LEAST_LOADED);
+		for (final Pipe pipe : this.pipes) {
+			this.subject.register(pipe.source(), SelectionKey.OP_READ, null)
+					.get();
+		}
+
+		// When
+		write(this.pipes.get(0));
+		final String first = this.servicedBy.poll(2, TimeUnit.SECONDS);
+		write(this.pipes.get(1));
+		final String second = this.servicedBy.poll(2, TimeUnit.SECONDS);
+
+		// Then
+		assertNotEquals(first, second);
+	}
+
+	@Test
+	public void givenRegisteredChannel_whenMultipleWrites_expectAlwaysServicedBySameWorker() throws Exception {
+		// Given
+		createSubject(Assignment.ROUND_ROBIN);
+		final Pipe pipe = this.pipes.get(0);
+		this.subject.register(pipe.source(), SelectionKey.OP_READ, null)
+				.get();
+
+		// When
+		write(pipe);
+		final String first = this.servicedBy.poll(2, TimeUnit.SECONDS);
+		write(pipe);
+		final String second = this.servicedBy.poll(2, TimeUnit.SECONDS);
+
+		// Then
+		assertEquals(first, second);
+	}
+
+	@Test
+	public void givenHandlerFails_whenSelected_expectChannelClosed() throws Exception {
+		// Given
+		createSubject(Assignment.ROUND_ROBIN);
+		final Pipe pipe = this.pipes.get(0);
+		final SelectionKey key = this.subject.register(pipe.source(), SelectionKey.OP_READ, null)
+				.get();
+
+		// When
+		pipe.sink()
+				.close();
+
+		// Then
+		while (pipe.source()
+				.isOpen()) {
+			Thread.sleep(1);
+		}
+		assertFalse(key.isValid());
+	}
+
+	@Test
+	public void givenHandlerThrowsRuntimeException_whenSelected_expectOnlyThatChannelClosed() throws Exception {
+		// Given
+		this.subject = new SelectorQueueGroup(1, key -> {
+			final ByteBuffer buffer = ByteBuffer.allocate(16);
+			((Pipe.SourceChannel) key.channel()).read(buffer);
+			if (key.attachment() != null) {
+				throw new IllegalStateException("Handler bug");
+			}
+			this.servicedBy.add(Thread.currentThread()
+					.getName());
+		}, runnable -> new Thread(runnable, "worker"));
+		this.subject.start();
+		final Pipe failing = this.pipes.get(0);
+		final Pipe healthy = this.pipes.get(1);
+		this.subject.register(failing.source(), SelectionKey.OP_READ, "fail")
+				.get();
+		this.subject.register(healthy.source(), SelectionKey.OP_READ, null)
+				.get();
+
+		// When
+		write(failing);
+		while (failing.source()
+				.isOpen()) {
+			Thread.sleep(1);
+		}
+		write(healthy);
+
+		// Then
+		assertEquals("worker", this.servicedBy.poll(2, TimeUnit.SECONDS));
+		assertTrue(healthy.source()
+				.isOpen());
+	}
+
+	@Test
+	public void givenRegistrationPendingOnUnstartedWorker_whenClosed_expectRegistrationFailed() throws Exception {
+		// Given
+		this.subject = new SelectorQueueGroup(1, this.handler, runnable -> new Thread(runnable, "worker"));
+		final CompletableFuture<SelectionKey> future = this.subject.register(this.pipes.get(0)
+				.source(), SelectionKey.OP_READ, null);
+
+		// When
+		this.subject.close();
+
+		// Then
+		try {
+			future.get();
+			fail("Expected registration to fail");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+}
@@ -3,8 +3,13 @@ package org.neverfear.util;
 import static java.lang.Thread.currentThread;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.nio.channels.SelectionKey;
@@ -13,6 +18,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -161,4 +167,85 @@ public class SelectorQueueTest {
 		assertEquals(this.selectionKey3, actual);
 	}
 
+	@Test
+	public void givenBusySpin_andSelectNowReturnsZeroThenOne_whenTake_expectNeverBlocks() throws Exception {
+		/*
+		 * Given
+		 */
+		this.subject = new SelectorQueue(this.selector, SelectorWaitStrategy.busySpin());
+		when(this.selector.selectNow()).thenReturn(0, 1);
+		when(this.selector.selectedKeys()).thenReturn(new HashSet<>(Arrays.asList(this.selectionKey1)));
+
+		/*
+		 * When
+		 */
+		final SelectionKey actual = this.subject.take();
+
+		/*
+		 * Then
+		 */
+		assertEquals(this.selectionKey1, actual);
+		verify(this.selector, never()).select();
+	}
+
+	@Test
+	public void givenSpinThenBlockWithTwoSpins_andNothingReadyWhileSpinning_whenTake_expectBlocksAfterSpins()
+			throws Exception {
+		/*
+		 * Given
+		 */
+		this.subject = new SelectorQueue(this.selector, SelectorWaitStrategy.spinThenBlock(2));
+		when(this.selector.selectNow()).thenReturn(0);
+		when(this.selector.select()).thenReturn(1);
+		when(this.selector.selectedKeys()).thenReturn(new HashSet<>(Arrays.asList(this.selectionKey1)));
+
+		/*
+		 * When
+		 */
+		this.subject.take();
+
+		/*
+		 * Then
+		 */
+		verify(this.selector, times(2)).selectNow();
+		verify(this.selector).select();
+	}
+
+	@Test
+	public void givenNothingReady_whenPoll_expectNullAfterTimeout() throws Exception {
+		/*
+		 * Given
+		 */
+		when(this.selector.select(anyLong())).thenReturn(0);
+
+		/*
+		 * When
+		 */
+		final SelectionKey actual = this.subject.poll(10, TimeUnit.MILLISECONDS);
+
+		/*
+		 * Then
+		 */
+		assertNull(actual);
+	}
+
+	@Test
+	public void givenKeyReady_whenPoll_expectKey() throws Exception {
+		/*
+		 * Given
+		 */
+		when(this.selector.select(anyLong())).thenReturn(1);
+		when(this.selector.selectedKeys()).thenReturn(new HashSet<>(Arrays.asList(this.selectionKey1)));
+
+		/*
+		 * When
+		 */
+		final SelectionKey actual = this.subject.poll(10, TimeUnit.MILLISECONDS);
+
+		/*
+		 * Then
+		 */
+		assertEquals(this.selectionKey1, actual);
+	}
+
 }